@@ -2,8 +2,14 @@ package simpledb;
 
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
@@ -13,7 +19,43 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page.  Tuples can also be fetched under a lock
+ * on just their record (see {@link #getRecordPage}), so transactions can
+ * change different tuples of one page at once; such changes are undone
+ * tuple by tuple if the transaction aborts.
+ * <p>
+ * Resident pages live in a fixed array of frames.  A striped
+ * {@link PageTable} maps pages to frames and a pluggable
+ * {@link ReplacementPolicy} (CLOCK by default) chooses eviction victims,
+ * so a cache hit is O(1) and never takes a pool-wide monitor.
+ * <p>
+ * Sequential scans ask the pool to read ahead of them (see
+ * {@link #readAhead}); a background thread then reads the next pages with
+ * one vectored read and installs them, so the scan finds them resident.
+ * Scans of tables larger than the pool can also cycle through a small
+ * {@link ScanRing} of frames instead of the whole pool.
+ * <p>
+ * Checkpoints do not flush the pool.  They record its dirty page table
+ * (see {@link #dirtyPages}) and ask a background thread to write back the
+ * pages that were already dirty, at a limited rate (see
+ * {@link #writeBack}), so the next checkpoint can start redo later.
+ * <p>
+ * By default a commit writes the pages its transaction changed, and those
+ * pages are never evicted before it completes (FORCE/NO-STEAL).  Under
+ * {@link WritePolicy#STEAL_NO_FORCE} a commit only forces the log, the
+ * page writer writes committed pages back once half the pool is dirty,
+ * and when no clean page is left a dirty one is written and evicted, even
+ * one a running transaction changed.  The before image of such a page is
+ * kept until it is read back, and an abort undoes its pages in memory.
+ * <p>
+ * Read-only transactions can instead read a snapshot of the database
+ * (see {@link #beginSnapshot}): they take no locks at all, and read the
+ * committed versions of pages kept in a {@link VersionStore}, so they
+ * neither wait for writers nor hold them up.
+ * <p>
+ * Transactions can also run optimistically (see {@link #beginOptimistic}):
+ * they take no locks while they run, change private copies of pages, and
+ * are validated when they commit (see {@link #validate}).
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -25,11 +67,83 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Default number of pages read ahead of a sequential scan. */
+    public static final int DEFAULT_READ_AHEAD = 16;
+
+    /** Largest number of frames a scan ring cycles through. */
+    public static final int DEFAULT_RING_PAGES = 32;
+
+    /** Default number of pages written back in the background per second. */
+    public static final int DEFAULT_WRITE_RATE = 1000;
+
 
     private int numPages;
-    private HashMap<Integer, Page> cachedPages;
-    private LinkedList<Integer> recentlyUsed;
+    private PageTable pageTable;
+    private AtomicReferenceArray<Page> frames;
+    private LinkedList<Integer> freeFrames;
+    // Serializes evictions.  Held while a victim's stripe is taken, so
+    // it is never taken holding a stripe, and freeFrames is never held
+    // while it is
+    private final Object evictionLock = new Object();
+    // frames whose pages are being stolen; guarded by evictionLock
+    private final BitSet stealing = new BitSet();
+    private ReplacementPolicy policy;
+    private FrameArena arena; // null when page contents live on the heap
     private TransactionLockManager lockManager;
+    private volatile int readAheadWindow;
+    private ThreadPoolExecutor readAheadExecutor;
+    private volatile int writeRate;
+    private ThreadPoolExecutor pageWriter;
+    // what the page writer is asked to write next, and whether it has
+    // been asked yet; guarded by pageWriter
+    private long writeBackLsn;
+    private boolean writeBackQueued;
+    // whether the page writer is asked to count the dirty pages; guarded
+    // by pageWriter
+    private boolean dirtyCheckQueued;
+    private volatile WritePolicy writePolicy;
+    // page -> its before image, for pages evicted with changes not
+    // committed yet; installed again when the page is read back
+    private ConcurrentHashMap<PageId, byte[]> stolenImages;
+    // transaction -> the tuples it changed under record locks, oldest first
+    private ConcurrentHashMap<TransactionId, ArrayList<RowChange>> rowChanges;
+    // aborting transaction -> page -> the LSN of the last compensation
+    // record logged for it, for the pages undone in memory
+    private ConcurrentHashMap<TransactionId, HashMap<PageId, Long>> compensations;
+    private VersionStore versions;
+    // optimistic transaction -> what it read and wrote so far
+    private ConcurrentHashMap<TransactionId, Workspace> workspaces;
+    // transactions running at another isolation level than the default
+    private ConcurrentHashMap<TransactionId, IsolationLevel> isolationLevels;
+
+
+    // A tuple inserted or deleted under a record lock.  Other transactions
+    // may change the same page, so on abort the tuple is put back or
+    // removed rather than the whole page being restored.
+    private static class RowChange {
+        final RecordId rid;
+        // the tuple deleted, or null if one was inserted
+        final Tuple deleted;
+
+        RowChange(RecordId rid, Tuple deleted) {
+            this.rid = rid;
+            this.deleted = deleted;
+        }
+    }
+
+
+    // The pages an optimistic transaction used: every page it read, and
+    // its private copies of the pages it changed
+    private static class Workspace {
+        // the last commit before the transaction began
+        final long start;
+        final HashSet<PageId> reads = new HashSet<PageId>();
+        final HashMap<PageId, HeapPage> writes = new HashMap<PageId, HeapPage>();
+
+        Workspace(long start) {
+            this.start = start;
+        }
+    }
 
 
     /**
@@ -38,16 +152,64 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        this.numPages = numPages;
-        this.cachedPages = new HashMap<Integer, Page>();
-        this.recentlyUsed = new LinkedList<Integer>();
-        this.lockManager = new TransactionLockManager();
+        this(numPages, new ClockPolicy(numPages));
+    }
+
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks
+     * eviction victims with the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy replacement policy sized for numPages frames.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, policy, false);
     }
 
 
-    private boolean isFull() {
-    	assert (recentlyUsed.size() == cachedPages.size());
-    	return cachedPages.size() >= numPages;
+    /**
+     * Creates a BufferPool that caches up to numPages pages, optionally
+     * holding their contents in a preallocated off-heap {@link FrameArena}
+     * so that the pool size is bounded by bytes rather than by the number
+     * of objects the pages decode into.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy replacement policy sized for numPages frames.
+     * @param offHeap true to keep page contents in off-heap frames.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy, boolean offHeap) {
+        this.numPages = numPages;
+        this.pageTable = new PageTable();
+        this.frames = new AtomicReferenceArray<Page>(numPages);
+        this.freeFrames = new LinkedList<Integer>();
+        for (int i = 0; i < numPages; i++) {
+            this.freeFrames.add(i);
+        }
+        this.policy = policy;
+        this.arena = offHeap ? new FrameArena(numPages) : null;
+        this.lockManager = new TransactionLockManager();
+        this.readAheadWindow = DEFAULT_READ_AHEAD;
+        this.writeRate = DEFAULT_WRITE_RATE;
+        // One daemon thread, started when pages are written back and gone
+        // once they are
+        this.pageWriter = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BufferPool page writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        this.pageWriter.allowCoreThreadTimeOut(true);
+        this.writeBackLsn = LogFile.NO_LSN;
+        this.writePolicy = WritePolicy.FORCE_NO_STEAL;
+        this.stolenImages = new ConcurrentHashMap<PageId, byte[]>();
+        this.rowChanges = new ConcurrentHashMap<TransactionId, ArrayList<RowChange>>();
+        this.compensations = new ConcurrentHashMap<TransactionId, HashMap<PageId, Long>>();
+        this.versions = new VersionStore(this.lockManager);
+        this.workspaces = new ConcurrentHashMap<TransactionId, Workspace>();
+        this.isolationLevels = new ConcurrentHashMap<TransactionId, IsolationLevel>();
     }
     
     
@@ -56,21 +218,21 @@ public class BufferPool {
     // Used by the Log file to clean up the buffer pool
     public void evictPage(Page page) {
     	PageId pid = page.getId();
-    	int hashcode = pid.hashCode();
-    	
-    	if (inCache(pid)) {
-	    	assert (this.recentlyUsed.contains(hashcode));
-	    	this.cachedPages.remove(hashcode);
-	    	int lruIndex = this.recentlyUsed.indexOf(hashcode);
-	    	this.recentlyUsed.remove(lruIndex);
-    	} else {
-	    	assert (!this.recentlyUsed.contains(hashcode));
+    	int frame;
+    	Page resident;
+    	synchronized (this.pageTable.stripe(pid)) {
+    		frame = this.pageTable.get(pid);
+    		if (frame < 0) return;
+    		resident = this.frames.get(frame);
+    		this.pageTable.remove(pid);
+    		this.frames.set(frame, null);
     	}
+    	detach(resident);
+    	releaseFrame(frame);
     }
     
     public void clean() {
-    	assert (this.cachedPages.isEmpty());
-    	assert (this.recentlyUsed.isEmpty());
+    	assert (this.freeFrames.size() == this.numPages);
     }
 
 
@@ -79,42 +241,85 @@ public class BufferPool {
 		return PAGE_SIZE;
 	}
     
-    private void refreshUse(PageId pid) {
-    	int hashCode = pid.hashCode();
-    	assert (recentlyUsed.contains(hashCode));
-    	int index = recentlyUsed.indexOf(hashCode);
-    	recentlyUsed.remove(index);
-    	recentlyUsed.addFirst(hashCode);
-    }
-    
     synchronized void checkConsistency() {
-    	//System.out.println("Recently used: " + recentlyUsed.size());
-    	//System.out.println("Cached pages: " + cachedPages.size());
-    	//assert (recentlyUsed.size() == cachedPages.size());
+    	//System.out.println("Free frames: " + freeFrames.size());
     }
     
    
     
     private boolean inCache(PageId pid) {
-    	int hashcode = pid.hashCode();
-    	return cachedPages.containsKey(hashcode);
+    	return this.pageTable.get(pid) >= 0;
     }
     
-    private synchronized void recoverPage(TransactionId tid, PageId pid) {
-    	if (isRecoverable(pid)) {
-    		int hashCode = pid.hashCode();
-    		Page page = this.cachedPages.get(hashCode);
-    		this.cachedPages.put(hashCode,  page.getBeforeImage());
-    		refreshUse(pid);
-    		boolean isDirty = false;
-    		page.markDirty(isDirty, null);
+    // Returns the resident copy of pid without counting it as a use
+    private Page cachedPage(PageId pid) {
+    	synchronized (this.pageTable.stripe(pid)) {
+    		int frame = this.pageTable.get(pid);
+    		return frame < 0 ? null : this.frames.get(frame);
+    	}
+    }
+    
+    private synchronized void recoverPage(TransactionId tid, PageId pid) throws IOException {
+    	// Only a page tid held exclusively can be restored as a whole; the
+    	// tuples it changed under record locks are undone one by one.  A
+    	// checkpoint may have written the page and marked it clean.
+    	if (this.writePolicy == WritePolicy.STEAL_NO_FORCE) {
+    		if (this.lockManager.hasWriteLock(tid, pid)
+    		    && (inCache(pid) || this.stolenImages.containsKey(pid))) {
+    			restorePage(tid, pid);
+    		}
     		return;
     	}
-    	// Otherwise it was a read lock and we don't have to do anything
-    	// to recover. Our eviction strategy guarantees we don't evict
-    	// dirty pages so we should only recover dirty pages in the buffer pool
+    	if (inCache(pid) && this.lockManager.hasWriteLock(tid, pid)) {
+    		synchronized (this.pageTable.stripe(pid)) {
+    			int frame = this.pageTable.get(pid);
+    			Page page = this.frames.get(frame);
+    			this.frames.set(frame, page.getBeforeImage());
+    			boolean isDirty = false;
+    			page.markDirty(isDirty, null);
+    			detach(page);
+    		}
+    		return;
+    	}
+    	// Otherwise it was a read or intention lock and we don't have to
+    	// do anything to recover. Our eviction strategy guarantees we don't
+    	// evict dirty pages so we should only recover dirty pages in the
+    	// buffer pool
     	//System.out.println("Asked to recover page: " + pid.pageNumber());
-    	assert (this.lockManager.hasLock(tid, pid, Permissions.READ_ONLY));
+    }
+
+
+    // Puts back the before image of a page tid changed, reading the page
+    // back if it was stolen.  Only the pool's copy is restored: the log
+    // holds the compensation records, and the page stays dirty for the
+    // page writer.  It is stamped with the LSN of the last of them, so
+    // redo repeats them only if the page reaches the disk as it was
+    // before.
+    private void restorePage(TransactionId tid, PageId pid) throws IOException {
+    	HeapPage page;
+    	while (true) {
+    		page = residentPage(pid);
+    		synchronized (page) {
+    			if (page.isEvicted()) continue;
+    			if (page.isChanged()) {
+    				long lsn = page.getLsn();
+    				page.setPageData(page.getBeforeImageData());
+    				compensate(tid, page, lsn);
+    			}
+    		}
+    		break;
+    	}
+    	this.versions.abort(tid, page);
+    }
+
+
+    // fetchPage for callers that complete a transaction
+    private HeapPage residentPage(PageId pid) throws IOException {
+    	try {
+    		return (HeapPage) fetchPage(pid, null);
+    	} catch (DbException e) {
+    		throw new IOException("could not read " + pid + ": " + e);
+    	}
     }
         
     /**
@@ -127,48 +332,603 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Hits only take the page table stripe of the requested page, so hits
+     * on different pages proceed in parallel.  The lock is acquired before
+     * the lookup: a page is never evicted while it is exclusively locked,
+     * so a writer always modifies the resident copy.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    public synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but if it has to be read, read it into a frame of the given scan
+     * ring rather than one of the shared pool.
+     *
+     * @param ring the scan's ring, or null to use the shared pool
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws TransactionAbortedException, DbException {
+        Page snapshot = snapshotPage(tid, pid, perm == Permissions.READ_WRITE, ring);
+        if (snapshot != null) return snapshot;
+        Page buffered = optimisticPage(tid, pid, perm == Permissions.READ_WRITE, ring);
+        if (buffered != null) return buffered;
+        this.lockManager.getLock(tid,  pid,  perm);
+        return fetchPage(pid, ring);
+    }
+
+
+    /**
+     * Retrieve the specified page locked in the given mode.  An intention
+     * mode (IX, say) lets the transaction go on to lock single records of
+     * the page with {@link #tryLockRecord} or {@link #getRecordPage}.
+     */
+    public Page getPage(TransactionId tid, PageId pid, LockMode mode)
+        throws TransactionAbortedException, DbException {
+        Page snapshot = snapshotPage(tid, pid, mode.writes(), null);
+        if (snapshot != null) return snapshot;
+        Page buffered = optimisticPage(tid, pid, mode.writes(), null);
+        if (buffered != null) return buffered;
+        this.lockManager.getLock(tid, pid, mode);
+        return fetchPage(pid, null);
+    }
+
+
+    /**
+     * Retrieve the page of the record rid, locking only the record with
+     * the requested permissions.  Its page and table are locked in the
+     * matching intention mode, so other transactions can lock other
+     * records of the page.  Once a transaction has locked many records
+     * of a page or table, it locks the whole page or table instead.
+     *
+     * @param tid the ID of the transaction requesting the record
+     * @param rid the ID of the requested record
+     * @param perm the requested permissions on the record
+     */
+    public Page getRecordPage(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        Page snapshot = snapshotPage(tid, rid.getPageId(), perm == Permissions.READ_WRITE, null);
+        if (snapshot != null) return snapshot;
+        Page buffered = optimisticPage(tid, rid.getPageId(), perm == Permissions.READ_WRITE, null);
+        if (buffered != null) return buffered;
+        this.lockManager.getRecordLock(tid, rid, perm);
+        return fetchPage(rid.getPageId(), null);
+    }
+
+
+    /**
+     * Locks the record rid with the requested permissions if that can be
+     * done without waiting.  The caller must already hold its page in at
+     * least the matching intention mode.
+     *
+     * @return true if the record is now locked
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        // An optimistic transaction changes its private copy of the page
+        if (isOptimistic(tid)) return true;
+        return this.lockManager.tryRecordLock(tid, rid, perm);
+    }
+
+
+    /**
+     * Locks the whole table for tid in the given mode.  Holding it in S
+     * or X lets the transaction use every page of the table without
+     * locking the pages one by one.
+     */
+    public void getTableLock(TransactionId tid, int tableId, LockMode mode)
+        throws TransactionAbortedException {
+        if (isOptimistic(tid)) return;
+        this.lockManager.getTableLock(tid, tableId, mode);
+    }
+
+
+    /**
+     * Makes tid a read-only transaction that reads the database as of the
+     * last commit, without taking any locks.  Its snapshot ends when it
+     * completes.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        this.versions.beginSnapshot(tid);
+    }
+
+
+    /** @return true if tid reads from a snapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return this.versions.snapshotOf(tid) != null;
+    }
+
+
+    // Returns pid as tid's snapshot sees it, or null if tid does not read
+    // from a snapshot.  The page is a private copy that nobody changes.
+    private Page snapshotPage(TransactionId tid, PageId pid, boolean writes, ScanRing ring)
+        throws DbException {
+        Long ts = this.versions.snapshotOf(tid);
+        if (ts == null) return null;
+        if (writes) {
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        }
+
+        return committedPage(pid, ts, ring);
+    }
+
+
+    // Returns a private copy of pid as of the commit at ts, read without
+    // locks
+    private HeapPage committedPage(PageId pid, long ts, ScanRing ring) throws DbException {
+        byte[] data = this.versions.read(pid, ts);
+        if (data == null) {
+            HeapPage page = (HeapPage) fetchPage(pid, ring);
+            data = page.getBeforeImageData();
+            // A commit installs the versions of a page before it resets
+            // the before image we just read, so look again
+            byte[] version = this.versions.read(pid, ts);
+            if (version != null) data = version;
+        }
+        try {
+            return new HeapPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            throw new DbException("could not read " + pid + ": " + e);
+        }
+    }
+
+
+    /**
+     * Makes tid an optimistic transaction: it reads the last committed
+     * version of each page and changes private copies of pages, all
+     * without taking locks, until it is validated.
+     */
+    public void beginOptimistic(TransactionId tid) {
+        this.workspaces.put(tid, new Workspace(this.versions.beginOptimistic(tid)));
+    }
+
+
+    /** @return true if tid runs optimistically and has not been validated */
+    public boolean isOptimistic(TransactionId tid) {
+        return tid != null && this.workspaces.containsKey(tid);
+    }
+
+
+    // Returns pid for an optimistic transaction: its own copy if it
+    // changed the page, else the last committed version, which becomes
+    // its copy if it is about to change it.  Null if tid does not run
+    // optimistically.
+    private Page optimisticPage(TransactionId tid, PageId pid, boolean writes, ScanRing ring)
+        throws DbException {
+        Workspace ws = (tid == null) ? null : this.workspaces.get(tid);
+        if (ws == null) return null;
+        synchronized (ws) {
+            HeapPage page = ws.writes.get(pid);
+            if (page != null) return page;
+            ws.reads.add(pid);
+            page = committedPage(pid, Long.MAX_VALUE, ring);
+            if (writes) {
+                ws.writes.put(pid, page);
+            }
+            return page;
+        }
+    }
+
+
+    /**
+     * Validates an optimistic transaction before it commits: it fails if
+     * a transaction that committed after tid began changed a page tid
+     * used, or if another transaction is changing such a page now.  Once
+     * validated, tid holds the pages it changed exclusively, with its
+     * changes in place, and commits like any other transaction.  Never
+     * waits for a lock.
+     *
+     * @throws TransactionAbortedException if validation fails; tid must
+     *   then abort
+     */
+    public void validate(TransactionId tid)
         throws TransactionAbortedException, DbException {
-    	int pageHash = pid.hashCode();    	
-        if (!inCache(pid)) {
-        	// Holding a lock shouldn't matter! Buffer pool is independent of lock manager
-        	if (isFull()) {
-            	evictPage();
-            	assert (!isFull());
+        Workspace ws = (tid == null) ? null : this.workspaces.get(tid);
+        if (ws == null) return;
+        synchronized (ws) {
+            // Locked first, so two transactions validating at once cannot
+            // both miss each other's changes
+            for (PageId pid : ws.writes.keySet()) {
+                if (!this.lockManager.tryLock(tid, pid, LockMode.X)) {
+                    throw new TransactionAbortedException();
+                }
+            }
+            for (PageId pid : ws.reads) {
+                if (this.versions.changedSince(pid, ws.start)) {
+                    throw new TransactionAbortedException();
+                }
+                if (!ws.writes.containsKey(pid)
+                    && this.lockManager.isWriteLockedByOther(tid, pid)) {
+                    throw new TransactionAbortedException();
+                }
             }
 
+            for (Map.Entry<PageId, HeapPage> e : ws.writes.entrySet()) {
+                while (true) {
+                    HeapPage page = (HeapPage) fetchPage(e.getKey(), null);
+                    synchronized (page) {
+                        // Stolen since we fetched it: change the copy read back
+                        if (page.isEvicted()) continue;
+                        // The private copy replaces the page as a whole
+                        long lsn;
+                        try {
+                            lsn = Database.getLogFile().logWrite(tid, page, e.getValue());
+                        } catch (IOException ex) {
+                            throw new DbException("could not log transaction " + tid.getId() + ": " + ex);
+                        }
+                        page.setPageData(e.getValue().getPageData());
+                        page.setLsn(lsn);
+                        page.markDirty(true, tid);
+                    }
+                    break;
+                }
+            }
+            this.workspaces.remove(tid);
+        }
+    }
 
-            int tableId = pid.getTableId();
-            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-            
-            cachedPages.put(pageHash, file.readPage(pid));
-            this.recentlyUsed.addFirst(pageHash);
+
+    // Returns the resident copy of pid, loading it if necessary.  The
+    // caller holds a lock on the page, or reads its before image.
+    private Page fetchPage(PageId pid, ScanRing ring) throws DbException {
+        synchronized (this.pageTable.stripe(pid)) {
+            int frame = this.pageTable.get(pid);
+            if (frame >= 0) {
+                this.policy.access(frame);
+                return this.frames.get(frame);
+            }
         }
 
+        return loadPage(pid, ring);
+    }
+
 
-        refreshUse(pid);
-        checkConsistency();
-        Page page =this.cachedPages.get(pageHash);
+    // Reads pid into a free frame. The read happens outside of the page
+    // table; if another thread loaded the page meanwhile we keep its copy.
+    private Page loadPage(PageId pid, ScanRing ring) throws DbException {
+        int frame = (ring == null) ? allocateFrame() : allocateFrame(ring);
+        Page page;
+        try {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (this.arena == null) {
+                page = file.readPage(pid);
+            } else {
+                page = file.readPage(pid, this.arena.frame(frame));
+            }
+        } catch (RuntimeException e) {
+            releaseFrame(frame);
+            throw e;
+        }
 
+        Page resident = null;
+        synchronized (this.pageTable.stripe(pid)) {
+            int residentFrame = this.pageTable.get(pid);
+            if (residentFrame >= 0) {
+                this.policy.access(residentFrame);
+                resident = this.frames.get(residentFrame);
+            } else {
+                restoreStolenImage(page);
+                this.frames.set(frame, page);
+                this.pageTable.put(pid, frame);
+                this.policy.admit(frame);
+            }
+        }
+        if (resident != null) {
+            // Outside of the stripe: freeFrames is never taken holding one
+            releaseFrame(frame);
+            return resident;
+        }
 
-        this.lockManager.getLock(tid,  pid,  perm);
+        // Outside of the stripe: rings are locked before stripes
+        if (ring != null) {
+            ring.add(frame, page);
+        }
         return page;
     }
+
+
+    // Returns an empty frame, evicting a page if none is free.  Misses
+    // that find a free frame do not wait for an eviction.
+    private int allocateFrame() throws DbException {
+        synchronized (this.freeFrames) {
+            if (!this.freeFrames.isEmpty()) {
+                return this.freeFrames.removeFirst();
+            }
+        }
+        return evictPage();
+    }
+
+
+    // Returns an empty frame for a scan ring: the frame of the ring's
+    // oldest page if it can be reused, otherwise one from the shared pool
+    private int allocateFrame(ScanRing ring) throws DbException {
+        synchronized (ring) {
+            if (ring.isFull()) {
+                Page oldest = ring.oldestPage();
+                int frame = ring.removeOldest();
+                synchronized (this.evictionLock) {
+                    if (tryEvictFrame(frame, oldest)) {
+                        this.policy.remove(frame);
+                        return frame;
+                    }
+                }
+                // The page was dirtied or locked; the shared pool keeps it
+            }
+            return allocateFrame();
+        }
+    }
+
+
+    /**
+     * Returns a ring for a sequential scan of scanPages pages, or null if
+     * the scan is small enough to be cached in the shared pool.  Only scans
+     * of tables larger than the whole pool get a ring: caching them would
+     * evict everything else and still not keep the table resident.
+     */
+    public ScanRing newScanRing(int scanPages) {
+        if (scanPages <= this.numPages) return null;
+        return new ScanRing(Math.max(1, Math.min(DEFAULT_RING_PAGES, this.numPages / 8)));
+    }
+
+
+    // Called when a page leaves its frame: copy it out of the arena so that
+    // threads still holding the page can keep reading it once the frame
+    // is reused, and have those about to change it fetch it again
+    private void detach(Page page) {
+        if (page instanceof HeapPage) {
+            ((HeapPage) page).markEvicted();
+            if (this.arena != null) {
+                ((HeapPage) page).detach();
+            }
+        }
+    }
+
+
+    // Gives a page read back after it was stolen the before image it was
+    // evicted with.  The caller holds the page's stripe.
+    private void restoreStolenImage(Page page) {
+        byte[] image = this.stolenImages.remove(page.getId());
+        if (image != null) {
+            ((HeapPage) page).setBeforeImageData(image);
+        }
+    }
+
+
+    private void releaseFrame(int frame) {
+        this.policy.remove(frame);
+        synchronized (this.freeFrames) {
+            this.freeFrames.addFirst(frame);
+        }
+    }
+    
+    
+    /**
+     * Sets how many pages sequential scans read ahead of themselves.  The
+     * window is capped at a quarter of the pool so that read-ahead cannot
+     * crowd out the pages being used; 0 disables read-ahead.
+     */
+    public void setReadAheadWindow(int pages) {
+        this.readAheadWindow = Math.max(0, pages);
+    }
+
+
+    /** @return the number of pages sequential scans read ahead */
+    public int getReadAheadWindow() {
+        return Math.min(this.readAheadWindow, this.numPages / 4);
+    }
+
+
+    /**
+     * Sets how many pages a second the background page writer writes
+     * back; 0 removes the limit.
+     */
+    public void setWriteRate(int pagesPerSecond) {
+        this.writeRate = Math.max(0, pagesPerSecond);
+    }
+
+
+    /** @return how many pages a second are written back in the background */
+    public int getWriteRate() {
+        return this.writeRate;
+    }
+
+
+    /**
+     * Sets when the pages transactions change are written back: when they
+     * commit, or later, with dirty pages stolen when the pool is full.
+     * Set it before running transactions.
+     */
+    public void setWritePolicy(WritePolicy policy) {
+        this.writePolicy = policy;
+    }
+
+
+    /** @return when the pages transactions change are written back */
+    public WritePolicy getWritePolicy() {
+        return this.writePolicy;
+    }
+
+
+    /**
+     * Sets how lock waits are kept from deadlocking: by detecting
+     * deadlocks (the default) or by one of the timestamp-based prevention
+     * policies.  Set it before running transactions.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.lockManager.setDeadlockPolicy(policy);
+    }
+
+
+    /** @return how lock waits are kept from deadlocking */
+    public DeadlockPolicy getDeadlockPolicy() {
+        return this.lockManager.getDeadlockPolicy();
+    }
+
+
+    /**
+     * Sets how many record locks a transaction takes on one page, and in
+     * one table, before it locks the whole page or table instead.
+     */
+    public void setLockEscalation(int pageRecords, int tableRecords) {
+        this.lockManager.setLockEscalation(pageRecords, tableRecords);
+    }
+
+
+    /**
+     * Asynchronously loads count pages of file starting at firstPage into
+     * the pool.  This is only a hint: no locks are taken, pages that are
+     * already resident are skipped and nothing is loaded if there is no
+     * room.
+     */
+    public void readAhead(HeapFile file, int firstPage, int count) {
+        readAhead(file, firstPage, count, null);
+    }
+
+
+    /**
+     * Like {@link #readAhead(HeapFile, int, int)}, but loads the pages into
+     * frames of the given scan ring.
+     */
+    public void readAhead(final HeapFile file, final int firstPage, final int count,
+                          final ScanRing ring) {
+        if (count <= 0) return;
+        readAheadExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    prefetchPages(file, firstPage, count, ring);
+                } catch (Exception e) {
+                    Debug.log("read-ahead of %d pages at %d failed: %s", count, firstPage, e);
+                }
+            }
+        });
+    }
+
+
+    private synchronized ThreadPoolExecutor readAheadExecutor() {
+        if (this.readAheadExecutor == null) {
+            // One daemon thread that goes away when scans stop
+            this.readAheadExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BufferPool read-ahead");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            this.readAheadExecutor.allowCoreThreadTimeOut(true);
+        }
+        return this.readAheadExecutor;
+    }
+
+
+    // Reads the pages with one vectored read into freshly allocated frames
+    // and installs the ones that are still absent.  Since no lock is held,
+    // a page written to disk after we read it would be installed stale;
+    // the file's write version tells us if that may have happened.
+    void prefetchPages(HeapFile file, int firstPage, int count, ScanRing ring)
+        throws IOException {
+        int tableId = file.getId();
+        while (count > 0 && inCache(new HeapPageId(tableId, firstPage))) {
+            firstPage++;
+            count--;
+        }
+
+        long version = file.writeVersion();
+        if (count <= 0 || (version & 1) != 0) return;
+
+        int[] slots = new int[count];
+        int n = 0;
+        try {
+            for (; n < count; n++) {
+                slots[n] = (ring == null) ? allocateFrame() : allocateFrame(ring);
+            }
+        } catch (DbException e) {
+            // Every other page is pinned; read what fits
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            buffers[i] = (this.arena == null) ? ByteBuffer.allocate(PAGE_SIZE)
+                                              : this.arena.frame(slots[i]);
+        }
+
+        int installed = 0;
+        try {
+            HeapPage[] pages = (n == 0) ? new HeapPage[0] : file.readPages(firstPage, buffers);
+            for (; installed < pages.length; installed++) {
+                if (!installPrefetched(file, version, pages[installed], slots[installed])) {
+                    releaseFrame(slots[installed]);
+                } else if (ring != null) {
+                    ring.add(slots[installed], pages[installed]);
+                }
+            }
+        } finally {
+            for (int i = installed; i < n; i++) {
+                releaseFrame(slots[i]);
+            }
+        }
+    }
+
+
+    private boolean installPrefetched(HeapFile file, long version, HeapPage page, int frame) {
+        PageId pid = page.getId();
+        synchronized (this.pageTable.stripe(pid)) {
+            if (this.pageTable.get(pid) >= 0 || file.writeVersion() != version) {
+                return false;
+            }
+            restoreStolenImage(page);
+            this.frames.set(frame, page);
+            this.pageTable.put(pid, frame);
+            this.policy.admit(frame);
+            return true;
+        }
+    }
     
     
     synchronized void checkConsistency(PageId pid) {
-    	int hashCode = pid.hashCode();
-    	assert (recentlyUsed.contains(hashCode));
-    	assert (cachedPages.containsKey(hashCode));
+    	assert (inCache(pid));
     	checkConsistency();
     }
     
     
+    /**
+     * Sets how long tid keeps the shared locks it takes while reading.
+     * Set it before tid takes any locks.
+     */
+    public void setIsolationLevel(TransactionId tid, IsolationLevel level) {
+        if (level == IsolationLevel.REPEATABLE_READ) {
+            this.isolationLevels.remove(tid);
+        } else {
+            this.isolationLevels.put(tid, level);
+        }
+    }
+
+
+    /** @return the isolation level tid runs at */
+    public IsolationLevel getIsolationLevel(TransactionId tid) {
+        IsolationLevel level = (tid == null) ? null : this.isolationLevels.get(tid);
+        return (level == null) ? IsolationLevel.REPEATABLE_READ : level;
+    }
+
+
+    /**
+     * Releases tid's lock on a page it has only read, before tid
+     * completes; a lock that lets it write the page is kept.  Used by
+     * scans at {@link IsolationLevel#READ_COMMITTED}.
+     */
+    public void releaseReadLock(TransactionId tid, PageId pid) {
+        this.lockManager.releaseReadLock(tid, pid);
+    }
+
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -198,6 +958,154 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId pid, Permissions permission) {
     	return this.lockManager.hasLock(tid, pid, permission);
     }
+
+
+    /** Return true if the specified transaction has a lock on the specified
+        record, or on its page or table */
+    public boolean holdsLock(TransactionId tid, RecordId rid, Permissions permission) {
+    	return this.lockManager.hasLock(tid, rid, permission);
+    }
+
+
+    /** @return true if tid has locked pid in any mode, or used it under a table lock */
+    boolean usesPage(TransactionId tid, PageId pid) {
+    	return this.lockManager.getPagesInTransaction(tid).contains(pid);
+    }
+
+
+    /**
+     * Notes the LSN of the last compensation record the log's rollback of
+     * tid wrote for each page, so that the pages its abort undoes in
+     * memory carry them.
+     */
+    void compensated(TransactionId tid, HashMap<PageId, Long> lsns) {
+    	if (!lsns.isEmpty()) {
+    		this.compensations.put(tid, lsns);
+    	}
+    }
+
+
+    // Stamps a page tid's abort undid in memory with the LSN of the
+    // compensation record for it, or with lsn if the log was not rolled
+    // back, and marks it dirty for the page writer.  Called holding the
+    // page's monitor.
+    private void compensate(TransactionId tid, HeapPage page, long lsn) {
+    	HashMap<PageId, Long> lsns = this.compensations.get(tid);
+    	Long clr = (lsns == null) ? null : lsns.get(page.getId());
+    	if (clr != null) {
+    		lsn = clr;
+    	}
+    	if (lsn != page.getLsn()) {
+    		page.setLsn(lsn);
+    	}
+    	page.markDirty(true, tid);
+    }
+
+
+    /**
+     * Notes that tid inserted tuple t into page: logs the insert, and
+     * remembers it so that it can be undone on its own if tid aborts.
+     * Called holding the page's monitor, so that the page is never
+     * written without the log record.
+     */
+    void rowInserted(TransactionId tid, HeapPage page, Tuple t) throws IOException {
+    	logRowChange(tid, page, t, true);
+    	addRowChange(tid, new RowChange(t.getRecordId(), null));
+    }
+
+
+    /**
+     * Notes that tid inserted tuples into page, which it holds
+     * exclusively: logs the inserts.  Called holding the page's monitor.
+     */
+    void rowsInserted(TransactionId tid, HeapPage page, List<Tuple> tuples) throws IOException {
+    	for (Tuple t : tuples) {
+    		logRowChange(tid, page, t, true);
+    	}
+    }
+
+
+    /**
+     * Notes that tid deleted tuple t from page: logs the delete, and
+     * remembers it so that it can be undone on its own if tid aborts.
+     * Called holding the page's monitor.
+     */
+    void rowDeleted(TransactionId tid, HeapPage page, Tuple t) throws IOException {
+    	logRowChange(tid, page, t, false);
+    	addRowChange(tid, new RowChange(t.getRecordId(), t));
+    }
+
+
+    private void logRowChange(TransactionId tid, HeapPage page, Tuple t, boolean inserted)
+        throws IOException {
+    	// an optimistic transaction's changes are logged when validated
+    	if (tid == null || isOptimistic(tid)) return;
+    	LogFile log = Database.getLogFile();
+    	long lsn = inserted ? log.logInsert(tid, t) : log.logDelete(tid, t);
+    	page.setLsn(lsn);
+    }
+
+
+    private void addRowChange(TransactionId tid, RowChange change) {
+    	// an optimistic transaction's changes are private until validated
+    	if (tid == null || isOptimistic(tid)) return;
+    	ArrayList<RowChange> changes = this.rowChanges.get(tid);
+    	if (changes == null) {
+    		changes = new ArrayList<RowChange>();
+    		this.rowChanges.put(tid, changes);
+    	}
+    	changes.add(change);
+    }
+
+
+    // Undoes tid's tuple changes, newest first, and writes the pages
+    // back: another transaction's commit may have flushed them meanwhile.
+    // The record locks tid still holds keep the pages resident, unless
+    // they are stolen; then they are read back, undone in memory and left
+    // dirty for the page writer, like pages restored as a whole.
+    private void undoRowChanges(TransactionId tid, ArrayList<RowChange> changes)
+        throws IOException {
+    	boolean force = this.writePolicy == WritePolicy.FORCE_NO_STEAL;
+    	LinkedHashSet<Page> changed = new LinkedHashSet<Page>();
+    	for (int i = changes.size() - 1; i >= 0; i--) {
+    		RowChange change = changes.get(i);
+    		HeapPage page;
+    		while (true) {
+    			page = residentPage(change.rid.getPageId());
+    			synchronized (page) {
+    				if (page.isEvicted()) continue;
+    				undoRowChange(page, change);
+    				if (!force) {
+    					compensate(tid, page, page.getLsn());
+    				}
+    			}
+    			break;
+    		}
+    		changed.add(page);
+    	}
+
+    	for (Page page : changed) {
+    		if (force) {
+    			DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+    			writePage(null, file, page);
+    		}
+    		this.versions.abort(tid, (HeapPage) page);
+    	}
+    }
+
+
+    private static void undoRowChange(HeapPage page, RowChange change) throws IOException {
+    	int slot = change.rid.tupleno();
+    	if (change.deleted == null) {
+    		page.emptySlot(slot);
+    	} else {
+    		try {
+    			page.insertTuple(change.deleted, slot);
+    		} catch (DbException e) {
+    			throw new IOException("could not undo delete of " + change.deleted + ": " + e);
+    		}
+    	}
+    }
     
     /***
      * Returns true if the specific page id is 
@@ -212,10 +1120,8 @@ public class BufferPool {
      * @return
      */
     private boolean isRecoverable(PageId pid) {
-    	int hashcode = pid.hashCode();
-    	if (this.cachedPages.containsKey(hashcode) && 
-    			this.lockManager.hasWriteLock(pid)) {
-    		Page page = this.cachedPages.get(hashcode);
+    	Page page = cachedPage(pid);
+    	if (page != null && this.lockManager.hasWriteLock(pid)) {
     		TransactionId tid = page.isDirty();
     		return tid != null;
     	}
@@ -225,7 +1131,7 @@ public class BufferPool {
     
     
     
-    private synchronized void recoverPages(TransactionId tid) {
+    private synchronized void recoverPages(TransactionId tid) throws IOException {
     	for (PageId pid : this.lockManager.getPagesInTransaction(tid)) {
     		recoverPage(tid, pid);
     	}
@@ -241,31 +1147,114 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
+    	ArrayList<RowChange> changes = (tid == null) ? null : this.rowChanges.remove(tid);
     	if (commit) {
-    		commitTransaction(tid);
+    		commitTransaction(tid, changes);
     	} else {
     		recoverPages(tid);
+    		if (changes != null) {
+    			undoRowChanges(tid, changes);
+    		}
     	}
     	
     	this.lockManager.clearAllLocks(tid);
+    	this.versions.endSnapshot(tid);
+    	if (tid != null) {
+    		this.compensations.remove(tid);
+    		this.workspaces.remove(tid);
+    		this.versions.endOptimistic(tid);
+    		this.isolationLevels.remove(tid);
+    	}
     }
 
 
-	private void commitTransaction(TransactionId tid) throws IOException {
-		for (PageId pid : this.lockManager.getPagesInTransaction(tid)) {
-			int hashcode = pid.hashCode();
-			if (isRecoverable(pid)) {
-				flushPage(pid, tid);
-			} 
+	// Flushes the pages tid changed, unless commits leave them to the page
+	// writer, and hands them to the version store, which keeps their
+	// committed images for snapshots and resets their before images
+	private void commitTransaction(TransactionId tid, ArrayList<RowChange> changes)
+			throws IOException {
+		HashMap<PageId, Set<Integer>> slots = new HashMap<PageId, Set<Integer>>();
+		if (changes != null) {
+			for (RowChange change : changes) {
+				PageId pid = change.rid.getPageId();
+				if (!slots.containsKey(pid)) {
+					slots.put(pid, new HashSet<Integer>());
+				}
+				slots.get(pid).add(change.rid.tupleno());
+			}
+		}
+
+		boolean force = this.writePolicy == WritePolicy.FORCE_NO_STEAL;
+		Set<PageId> pages = this.lockManager.getPagesInTransaction(tid);
+		if (force) {
+			for (PageId pid : pages) {
+				if (isRecoverable(pid)) {
+					flushPage(pid, tid);
+				}
+			}
+		}
+
+		ArrayList<VersionStore.Change> written = new ArrayList<VersionStore.Change>();
+		for (PageId pid : pages) {
+			// If the page wasn't in cache, it meant we only had a read
+			// lock on the page, or it was stolen. Only the pages we wrote
+			// need a new before image: the whole page if we held it
+			// exclusively, otherwise the tuples we changed under record
+			// locks.
+			Page page = cachedPage(pid);
+			if (page == null) page = stolenPage(pid);
+			if (page == null) continue;
+			if (this.lockManager.hasWriteLock(tid, pid)) {
+				written.add(new VersionStore.Change((HeapPage) page, null));
+			} else if (slots.containsKey(pid)) {
+				written.add(new VersionStore.Change((HeapPage) page, slots.get(pid)));
+			}
+		}
+		if (!written.isEmpty()) {
+			this.versions.commit(tid, written);
+		}
+		// A page stolen before the version store reset its before image
+		// was evicted with the old one
+		for (VersionStore.Change change : written) {
+			if (change.page.isEvicted()) {
+				forgetStolenImage(change.page.getId());
+			}
+		}
+
+		// Under NO-FORCE, once half the pool is dirty, the page writer
+		// writes back what the commits left behind
+		if (!force) {
+			checkDirtyPages();
+		}
+	}
+
+
+	// Returns a copy of a page stolen with uncommitted changes, as it was
+	// written, with the before image it was evicted with; null if pid was
+	// not stolen.  The copy never enters the pool.
+	private HeapPage stolenPage(PageId pid) {
+		synchronized (this.pageTable.stripe(pid)) {
+			int frame = this.pageTable.get(pid);
+			if (frame >= 0) return (HeapPage) this.frames.get(frame);
+			byte[] image = this.stolenImages.get(pid);
+			if (image == null) return null;
+			DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+			HeapPage copy = (HeapPage) file.readPage(pid);
+			copy.setBeforeImageData(image);
+			copy.markEvicted();
+			return copy;
+		}
+	}
 
 
-			// If the page wasn't in cache, it meant we only had a read lock
-			// on the page. We don't have to set before image unless we had a 
-			// write lock. Another transaction could not have a write lock
-			// Otherwise this transaction couldn't finish.
-			if (inCache(pid)) {
-				Page page = this.cachedPages.get(hashcode);
-				page.setBeforeImage();
+	// The committed page is read back with a before image of its own
+	private void forgetStolenImage(PageId pid) {
+		synchronized (this.pageTable.stripe(pid)) {
+			int frame = this.pageTable.get(pid);
+			if (frame < 0) {
+				this.stolenImages.remove(pid);
+			} else {
+				((HeapPage) this.frames.get(frame)).setBeforeImage();
 			}
 		}
 	}
@@ -273,8 +1262,8 @@ public class BufferPool {
 
     /**
      * Add a tuple to the specified table behalf of transaction tid.  Will
-     * acquire a write lock on the page the tuple is added to(Lock 
-     * acquisition is not needed for lab2). May block if the lock cannot 
+     * acquire a write lock on the record the tuple is added to, and
+     * intention locks on its page and table. May block if the lock cannot
      * be acquired.
      * 
      * Marks any pages that were dirtied by the operation as dirty by calling
@@ -292,10 +1281,26 @@ public class BufferPool {
     }
 
 
+    /**
+     * Add tuples to the specified table on behalf of transaction tid, a
+     * page at a time: each page that receives tuples is looked up and
+     * locked once and filled before the next one is used.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+    	DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+    	file.insertTuples(tid, tuples);
+    }
+
+
     /**
      * Remove the specified tuple from the buffer pool.
-     * Will acquire a write lock on the page the tuple is removed from. May block if
-     * the lock cannot be acquired.
+     * Will acquire a write lock on the tuple's record, and intention locks on
+     * its page and table. May block if the lock cannot be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit.  Does not need to update cached versions of any pages that have 
@@ -319,9 +1324,16 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-    	for (int pageHash : this.cachedPages.keySet()) {
-    		Page page = this.cachedPages.get(pageHash);
-    		flushPage(page.getId(), page.isDirty());
+    	for (int i = 0; i < this.numPages; i++) {
+    		Page page = this.frames.get(i);
+    		if (page instanceof HeapPage && page.isDirty() == null
+    		    && ((HeapPage) page).getRecLsn() != LogFile.NO_LSN) {
+    			// Left dirty by an abort under NO-FORCE
+    			DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+    			writePage(null, file, page);
+    		} else if (page != null) {
+    			flushPage(page.getId(), page.isDirty());
+    		}
     	}
     }
 
@@ -332,10 +1344,10 @@ public class BufferPool {
         cache.
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // only necessary for lab5
-    	assert (false);
-    	// Equivalent to our evictPage at the bottom
+    	Page page = cachedPage(pid);
+    	if (page != null) {
+    		evictPage(page);
+    	}
     }
 
 
@@ -345,29 +1357,35 @@ public class BufferPool {
      */
     private void flushPage(PageId pid, TransactionId tid) throws IOException {
     	DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    	int pageHash = pid.hashCode();
-    	assert (inCache(pid));
-    	Page page = this.cachedPages.get(pageHash);
+    	Page page = cachedPage(pid);
+    	assert (page != null);
     	
     	if (tid != null) {
-    		writeLog(tid, page);
     		writePage(tid, file, page);
     	}
     }
 
 
+	// Holds the page's monitor so that a tuple changed under a record
+	// lock while the page is written is not marked clean with it.  The
+	// changes were logged as they were made; the log reaches the disk
+	// before the page does.  It is forced before the monitor is taken, so
+	// that updates to the page do not wait for the flush, and again under
+	// it only if the page was updated meanwhile.
 	private void writePage(TransactionId tid, DbFile file, Page page)
 			throws IOException {
-		file.writePage(page);
-		boolean isDirty = false;
-		page.markDirty(isDirty, tid);
-	}
-
-
-	private void writeLog(TransactionId tid, Page page) throws IOException {
 		LogFile log = Database.getLogFile();
-		log.logWrite(tid, page.getBeforeImage(), page);
-		log.force();
+		long lsn = ((HeapPage) page).getLsn();
+		log.force(lsn);
+		synchronized (page) {
+			long last = ((HeapPage) page).getLsn();
+			if (last != lsn) {
+				log.force(last);
+			}
+			file.writePage(page);
+			boolean isDirty = false;
+			page.markDirty(isDirty, tid);
+		}
 	}
 
 
@@ -382,42 +1400,279 @@ public class BufferPool {
     }
 
 
+    /**
+     * Returns the dirty page table: the resident pages holding logged
+     * updates that are not on disk yet, with the LSN of the first of them.
+     * Takes no pool-wide monitor, only that of each dirty page.
+     */
+    public HashMap<PageId, Long> dirtyPages() {
+    	HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+    	for (int i = 0; i < this.numPages; i++) {
+    		Page page = this.frames.get(i);
+    		if (!(page instanceof HeapPage)) continue;
+    		long recLsn;
+    		// An update is logged and its page stamped under this monitor,
+    		// so an update logged before we look is seen
+    		synchronized (page) {
+    			recLsn = ((HeapPage) page).getRecLsn();
+    		}
+    		if (recLsn != LogFile.NO_LSN) {
+    			dirty.put(page.getId(), recLsn);
+    		}
+    	}
+    	return dirty;
+    }
+
+
+    /**
+     * Writes back, in the background and at most {@link #getWriteRate}
+     * pages a second, the dirty pages holding updates logged before lsn.
+     * Returns at once; requests made before the writer gets to them are
+     * served by one pass.
+     */
+    public void writeBack(long lsn) {
+    	synchronized (this.pageWriter) {
+    		this.writeBackLsn = Math.max(this.writeBackLsn, lsn);
+    		if (this.writeBackQueued) return;
+    		this.writeBackQueued = true;
+    	}
+    	this.pageWriter.execute(new Runnable() {
+    		public void run() {
+    			long lsn;
+    			synchronized (pageWriter) {
+    				lsn = writeBackLsn;
+    				writeBackLsn = LogFile.NO_LSN;
+    				writeBackQueued = false;
+    			}
+    			try {
+    				writeDirtyPages(lsn);
+    			} catch (Exception e) {
+    				Debug.log("writing back pages dirty before %d failed: %s", lsn, e);
+    			}
+    		}
+    	});
+    }
+
+
+    // Asks the page writer to count the dirty pages, and to write them
+    // back once they fill half the pool.  Commits asking while a count is
+    // queued share it, so a commit never visits the frames itself.
+    private void checkDirtyPages() {
+    	synchronized (this.pageWriter) {
+    		if (this.dirtyCheckQueued) return;
+    		this.dirtyCheckQueued = true;
+    	}
+    	this.pageWriter.execute(new Runnable() {
+    		public void run() {
+    			synchronized (pageWriter) {
+    				dirtyCheckQueued = false;
+    			}
+    			if (dirtyPages().size() > numPages / 2) {
+    				writeBack(Long.MAX_VALUE);
+    			}
+    		}
+    	});
+    }
+
+
+    /**
+     * Writes the dirty pages holding updates logged before lsn, oldest
+     * first, keeping to the write rate.  Pages a running transaction is
+     * changing are left for it to write.
+     *
+     * @return the number of pages written
+     */
+    int writeDirtyPages(long lsn) throws IOException {
+    	ArrayList<Map.Entry<PageId, Long>> oldest = new ArrayList<Map.Entry<PageId, Long>>();
+    	for (Map.Entry<PageId, Long> e : dirtyPages().entrySet()) {
+    		if (e.getValue() < lsn) oldest.add(e);
+    	}
+    	Collections.sort(oldest, new Comparator<Map.Entry<PageId, Long>>() {
+    		public int compare(Map.Entry<PageId, Long> a, Map.Entry<PageId, Long> b) {
+    			return a.getValue().compareTo(b.getValue());
+    		}
+    	});
+
+    	int written = 0;
+    	long started = System.nanoTime();
+    	for (Map.Entry<PageId, Long> e : oldest) {
+    		int rate = this.writeRate;
+    		if (rate > 0) {
+    			long wait = started + written * 1000000000L / rate - System.nanoTime();
+    			if (wait > 0) {
+    				try {
+    					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+    				} catch (InterruptedException ex) {
+    					break;
+    				}
+    			}
+    		}
+    		if (writeBackPage(e.getKey())) written++;
+    	}
+    	return written;
+    }
+
+
+    // Writes pid if it is still dirty and no transaction may be changing
+    // it.  An aborting transaction restores its pages before it releases
+    // its locks, so a page found unlocked holds no aborted updates.
+    private boolean writeBackPage(PageId pid) throws IOException {
+    	Page page = cachedPage(pid);
+    	if (page == null) return false;
+    	// Forced before the page's monitor is taken, as in writePage
+    	Database.getLogFile().force(((HeapPage) page).getLsn());
+    	synchronized (page) {
+    		if (this.lockManager.isWriteLocked(pid)
+    		    || ((HeapPage) page).getRecLsn() == LogFile.NO_LSN) {
+    			return false;
+    		}
+    		DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    		writePage(null, file, page);
+    		return true;
+    	}
+    }
+
+
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Only clean pages that no transaction holds exclusively are evicted,
+     * so nothing needs to be flushed.  Under STEAL, if there are none, a
+     * dirty page is written and evicted instead.  Victims are chosen one
+     * eviction at a time, on evictionLock; a stolen page is written
+     * without it.  The caller must not hold freeFrames.
+     *
+     * @return the emptied frame
      */
-    private synchronized void evictPage() throws DbException {
-    	assert (this.cachedPages.size() == this.recentlyUsed.size());
-    	assert (this.recentlyUsed.size() <= this.numPages);
-    	
-    	//System.out.println("Evicting page unmber of pages: " + this.numPthis.ges);
+    private int evictPage() throws DbException {
+    	while (true) {
+    		int frame;
+    		synchronized (this.evictionLock) {
+    			frame = this.policy.evict(new ReplacementPolicy.Evictor() {
+    				public boolean tryEvict(int frame) {
+    					return tryEvictFrame(frame);
+    				}
+    			});
+    			if (frame >= 0) {
+    				this.policy.remove(frame);
+    				return frame;
+    			}
+    			if (this.writePolicy == WritePolicy.STEAL_NO_FORCE) {
+    				// Only chosen here; pinned so that no other eviction
+    				// takes it while it is written
+    				frame = this.policy.evict(new ReplacementPolicy.Evictor() {
+    					public boolean tryEvict(int frame) {
+    						return !stealing.get(frame) && frames.get(frame) instanceof HeapPage;
+    					}
+    				});
+    			}
+    			if (frame < 0) {
+    				throw new DbException("Cannot evict a page. All in transaction");
+    			}
+    			this.stealing.set(frame);
+    		}
+
+    		boolean stolen = false;
+    		try {
+    			stolen = stealFrame(frame);
+    		} finally {
+    			synchronized (this.evictionLock) {
+    				this.stealing.clear(frame);
+    				if (stolen) this.policy.remove(frame);
+    			}
+    		}
+    		if (stolen) return frame;
+    		// The page was changed again or evicted meanwhile: choose again
+    	}
+    }
+
+
+    private boolean tryEvictFrame(int frame) {
+    	Page page = this.frames.get(frame);
+    	return page != null && tryEvictFrame(frame, page);
+    }
+
+
+    // Empties frame if it still holds page and page can be evicted.  The
+    // caller holds evictionLock.
+    private boolean tryEvictFrame(int frame, Page page) {
+    	if (this.stealing.get(frame)) return false;
+
+    	PageId pid = page.getId();
+    	synchronized (this.pageTable.stripe(pid)) {
+    		// The frame may have been refilled since we looked at it
+    		if (this.pageTable.get(pid) != frame || this.frames.get(frame) != page) {
+    			return false;
+    		}
+    		if (this.lockManager.isWriteLocked(pid)) {
+    			return false;
+    		}
+    		// Checked under the page's monitor, so that nobody changes the
+    		// page between the check and its eviction
+    		synchronized (page) {
+    			if (page.isDirty() != null || isChanged(page)) {
+    				return false;
+    			}
+    			this.pageTable.remove(pid);
+    			this.frames.set(frame, null);
+    			detach(page);
+    		}
+    		return true;
+    	}
+    }
+
+
+    // True if page holds changes that are not on disk, or that are not
+    // committed
+    private static boolean isChanged(Page page) {
+    	return page instanceof HeapPage
+    	    && (((HeapPage) page).getRecLsn() != LogFile.NO_LSN || ((HeapPage) page).isChanged());
+    }
+
+
+    // Writes the page in frame if it is dirty, then evicts it like
+    // tryEvictFrame, but even if a running transaction changed it.  The
+    // write forces the log up to the page's LSN first, and takes no
+    // pool-wide monitor.  The before image of uncommitted changes is kept
+    // until the page is read back.  Returns false if the page was changed
+    // again or evicted meanwhile; a failed write throws.
+    private boolean stealFrame(int frame) throws DbException {
+    	Page page = this.frames.get(frame);
+    	if (!(page instanceof HeapPage)) return false;
+    	HeapPage heapPage = (HeapPage) page;
+    	PageId pid = page.getId();
     	try {
-    		for (int i = 0; i < this.numPages; i++) {
-    			int lastUsed  =this.recentlyUsed.removeLast();
-    			assert (this.cachedPages.containsKey(lastUsed));
-    			Page page = this.cachedPages.get(lastUsed);
-    			assert (page.getId().hashCode() == lastUsed);
-    			
-    			if (page.isDirty() == null) {
-    				flushPage(page.getId(), null);
-        			this.cachedPages.remove(lastUsed);
-        			//System.out.println("Evicting page: " + page.getId().pageNumber());
-        			return;
-    			} else {
-    				this.recentlyUsed.addFirst(lastUsed);
-    				assert (this.cachedPages.size() == this.recentlyUsed.size());
+    		// Forced before the page's monitor is taken, as in writePage
+    		Database.getLogFile().force(heapPage.getLsn());
+    		synchronized (page) {
+    			if (heapPage.isEvicted()) return false;
+    			if (page.isDirty() != null || heapPage.getRecLsn() != LogFile.NO_LSN) {
+    				DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    				writePage(null, file, page);
     			}
     		}
-    		
-    		throw new DbException("Cannot evict a page. All in transaction");
     	} catch (IOException e) {
-    		System.out.println("Error evicting page");
-    		System.out.println(e.getMessage());
-    		System.exit(1);
+    		throw new DbException("could not write " + pid + " to steal its frame: " + e);
+    	}
+
+    	synchronized (this.pageTable.stripe(pid)) {
+    		if (this.pageTable.get(pid) != frame || this.frames.get(frame) != page) {
+    			return false;
+    		}
+    		synchronized (page) {
+    			// Changed again since it was written
+    			if (page.isDirty() != null || heapPage.getRecLsn() != LogFile.NO_LSN) {
+    				return false;
+    			}
+    			if (heapPage.isChanged()) {
+    				this.stolenImages.put(pid, heapPage.getBeforeImageData());
+    			}
+    			this.pageTable.remove(pid);
+    			this.frames.set(frame, null);
+    			detach(page);
+    		}
+    		return true;
     	}
     }
-    
-   
 
 
-} 
+}
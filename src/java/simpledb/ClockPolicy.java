@@ -0,0 +1,55 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CLOCK (second chance) replacement.  A hit only sets the frame's
+ * reference bit; the clock hand clears bits as it sweeps and evicts the
+ * first frame it finds unreferenced.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    private final int numFrames;
+    private final AtomicIntegerArray referenced;
+    private int hand; // only touched by evict(), which the pool serializes
+
+    public ClockPolicy(int numFrames) {
+        this.numFrames = numFrames;
+        this.referenced = new AtomicIntegerArray(numFrames);
+        this.hand = 0;
+    }
+
+    public void admit(int frame) {
+        referenced.set(frame, 1);
+    }
+
+    public void access(int frame) {
+        // Skip the write when the bit is already set so that hot frames
+        // do not bounce their cache line between cores
+        if (referenced.get(frame) == 0) {
+            referenced.lazySet(frame, 1);
+        }
+    }
+
+    public void remove(int frame) {
+        referenced.set(frame, 0);
+    }
+
+    public int evict(Evictor evictor) {
+        // Two sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * numFrames; i++) {
+            int frame = hand;
+            hand = (hand + 1) % numFrames;
+
+            if (referenced.get(frame) != 0) {
+                referenced.set(frame, 0);
+                continue;
+            }
+
+            if (evictor.tryEvict(frame)) {
+                return frame;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -3,6 +3,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -19,6 +20,17 @@ public interface DbFile {
      */
     public  Page readPage(PageId id);
 
+    /**
+     * Read the specified page from disk into frame, a buffer of
+     * BufferPool.PAGE_SIZE bytes owned by the BufferPool, and return a
+     * page backed by it.  Files whose pages cannot live in a frame may
+     * ignore frame and behave like {@link #readPage(PageId)}.
+     *
+     * @throws IllegalArgumentException if the page does not exist in this file.
+     * @see FrameArena
+     */
+    public Page readPage(PageId id, ByteBuffer frame);
+
     /**
      * Push the specified page to disk.
      *
@@ -43,6 +55,22 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts all the tuples of the iterator into the file on behalf of
+     * transaction, filling each page it writes to before moving on to the
+     * next, so that each affected page is looked up and locked only once.
+     * May block until the locks can be acquired.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add.  Each is updated to reflect that it
+     *          is now stored in this file.
+     * @return An ArrayList contain the pages that were modified
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException;
+
     /**
      * Removes the specifed tuple from the file on behalf of the specified
      * transaction.
@@ -0,0 +1,35 @@
+package simpledb;
+
+/**
+ * How the {@link TransactionLockManager} keeps transactions that wait for
+ * each other's locks from waiting forever.
+ * <p>
+ * The prevention policies order transactions by their {@link TransactionId}:
+ * a smaller id is an older transaction.  They never search the waits-for
+ * graph, and abort more transactions than detection does, but how often
+ * they abort and how long a transaction can wait are easy to predict.
+ */
+public enum DeadlockPolicy {
+    /**
+     * Transactions wait for as long as it takes; each new wait is checked
+     * for a cycle in the waits-for graph, and one transaction on a cycle is
+     * aborted.  Only transactions that really are deadlocked abort.
+     */
+    DETECT,
+
+    /**
+     * An older transaction that needs a lock held by younger ones wounds
+     * them: they abort at their next lock request, or at once if they are
+     * waiting.  A younger transaction waits for older ones.
+     */
+    WOUND_WAIT,
+
+    /**
+     * An older transaction waits for younger ones; a younger transaction
+     * that needs a lock held by an older one dies (aborts) at once.
+     */
+    WAIT_DIE,
+
+    /** A transaction that cannot get a lock at once aborts; nobody waits. */
+    NO_WAIT
+}
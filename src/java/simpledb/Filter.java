@@ -58,13 +58,11 @@ public class Filter extends Operator {
 
 	@Override
 	public DbIterator[] getChildren() {
-		// TODO Auto-generated method stub
-		return null;
+		return new DbIterator[] { this.child };
 	}
 
 	@Override
 	public void setChildren(DbIterator[] children) {
-		// TODO Auto-generated method stub
-		
+		this.child = children[0];
 	}
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameArena is a preallocated, off-heap region of PAGE_SIZE frames used by
+ * the BufferPool to hold page contents outside of the Java heap.  Pages
+ * backed by a frame (see {@link HeapPage#HeapPage(HeapPageId, ByteBuffer)})
+ * decode their tuples straight out of it, so the heap cost of a resident
+ * page no longer grows with the number of tuples on it.
+ * <p>
+ * The arena is split into chunks so that pools larger than 2GB can be
+ * addressed with int-indexed ByteBuffers.
+ */
+public class FrameArena {
+    private static final int FRAMES_PER_CHUNK = 16384; // 64MB chunks
+
+    private final ByteBuffer[] frames;
+
+    /**
+     * Allocates numFrames frames of BufferPool.PAGE_SIZE bytes each.
+     */
+    public FrameArena(int numFrames) {
+        this.frames = new ByteBuffer[numFrames];
+
+        ByteBuffer chunk = null;
+        for (int i = 0; i < numFrames; i++) {
+            int inChunk = i % FRAMES_PER_CHUNK;
+            if (inChunk == 0) {
+                int chunkFrames = Math.min(FRAMES_PER_CHUNK, numFrames - i);
+                chunk = ByteBuffer.allocateDirect(chunkFrames * BufferPool.PAGE_SIZE);
+            }
+
+            ByteBuffer frame = chunk.duplicate();
+            frame.position(inChunk * BufferPool.PAGE_SIZE);
+            frame.limit((inChunk + 1) * BufferPool.PAGE_SIZE);
+            this.frames[i] = frame.slice();
+        }
+    }
+
+    /** @return the number of frames in the arena */
+    public int numFrames() {
+        return frames.length;
+    }
+
+    /**
+     * @return the PAGE_SIZE buffer of the given frame, with position 0 and
+     *   limit PAGE_SIZE
+     */
+    public ByteBuffer frame(int frame) {
+        ByteBuffer buf = frames[frame];
+        buf.clear();
+        return buf;
+    }
+}
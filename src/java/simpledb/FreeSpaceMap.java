@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FreeSpaceMap records, one bit per page, which pages of a HeapFile have
+ * at least one empty tuple slot, so that inserts find a page with room
+ * without looking at every page.  The map is kept in a file next to the
+ * table (table.dat gets table.fsm) and survives restarts.
+ * <p>
+ * The map is only a hint.  A page marked free may have been filled since,
+ * so callers check the page itself before using it and clear the bit if
+ * it is full.  The file is brought up to date whenever a page is written;
+ * if it is missing, older than the table file, or covers fewer pages than
+ * the table has, the missing part is rebuilt from the page headers.
+ */
+public class FreeSpaceMap {
+    // Layout: the number of pages covered, then the bitmap as longs
+    private static final int HEADER_SIZE = 4;
+
+    /** Reads whether a page on disk has an empty slot; used to rebuild the map. */
+    public interface PageScanner {
+        public boolean hasFreeSlots(int pageNumber) throws IOException;
+    }
+
+    private final FileChannel channel;
+    private long[] words;
+    private int numPages;
+    private int freePages;
+    private int hint; // no word below this one has a bit set
+
+    /**
+     * Opens (creating it if necessary) the free-space map of dataFile,
+     * which currently has numPages pages.
+     */
+    public static FreeSpaceMap open(File dataFile, int numPages, PageScanner scanner)
+        throws IOException {
+        File mapFile = mapFileFor(dataFile);
+        boolean current = mapFile.exists() && mapFile.lastModified() >= dataFile.lastModified();
+
+        FreeSpaceMap map = new FreeSpaceMap(new RandomAccessFile(mapFile, "rw").getChannel());
+        int valid = current ? map.load(numPages) : 0;
+        for (int i = valid; i < numPages; i++) {
+            map.setBit(i, scanner.hasFreeSlots(i));
+        }
+        map.numPages = numPages;
+        if (valid < numPages) {
+            map.writeAll();
+        }
+        return map;
+    }
+
+    /** @return the file holding the free-space map of dataFile */
+    public static File mapFileFor(File dataFile) {
+        String name = dataFile.getName();
+        if (name.endsWith(".dat")) {
+            name = name.substring(0, name.length() - ".dat".length());
+        }
+        return new File(dataFile.getAbsoluteFile().getParentFile(), name + ".fsm");
+    }
+
+    private FreeSpaceMap(FileChannel channel) {
+        this.channel = channel;
+        this.words = new long[1];
+        this.numPages = 0;
+        this.freePages = 0;
+        this.hint = 0;
+    }
+
+    // Reads the map from disk; returns how many of the table's pages it
+    // covers
+    private int load(int tablePages) throws IOException {
+        if (channel.size() < HEADER_SIZE) return 0;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        int covered = Math.min(header.getInt(0), tablePages);
+        if (covered <= 0) return 0;
+
+        ByteBuffer bitmap = ByteBuffer.allocate(wordsFor(covered) * 8);
+        if (channel.size() < HEADER_SIZE + bitmap.capacity()) return 0;
+        readFully(bitmap, HEADER_SIZE);
+        for (int i = 0; i < covered; i++) {
+            long word = bitmap.getLong((i >>> 6) * 8);
+            setBit(i, (word & (1L << i)) != 0);
+        }
+        return covered;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static int wordsFor(int pages) {
+        return (pages + 63) >>> 6;
+    }
+
+    private void setBit(int pageNumber, boolean free) {
+        int w = pageNumber >>> 6;
+        if (w >= words.length) {
+            long[] grown = new long[Math.max(words.length * 2, w + 1)];
+            System.arraycopy(words, 0, grown, 0, words.length);
+            words = grown;
+        }
+
+        long mask = 1L << pageNumber;
+        boolean wasFree = (words[w] & mask) != 0;
+        if (free && !wasFree) {
+            words[w] |= mask;
+            freePages++;
+            hint = Math.min(hint, w);
+        } else if (!free && wasFree) {
+            words[w] &= ~mask;
+            freePages--;
+        }
+    }
+
+    /** @return the number of pages the map covers */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /** @return true if the page is marked as having an empty slot */
+    public synchronized boolean isFree(int pageNumber) {
+        if (pageNumber >= numPages) return false;
+        return (words[pageNumber >>> 6] & (1L << pageNumber)) != 0;
+    }
+
+    /**
+     * @return the lowest numbered page marked as having an empty slot, or
+     *   -1 if there is none.  Amortized O(1): the search resumes where the
+     *   previous one stopped.
+     */
+    public synchronized int findFree() {
+        if (freePages == 0) return -1;
+
+        while (words[hint] == 0) {
+            hint++;
+        }
+        return (hint << 6) + Long.numberOfTrailingZeros(words[hint]);
+    }
+
+    /**
+     * Marks the page as having (or not having) an empty slot, in memory
+     * only.  Pages past the end of the map extend it.
+     */
+    public synchronized void mark(int pageNumber, boolean free) {
+        setBit(pageNumber, free);
+        numPages = Math.max(numPages, pageNumber + 1);
+    }
+
+    /**
+     * Marks the page and writes its part of the map to disk.  Called when
+     * the page itself is written, so the map on disk follows the table.
+     */
+    public synchronized void update(int pageNumber, boolean free) throws IOException {
+        int before = numPages;
+        mark(pageNumber, free);
+
+        ByteBuffer word = ByteBuffer.allocate(8);
+        word.putLong(0, words[pageNumber >>> 6]);
+        writeFully(word, HEADER_SIZE + (long) (pageNumber >>> 6) * 8);
+        if (numPages != before) {
+            writeHeader();
+        }
+    }
+
+    private void writeAll() throws IOException {
+        int n = wordsFor(numPages);
+        ByteBuffer bitmap = ByteBuffer.allocate(n * 8);
+        for (int i = 0; i < n; i++) {
+            bitmap.putLong(i * 8, words[i]);
+        }
+        writeFully(bitmap, HEADER_SIZE);
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, numPages);
+        writeFully(header, 0);
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+    }
+}
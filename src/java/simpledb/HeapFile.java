@@ -3,9 +3,11 @@ package simpledb;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -22,7 +24,23 @@ public class HeapFile implements DbFile {
     private File file;
     private TupleDesc tupleDesc;
     private FileChannel fileChannel;
-    private HashMap<Integer, Boolean> freePage;
+    // Which pages have room for another tuple; opened on first use
+    private FreeSpaceMap freeSpace;
+    private final Object freeSpaceLock = new Object();
+    // Bumped before and after every page write, so it is odd while a
+    // write is in progress; lets read-ahead detect that it raced a write
+    private final AtomicLong writeVersion = new AtomicLong();
+    // Scattering reads go through the channel position
+    private final Object scatterLock = new Object();
+
+    // Pages per mapped segment; a MappedByteBuffer is limited to 2GB
+    private static final int MAP_SEGMENT_PAGES = 1 << 18;
+    private final boolean memoryMapped;
+    private final Object mapLock = new Object();
+    // Written before mappedPages, and read after it, so a reader that sees
+    // a page count also sees segments covering it
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile int mappedPages = 0;
     
     /**
      * Constructs a heap file backed by the specified file.
@@ -30,38 +48,64 @@ public class HeapFile implements DbFile {
      * @param f the file that stores the on-disk backing store for this heap file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally
+     * serving page reads from a read-only memory mapping of it.  Mapped
+     * pages are slices of the mapping, so a page miss neither copies nor
+     * allocates page-sized buffers; a page takes a private copy the first
+     * time it is modified.  Writes still go through the file channel, and
+     * the mapping is extended when the file grows.
+     *
+     * @param f the file that stores the on-disk backing store for this heap file.
+     * @param memoryMapped true to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         file = f;
         tupleDesc = td;
+        this.memoryMapped = memoryMapped;
                         
         try {
         	RandomAccessFile raf = new RandomAccessFile(f, "rw");
         	fileChannel = raf.getChannel();
-        	freePage = new HashMap<Integer, Boolean>();
-        	markNonFreePages();
-        	
         } catch (IOException e) {
         	System.err.println("error reading channel");
         	System.exit(1);
         }
     }
     
-    /***
-     * If we create a new heap file, we assume
-     * that every page in the file descriptor is already full 
+    /**
+     * Returns the free-space map of this file, opening it (and rebuilding
+     * it from the page headers if it is missing or stale) on first use.
+     * Tables that are only read never touch it.
      */
-    private void markNonFreePages() {
-    	for (int i = 0; i < numPages(); i++) {
-    		boolean isFree = false;
-    		markFree(i, isFree);
-    	}
-    }
-    
-    private synchronized void markFree(int pageNumber, boolean isFree) {
-    	freePage.put(pageNumber, isFree);
+    FreeSpaceMap getFreeSpaceMap() throws IOException {
+        synchronized (freeSpaceLock) {
+            if (freeSpace == null) {
+                freeSpace = FreeSpaceMap.open(file, numPages(), new FreeSpaceMap.PageScanner() {
+                    public boolean hasFreeSlots(int pageNumber) throws IOException {
+                        return pageHasFreeSlots(pageNumber);
+                    }
+                });
+            }
+            return freeSpace;
+        }
     }
-    
-    private synchronized boolean isFree(int pageNumber) {
-    	return freePage.get(pageNumber);
+
+
+    // Reads just the header of a page on disk
+    private boolean pageHasFreeSlots(int pageNumber) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HeapPage.getHeaderSize(tupleDesc));
+        long offset = (long) BufferPool.PAGE_SIZE * pageNumber + HeapPage.LSN_SIZE;
+        while (header.hasRemaining()) {
+            if (fileChannel.read(header, offset + header.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return HeapPage.hasFreeSlots(tupleDesc, header.array());
     }
 
 
@@ -97,9 +141,67 @@ public class HeapFile implements DbFile {
     }
 
 
+    /** @return true if pages are read through a memory mapping */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+
+    // Returns the mapped bytes of the page, extending the mapping if the
+    // file grew since it was last mapped
+    private ByteBuffer mappedPage(int pageNumber) throws IOException {
+        if (pageNumber >= mappedPages) {
+            remap();
+            if (pageNumber >= mappedPages) {
+                throw new IllegalArgumentException("page " + pageNumber + " is past the end of the file");
+            }
+        }
+
+        ByteBuffer page = segments[pageNumber / MAP_SEGMENT_PAGES].duplicate();
+        int offset = (pageNumber % MAP_SEGMENT_PAGES) * BufferPool.PAGE_SIZE;
+        page.position(offset);
+        page.limit(offset + BufferPool.PAGE_SIZE);
+        return page.slice();
+    }
+
+
+    // Maps the pages added since the last call.  Full segments never
+    // change, so only the last, partial one and any new ones are mapped.
+    private void remap() throws IOException {
+        synchronized (mapLock) {
+            int pages = numPages();
+            if (pages <= mappedPages) return;
+
+            int numSegments = (pages + MAP_SEGMENT_PAGES - 1) / MAP_SEGMENT_PAGES;
+            MappedByteBuffer[] remapped = Arrays.copyOf(segments, numSegments);
+            for (int i = mappedPages / MAP_SEGMENT_PAGES; i < numSegments; i++) {
+                int segmentPages = Math.min(MAP_SEGMENT_PAGES, pages - i * MAP_SEGMENT_PAGES);
+                remapped[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY,
+                                              (long) i * MAP_SEGMENT_PAGES * BufferPool.PAGE_SIZE,
+                                              (long) segmentPages * BufferPool.PAGE_SIZE);
+            }
+
+            segments = remapped;
+            mappedPages = pages;
+        }
+    }
+
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         int pageNumber = pid.pageNumber();
+        if (memoryMapped) {
+            try {
+                boolean ownsData = false;
+                return new HeapPage((HeapPageId) pid, mappedPage(pageNumber), ownsData);
+            } catch (IOException e) {
+                System.err.println("Could not map page");
+                e.printStackTrace();
+                assert (false);
+                return null;
+            }
+        }
+
         int offset = BufferPool.PAGE_SIZE * pageNumber;
         //System.out.println("Reading page: " + pageNumber);
                 
@@ -119,6 +221,77 @@ public class HeapFile implements DbFile {
     }
 
 
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid, ByteBuffer frame) {
+        int pageNumber = pid.pageNumber();
+        long offset = (long) BufferPool.PAGE_SIZE * pageNumber;
+
+        try {
+            assert (offset + BufferPool.PAGE_SIZE <= fileChannel.size());
+            frame.clear();
+            if (memoryMapped) {
+                frame.put(mappedPage(pageNumber));
+            }
+            while (frame.hasRemaining()) {
+                if (fileChannel.read(frame, offset + frame.position()) < 0) {
+                    throw new IllegalArgumentException("page " + pageNumber + " is past the end of the file");
+                }
+            }
+            frame.clear();
+
+            return new HeapPage((HeapPageId) pid, frame);
+        } catch (IOException e) {
+            System.err.println("Could not read page");
+            e.printStackTrace();
+            assert (false);
+            return null;
+        }
+    }
+
+
+    /**
+     * Reads consecutive pages starting at firstPage into the given
+     * PAGE_SIZE buffers with a single scattering read.  Used by the
+     * BufferPool to read ahead of sequential scans.
+     *
+     * @return the pages read, fewer than frames.length if the file ends
+     *   first
+     */
+    HeapPage[] readPages(int firstPage, ByteBuffer[] frames) throws IOException {
+        long offset = (long) BufferPool.PAGE_SIZE * firstPage;
+        long total = (long) BufferPool.PAGE_SIZE * frames.length;
+        long read = 0;
+
+        for (ByteBuffer frame : frames) {
+            frame.clear();
+        }
+        synchronized (scatterLock) {
+            fileChannel.position(offset);
+            while (read < total) {
+                long n = fileChannel.read(frames);
+                if (n < 0) break;
+                read += n;
+            }
+        }
+
+        HeapPage[] pages = new HeapPage[(int) (read / BufferPool.PAGE_SIZE)];
+        for (int i = 0; i < pages.length; i++) {
+            frames[i].clear();
+            pages[i] = new HeapPage(new HeapPageId(getId(), firstPage + i), frames[i]);
+        }
+        return pages;
+    }
+
+
+    /**
+     * @return a counter that changes whenever a page of this file is
+     *   written, and is odd while a write is in progress
+     */
+    long writeVersion() {
+        return writeVersion.get();
+    }
+
+
     // see DbFile.java for javadocs
     public void writePage(Page page) {
     	// We can indirectly write a new page here without allocating one
@@ -126,14 +299,18 @@ public class HeapFile implements DbFile {
     	int offset = pageNumber * BufferPool.PAGE_SIZE;
     	    	
     	boolean isFree = ((HeapPage) page).hasFreeSlots();
-    	markFree(pageNumber, isFree);
     	
+    	writeVersion.incrementAndGet();
     	try {
     		ByteBuffer buffer = ByteBuffer.wrap(page.getPageData());
     		fileChannel.write(buffer, offset);
+    		// After the page, so the map on disk is never older than it
+    		getFreeSpaceMap().update(pageNumber, isFree);
     	} catch (IOException e) {
     		System.out.println("error writing page: " + e);
     		System.exit(1);
+    	} finally {
+    		writeVersion.incrementAndGet();
     	}
     }
 
@@ -159,6 +336,9 @@ public class HeapFile implements DbFile {
     	try {
     		HeapPage newPage = new HeapPage(pid, data);
     		writePage(newPage);
+    		if (memoryMapped) {
+    			remap();
+    		}
     		return newPage;
     	} catch (IOException e) {
     		System.out.println("Error Allocating new page");
@@ -167,40 +347,85 @@ public class HeapFile implements DbFile {
     	return null;
     }
     
-    private synchronized HeapPage getNextFreePage(TransactionId tid)
-    	throws DbException, TransactionAbortedException {
+    /**
+     * Returns a page with an empty slot, locked by tid in the given mode.
+     * The free-space map may be out of date, so a page it offers that
+     * turns out to be full is marked as such and the search goes on; if no
+     * page has room a new one is added to the file.  The lock on a full
+     * page is given back unless tid used the page before, so that a stale
+     * hint does not keep others off the page until tid completes.
+     */
+    private HeapPage getNextFreePage(TransactionId tid, LockMode mode)
+    	throws DbException, IOException, TransactionAbortedException {
     	BufferPool pool = Database.getBufferPool();
-    	//System.out.println("Number of pages: " + numPages());
-    	assert (numPages() == freePage.size());
+    	FreeSpaceMap map = getFreeSpaceMap();
     	
-    	for (int i = 0; i < this.numPages(); i++) {
-    		if (isFree(i)) {
-    			HeapPageId pid = new HeapPageId(this.getId(), i);
-    			return (HeapPage) pool.getPage(tid,  pid, Permissions.READ_ONLY);
-    		} 
+    	while (true) {
+    		int pageNumber = map.findFree();
+    		if (pageNumber < 0) {
+    			pageNumber = allocateNewPage().getId().pageNumber();
+    		}
+    		
+    		HeapPageId pid = new HeapPageId(this.getId(), pageNumber);
+    		boolean used = pool.usesPage(tid, pid);
+    		HeapPage page = (HeapPage) pool.getPage(tid, pid, mode);
+    		if (page.hasFreeSlots()) {
+    			return page;
+    		}
+    		if (!used) {
+    			pool.releasePage(tid, pid);
+    		}
+    		map.mark(pageNumber, false);
     	}
-    	
-    	HeapPage newPage = allocateNewPage();
-    	int pageNumber = newPage.getId().pageNumber();
-    	boolean isFree = true;
-    	markFree(pageNumber, isFree);
-    	//System.out.println("Allocating new page: " + pageNumber);
-    	return newPage;
+    }
+
+
+    // Puts t into an empty slot of page that tid can lock: a slot emptied
+    // by a transaction that has not completed yet stays locked by it
+    private boolean insertIntoFreeSlot(TransactionId tid, HeapPage page, Tuple t)
+        throws DbException, TransactionAbortedException {
+    	BufferPool pool = Database.getBufferPool();
+    	for (int slot = page.nextFreeSlot(0); slot >= 0; slot = page.nextFreeSlot(slot + 1)) {
+    		RecordId rid = new RecordId(page.getId(), slot);
+    		if (!pool.tryLockRecord(tid, rid, Permissions.READ_WRITE)) continue;
+    		
+    		synchronized (page) {
+    			// the page may have been evicted, or another transaction
+    			// may have filled the slot meanwhile
+    			if (page.isEvicted()) return false;
+    			if (!page.insertTuple(t, slot)) continue;
+    			page.markDirty(true,  tid);
+    			try {
+    				pool.rowInserted(tid, page, t);
+    			} catch (IOException e) {
+    				throw new DbException("could not log insert of " + t + ": " + e);
+    			}
+    		}
+    		return true;
+    	}
+    	return false;
     }
 
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-    	BufferPool pool = Database.getBufferPool();
     	//System.out.println("Inserting tuple " + t + " in transaction: " + tid);
-    	PageId pageId = getNextFreePage(tid).getId();
-    	HeapPage freePage = (HeapPage) pool.getPage(tid, pageId, Permissions.READ_WRITE);
-    	assert (freePage.hasFreeSlots());
-    	freePage.insertTuple(t);
+    	FreeSpaceMap map = getFreeSpaceMap();
+    	HeapPage freePage;
+    	while (true) {
+    		// Only the new record is write locked, so others can use the page
+    		freePage = getNextFreePage(tid, LockMode.IX);
+    		if (insertIntoFreeSlot(tid, freePage, t)) break;
+    		// Evicted before we used it, so look again
+    		if (freePage.isEvicted()) continue;
+    		// Its empty slots are all locked; the map is corrected when
+    		// the page is next written
+    		boolean isFree = false;
+    		map.mark(freePage.getId().pageNumber(), isFree);
+    	}
     	//System.out.println("Inserted tuple onto page: " + freePage.getId().pageNumber());
-    	freePage.markDirty(true,  tid);
-    	markFree(pageId.pageNumber(), freePage.hasFreeSlots());
+    	map.mark(freePage.getId().pageNumber(), freePage.hasFreeSlots());
     	
     	ArrayList<Page> modifiedPages = new ArrayList<Page>();
     	modifiedPages.add(freePage);
@@ -209,18 +434,70 @@ public class HeapFile implements DbFile {
     }
 
 
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuples(TransactionId tid, final Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+    	FreeSpaceMap map = getFreeSpaceMap();
+    	ArrayList<Page> modifiedPages = new ArrayList<Page>();
+    	
+    	while (tuples.hasNext()) {
+    		// One free-page search and one lock per page, not per tuple
+    		HeapPage page = getNextFreePage(tid, LockMode.X);
+    		final ArrayList<Tuple> added = new ArrayList<Tuple>();
+    		synchronized (page) {
+    			// evicted since we got it: look again
+    			if (page.isEvicted()) continue;
+    			page.insertTuples(new Iterator<Tuple>() {
+    				public boolean hasNext() {
+    					return tuples.hasNext();
+    				}
+    				public Tuple next() {
+    					Tuple t = tuples.next();
+    					added.add(t);
+    					return t;
+    				}
+    				public void remove() {
+    					throw new UnsupportedOperationException();
+    				}
+    			});
+    			page.markDirty(true,  tid);
+    			Database.getBufferPool().rowsInserted(tid, page, added);
+    		}
+    		map.mark(page.getId().pageNumber(), page.hasFreeSlots());
+    		modifiedPages.add(page);
+    	}
+    	return modifiedPages;
+    }
+
+
     // see DbFile.java for javadocs
     public HeapPage deleteTuple(TransactionId tid, Tuple t)
         throws DbException, TransactionAbortedException {
     	BufferPool pool = Database.getBufferPool();
     	RecordId rid = t.getRecordId();
     	HeapPage page=null;
-		page = (HeapPage) pool.getPage(tid,  rid.getPageId(), Permissions.READ_WRITE);
-    
-    	markFree(page.getId().pageNumber(), page.hasFreeSlots());
-    	    	
-    	page.deleteTuple(t);
-    	page.markDirty(true,  tid);
+    	while (true) {
+    		page = (HeapPage) pool.getRecordPage(tid, rid, Permissions.READ_WRITE);
+    		synchronized (page) {
+    			// evicted since we got it: change the copy read back
+    			if (page.isEvicted()) continue;
+    			page.deleteTuple(t);
+    			page.markDirty(true,  tid);
+    			try {
+    				pool.rowDeleted(tid, page, t);
+    			} catch (IOException e) {
+    				throw new DbException("could not log delete of " + t + ": " + e);
+    			}
+    		}
+    		break;
+    	}
+    	
+    	try {
+    		boolean isFree = true;
+    		getFreeSpaceMap().mark(page.getId().pageNumber(), isFree);
+    	} catch (IOException e) {
+    		throw new DbException("could not open free space map: " + e);
+    	}
     	return page;
     }
 
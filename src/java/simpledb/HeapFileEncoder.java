@@ -1,7 +1,12 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -66,6 +71,7 @@ public class HeapFileEncoder {
       convert(inFile,outFile,npagebytes,numFields,typeAr,',');
   }
 
+
    /** Convert the specified input text file into a binary
     * page file. <br>
     * Assume format of the input file is (note that only integer fields are
@@ -76,7 +82,8 @@ public class HeapFileEncoder {
     * where each row represents a tuple.<br>
     * <p>
     * The format of the output file will be as specified in HeapPage and
-    * HeapFile.
+    * HeapFile.  Large inputs are encoded in parallel, one worker per
+    * processor; see {@link #convert(File, File, int, int, Type[], char, int, boolean)}.
     *
     * @see HeapPage
     * @see HeapFile
@@ -90,137 +97,458 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      int numThreads = Runtime.getRuntime().availableProcessors();
+      boolean computeHistograms = false;
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+              numThreads, computeHistograms);
+  }
+
+  /** Bytes of input text encoded by one worker task. */
+  static final int CHUNK_BYTES = 4 << 20;
+
+  /** Values of each column that each chunk adds to the histogram sample. */
+  private static final int SAMPLE_PER_CHUNK = 1024;
+
+   /** Convert the specified input text file into a binary page file, as
+    * above, streaming it through a pool of workers.
+    * <p>
+    * The input is split into chunks of whole lines.  Each worker counts the
+    * records of its chunk, learns from the chunks before it where its pages
+    * start, and then encodes and writes its pages one at a time with
+    * positional writes, so memory use does not depend on the input size.
+    * Each chunk starts a new page, so all pages but the last of each chunk
+    * are full.
+    * <p>
+    * If computeHistograms is set, the same pass also builds an
+    * {@link IntHistogram} with {@link TableStats#NUM_HIST_BINS} buckets for
+    * each integer column, from a sample of the values of every chunk,
+    * weighted by the number of records the chunk has.
+    *
+    * @param numThreads the number of workers
+    * @param computeHistograms true to build histograms of the int columns
+    * @return if computeHistograms is set, a histogram per column (null for
+    *   non-integer columns), otherwise null
+    * @throws IOException if the input/output file can't be opened or a
+    *   malformed input line is encountered
+    */
+  public static IntHistogram[] convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator,
+                 int numThreads, boolean computeHistograms)
+      throws IOException {
+      return convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+                     numThreads, computeHistograms, CHUNK_BYTES);
+  }
+
+  static IntHistogram[] convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator,
+                 int numThreads, boolean computeHistograms, int chunkBytes)
+      throws IOException {
+      PageLayout layout = new PageLayout(npagebytes, numFields, typeAr);
+
+      RandomAccessFile in = new RandomAccessFile(inFile, "r");
+      RandomAccessFile out = new RandomAccessFile(outFile, "rw");
+      try {
+          out.setLength(0);
+          FileChannel input = in.getChannel();
+          FileChannel output = out.getChannel();
+
+          long[] bounds = chunkBounds(input, chunkBytes);
+          ChunkEncoder[] chunks = new ChunkEncoder[bounds.length - 1];
+          for (int i = 0; i < chunks.length; i++) {
+              chunks[i] = new ChunkEncoder(layout, fieldSeparator, input, output,
+                                           bounds[i], bounds[i + 1],
+                                           i == 0 ? null : chunks[i - 1],
+                                           computeHistograms, i);
+          }
+          runAll(chunks, numThreads);
+
+          // An empty table still gets one (empty) page
+          if (chunks.length == 0 || chunks[chunks.length - 1].endPage() == 0) {
+              ChunkEncoder.writeFully(output, ByteBuffer.allocate(npagebytes), 0);
+          }
+
+          return computeHistograms ? histograms(layout, chunks) : null;
+      } finally {
+          in.close();
+          out.close();
+      }
+  }
+
+  // Returns the offsets at which chunks start, plus the input size: each
+  // boundary is moved forward to the start of the next line
+  private static long[] chunkBounds(FileChannel input, int chunkBytes) throws IOException {
+      long size = input.size();
+      ArrayList<Long> bounds = new ArrayList<Long>();
+      bounds.add(0L);
+
+      ByteBuffer buf = ByteBuffer.allocate(4096);
+      long pos = chunkBytes;
+      while (pos < size) {
+          // skip to just past the next newline
+          boolean found = false;
+          while (!found && pos < size) {
+              buf.clear();
+              int n = input.read(buf, pos);
+              if (n <= 0) break;
+              for (int i = 0; i < n; i++) {
+                  if (buf.get(i) == '\n') {
+                      pos += i + 1;
+                      found = true;
+                      break;
+                  }
+              }
+              if (!found) pos += n;
+          }
+          if (pos < size) {
+              bounds.add(pos);
+          }
+          pos += chunkBytes;
+      }
+
+      if (size > 0) {
+          bounds.add(size);
+      }
+      long[] result = new long[bounds.size()];
+      for (int i = 0; i < result.length; i++) {
+          result[i] = bounds.get(i);
+      }
+      return result;
+  }
+
+  private static void runAll(ChunkEncoder[] chunks, int numThreads) throws IOException {
+      // Tasks start in order, so a chunk only ever waits for chunks that
+      // are already running
+      ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, numThreads));
+      try {
+          ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+          for (ChunkEncoder chunk : chunks) {
+              results.add(workers.submit(chunk));
+          }
+          for (Future<Void> result : results) {
+              result.get();
+          }
+      } catch (InterruptedException e) {
+          throw new InterruptedIOException("interrupted while encoding");
+      } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) throw (IOException) cause;
+          if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+          throw new IOException("encoding failed: " + cause);
+      } finally {
+          workers.shutdownNow();
+      }
+  }
+
+  private static IntHistogram[] histograms(PageLayout layout, ChunkEncoder[] chunks) {
+      IntHistogram[] histograms = new IntHistogram[layout.numFields];
+      for (int f = 0; f < layout.numFields; f++) {
+          if (layout.types[f] != Type.INT_TYPE) continue;
+
+          int min = Integer.MAX_VALUE;
+          int max = Integer.MIN_VALUE;
+          for (ChunkEncoder chunk : chunks) {
+              min = Math.min(min, chunk.min[f]);
+              max = Math.max(max, chunk.max[f]);
+          }
+          if (min > max) {
+              min = max = 0; // no values at all
+          }
+
+          histograms[f] = new IntHistogram(TableStats.NUM_HIST_BINS, min, max);
+          for (ChunkEncoder chunk : chunks) {
+              // Each sampled value stands for seen / size records of its
+              // chunk; the weights are rounded so that they add up to them
+              int size = chunk.sampleSize();
+              for (int i = 0; i < size; i++) {
+                  long from = i * chunk.seen / size;
+                  long to = (i + 1) * chunk.seen / size;
+                  histograms[f].addValue(chunk.sample[f][i], (int) (to - from));
+              }
+          }
+      }
+      return histograms;
+  }
+
+  /** Where records and their fields go on a page. */
+  private static class PageLayout {
+      final int npagebytes;
+      final int numFields;
+      final Type[] types;
+      final int nrecbytes;
+      final int nrecords;
+      final int nheaderbytes;
+      // the page LSN comes first; encoded pages have none
+      final int nlsnbytes = HeapPage.LSN_SIZE;
+
+      PageLayout(int npagebytes, int numFields, Type[] types) {
+          this.npagebytes = npagebytes;
+          this.numFields = numFields;
+          this.types = types;
+
+          int recbytes = 0;
+          for (int i = 0; i < numFields; i++) {
+              recbytes += types[i].getLen();
+          }
+          this.nrecbytes = recbytes;
+          this.nrecords = ((npagebytes - nlsnbytes) * 8) / (nrecbytes * 8 + 1); //floor comes for free
+          // one header bit per record, rounded up to whole bytes
+          this.nheaderbytes = (nrecords + 7) / 8;
+      }
+  }
 
-      int nrecbytes = 0;
-      for (int i = 0; i < numFields ; i++) {
-          nrecbytes += typeAr[i].getLen();
-      }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
+  /**
+   * Encodes the lines in [start, end) of the input into consecutive pages
+   * of the output.
+   */
+  private static class ChunkEncoder implements Callable<Void> {
+      private final PageLayout layout;
+      private final char fieldSeparator;
+      private final FileChannel input;
+      private final FileChannel output;
+      private final long start;
+      private final long end;
+      private final ChunkEncoder previous;
+
+      // Set once this chunk knows where its pages go, or failed
+      private final CountDownLatch placed = new CountDownLatch(1);
+      private volatile boolean failed = false;
+      private int firstPage;
+      private int numPages;
+
+      private final boolean sampling;
+      private final Random random;
+      private long seen = 0;
+      final int[] min;
+      final int[] max;
+      final int[][] sample;
+
+      private byte[] field = new byte[1024];
+
+      ChunkEncoder(PageLayout layout, char fieldSeparator, FileChannel input, FileChannel output,
+                   long start, long end, ChunkEncoder previous, boolean sampling, int index) {
+          this.layout = layout;
+          this.fieldSeparator = fieldSeparator;
+          this.input = input;
+          this.output = output;
+          this.start = start;
+          this.end = end;
+          this.previous = previous;
+
+          this.sampling = sampling;
+          this.random = new Random(index);
+          this.min = new int[layout.numFields];
+          this.max = new int[layout.numFields];
+          Arrays.fill(min, Integer.MAX_VALUE);
+          Arrays.fill(max, Integer.MIN_VALUE);
+          this.sample = sampling ? new int[layout.numFields][SAMPLE_PER_CHUNK] : null;
+      }
+
+      /** @return the page after the last page of this chunk */
+      int endPage() throws IOException {
+          await();
+          return firstPage + numPages;
+      }
+
+      private void await() throws IOException {
+          try {
+              placed.await();
+          } catch (InterruptedException e) {
+              throw new InterruptedIOException("interrupted while encoding");
+          }
+          if (failed) {
+              throw new IOException("an earlier chunk failed to encode");
+          }
+      }
+
+      int sampleSize() {
+          return (int) Math.min(seen, SAMPLE_PER_CHUNK);
+      }
+
+      public Void call() throws IOException {
+          byte[] text;
+          try {
+              text = new byte[(int) (end - start)];
+              readFully(input, ByteBuffer.wrap(text), start);
+
+              int records = countRecords(text);
+              numPages = (records + layout.nrecords - 1) / layout.nrecords;
+              firstPage = (previous == null) ? 0 : previous.endPage();
+          } catch (IOException e) {
+              failed = true;
+              throw e;
+          } catch (RuntimeException e) {
+              failed = true;
+              throw e;
+          } finally {
+              placed.countDown();
+          }
+
+          encode(text);
+          return null;
+      }
+
+      private static int countRecords(byte[] text) {
+          int records = 0;
+          boolean empty = true;
+          for (byte b : text) {
+              if (b == '\n') {
+                  if (!empty) records++;
+                  empty = true;
+              } else if (b != '\r') {
+                  empty = false;
+              }
+          }
+          // the last line may lack its newline
+          return empty ? records : records + 1;
+      }
+
+      private void encode(byte[] text) throws IOException {
+          ByteBuffer page = ByteBuffer.allocate(layout.npagebytes);
+          int pageNo = firstPage;
+          int slot = 0;
+
+          int lineStart = 0;
+          for (int i = 0; i <= text.length; i++) {
+              if (i < text.length && text[i] != '\n') continue;
+
+              if (!isEmpty(text, lineStart, i)) {
+                  encodeRecord(text, lineStart, i, page, slot++);
+                  if (slot == layout.nrecords) {
+                      writePage(page, pageNo++);
+                      slot = 0;
+                  }
+              }
+              lineStart = i + 1;
+          }
+          if (slot > 0) {
+              writePage(page, pageNo++);
+          }
+          assert (pageNo == firstPage + numPages);
+      }
+
+      private static boolean isEmpty(byte[] text, int from, int to) {
+          for (int i = from; i < to; i++) {
+              if (text[i] != '\r') return false;
+          }
+          return true;
+      }
+
+      private void writePage(ByteBuffer page, int pageNo) throws IOException {
+          page.clear();
+          writeFully(output, page, (long) pageNo * layout.npagebytes);
+          Arrays.fill(page.array(), (byte) 0);
+      }
+
+      // Writes one record into slot of the page and sets its header bit
+      private void encodeRecord(byte[] text, int from, int to, ByteBuffer page, int slot)
+          throws IOException {
+          int offset = layout.nlsnbytes + layout.nheaderbytes + slot * layout.nrecbytes;
+          int sampleSlot = sampling ? nextSampleSlot() : -1;
+          int fieldNo = 0;
+          int fieldStart = from;
+          for (int i = from; i <= to; i++) {
+              if (i < to && text[i] != fieldSeparator) continue;
+
+              if (fieldNo >= layout.numFields) {
+                  throw new IOException("line has more than " + layout.numFields + " fields: "
+                                        + new String(text, from, to - from, "ISO-8859-1"));
+              }
+              Type type = layout.types[fieldNo];
+              encodeField(text, fieldStart, i, type, fieldNo, sampleSlot, page, offset);
+              offset += type.getLen();
+              fieldNo++;
+              fieldStart = i + 1;
+          }
+          if (fieldNo < layout.numFields) {
+              throw new IOException("line has fewer than " + layout.numFields + " fields: "
+                                    + new String(text, from, to - from, "ISO-8859-1"));
+          }
+
+          int headerByte = page.get(layout.nlsnbytes + slot / 8);
+          page.put(layout.nlsnbytes + slot / 8, (byte) (headerByte | (1 << (slot % 8))));
+      }
+
+      private void encodeField(byte[] text, int from, int to, Type type, int fieldNo,
+                               int sampleSlot, ByteBuffer page, int offset) throws IOException {
+          // Drop carriage returns and trim, like String.trim
+          int n = 0;
+          for (int i = from; i < to; i++) {
+              if (text[i] == '\r') continue;
+              if (n == field.length) field = Arrays.copyOf(field, n * 2);
+              field[n++] = text[i];
+          }
+          int s = 0;
+          while (s < n && (field[s] & 0xff) <= ' ') s++;
+          while (n > s && (field[n - 1] & 0xff) <= ' ') n--;
+
+          if (type == Type.INT_TYPE) {
+              int value = parseInt(field, s, n);
+              page.putInt(offset, value);
+              if (sampling) {
+                  min[fieldNo] = Math.min(min[fieldNo], value);
+                  max[fieldNo] = Math.max(max[fieldNo], value);
+                  if (sampleSlot >= 0) {
+                      sample[fieldNo][sampleSlot] = value;
+                  }
+              }
+          } else if (type == Type.STRING_TYPE) {
+              int len = Math.min(n - s, Type.STRING_LEN);
+              page.putInt(offset, len);
+              for (int i = 0; i < len; i++) {
+                  page.put(offset + 4 + i, field[s + i]);
+              }
+          }
+      }
+
+      private static int parseInt(byte[] digits, int from, int to) throws IOException {
+          long value = 0;
+          int i = from;
+          boolean negative = (i < to && digits[i] == '-');
+          if (negative) i++;
+          boolean valid = (i < to) && (to - i) <= 10;
+          for (; valid && i < to; i++) {
+              int d = digits[i] - '0';
+              valid = (d >= 0 && d <= 9);
+              value = value * 10 + d;
+          }
+          if (negative) value = -value;
+          if (valid && value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+              return (int) value;
+          }
+
+          String s = new String(digits, from, to - from, "ISO-8859-1");
+          try {
+              return Integer.parseInt(s);
+          } catch (NumberFormatException e) {
+              System.out.println ("BAD LINE : " + s);
+              return 0;
+          }
+      }
+
+      // Reservoir sampling: picks where in the sample the values of the
+      // next record go, or -1 to leave them out, so that every record of
+      // the chunk is equally likely to be sampled
+      private int nextSampleSlot() {
+          seen++;
+          if (seen <= SAMPLE_PER_CHUNK) {
+              return (int) (seen - 1);
+          }
+          long r = (random.nextLong() & Long.MAX_VALUE) % seen;
+          return (r < SAMPLE_PER_CHUNK) ? (int) r : -1;
+      }
+
+      static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+          while (buf.hasRemaining()) {
+              if (channel.read(buf, position + buf.position()) < 0) {
+                  throw new EOFException();
+              }
+          }
+      }
+
+      static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+          while (buf.hasRemaining()) {
+              channel.write(buf, position + buf.position());
+          }
+      }
   }
 }
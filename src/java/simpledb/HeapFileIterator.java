@@ -12,20 +12,51 @@ public class HeapFileIterator implements DbFileIterator {
     private Page currentPage;
     private int numPages;
     private Iterator<Tuple> tupleIterator;
+    private Predicate predicate;
+    private ScanRing ring;
+    private int lastPageRead;  // to detect sequential access
+    private int readAheadTo;   // pages below this were already requested
+    private IsolationLevel isolation;
+    private HeapPageId lockedPage; // the page read last, at READ_COMMITTED
 
 
     public HeapFileIterator(TransactionId tid, HeapFile file) {
+        this(tid, file, null);
+    }
+
+
+    // Only returns the tuples that satisfy predicate, if it is not null;
+    // the others are rejected on the page without being decoded
+    public HeapFileIterator(TransactionId tid, HeapFile file, Predicate predicate) {
+        this(tid, file, predicate, null);
+    }
+
+
+    // As above; pages that have to be read go into the frames of ring
+    // (if not null) instead of the shared buffer pool
+    public HeapFileIterator(TransactionId tid, HeapFile file, Predicate predicate,
+                            ScanRing ring) {
         transactionId = tid;
         this.file = file;
+        this.predicate = predicate;
+        this.ring = ring;
         currentPageId = 0;
+        lastPageRead = -1;
+        readAheadTo = 0;
         numPages = file.numPages();
     }
 
 
     public void open()
         throws DbException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        isolation = pool.getIsolationLevel(transactionId);
+        if (isolation == IsolationLevel.SERIALIZABLE) {
+            // Keeps others from adding tuples to pages we have not read yet
+            pool.getTableLock(transactionId, file.getId(), LockMode.S);
+        }
         currentPage = readPage(currentPageId++);
-        tupleIterator = currentPage.iterator();
+        tupleIterator = pageIterator(currentPage);
     }
 
 
@@ -38,7 +69,7 @@ public class HeapFileIterator implements DbFileIterator {
         // If we have more pages
         while (currentPageId <= (numPages - 1)) {
         	currentPage = readPage(currentPageId++);
-        	tupleIterator = currentPage.iterator();
+        	tupleIterator = pageIterator(currentPage);
         	if (tupleIterator.hasNext()) {
         		return true;
         	}
@@ -68,7 +99,18 @@ public class HeapFileIterator implements DbFileIterator {
 
     public void close() {
         currentPageId = 0;
+        lastPageRead = -1;
+        readAheadTo = 0;
         tupleIterator = null;
+        releaseLockedPage();
+    }
+
+
+    private Iterator<Tuple> pageIterator(Page page) {
+        if (predicate == null) {
+            return page.iterator();
+        }
+        return ((HeapPage) page).iterator(predicate);
     }
 
 
@@ -78,7 +120,48 @@ public class HeapFileIterator implements DbFileIterator {
         int tableId = file.getId();
         int pageId = pageNumber;
         HeapPageId pid = new HeapPageId(tableId, pageId);
-        return Database.getBufferPool().getPage(transactionId, pid, Permissions.READ_ONLY);
-		
+        Page page = Database.getBufferPool().getPage(transactionId, pid, Permissions.READ_ONLY, ring);
+        readAhead(pageNumber);
+        // The tuples of the previous page have all been returned
+        releaseLockedPage();
+        if (isolation == IsolationLevel.READ_COMMITTED) {
+            lockedPage = pid;
+        }
+        return page;
+    }
+
+
+    // At READ_COMMITTED, gives up the read lock on the page read last
+    private void releaseLockedPage() {
+        if (lockedPage != null) {
+            Database.getBufferPool().releaseReadLock(transactionId, lockedPage);
+            lockedPage = null;
+        }
+    }
+
+
+    // Once two consecutive pages have been read, keep the buffer pool's
+    // read-ahead window filled in front of the scan, topping it up when
+    // half of it has been consumed
+    private void readAhead(int pageNumber) {
+        boolean sequential = (pageNumber == lastPageRead + 1) && pageNumber > 0;
+        lastPageRead = pageNumber;
+        // The operating system already reads ahead of mapped files
+        if (!sequential || file.isMemoryMapped()) return;
+
+        BufferPool pool = Database.getBufferPool();
+        int window = pool.getReadAheadWindow();
+        if (ring != null) {
+            // Leave room in the ring for the pages still being consumed
+            window = Math.min(window, ring.capacity() / 2);
+        }
+        if (window == 0 || readAheadTo - pageNumber > window / 2) return;
+
+        int first = Math.max(readAheadTo, pageNumber + 1);
+        int last = Math.min(numPages, pageNumber + 1 + window);
+        if (first < last) {
+            pool.readAhead(file, first, last - first, ring);
+            readAheadTo = last;
+        }
     }
 }
@@ -3,6 +3,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -15,71 +16,102 @@ import java.io.*;
  */
 public class HeapPage implements Page {
 
+    /** Bytes at the start of every page holding its LSN */
+    static final int LSN_SIZE = 8;
 
     private HeapPageId pid;
     private TupleDesc td;
-    private byte header[];
-    Tuple tuples[];
     private int numSlots;
-
-
-    byte[] oldData;
+    private int headerSize;
+
+    // The page bytes, either a heap array or a frame of the BufferPool's
+    // FrameArena. Tuples are decoded from here on demand. The reference is
+    // only ever replaced (see detach) so readers can detect that a frame
+    // was taken away from them while they were decoding it.
+    private volatile ByteBuffer data;
+    // false while data is a buffer handed to us by the caller (an array or
+    // a slice of a file mapping), which we must copy before writing to
+    private boolean ownsData;
+
+    // The before image, or null while the page is unchanged since the
+    // last call to setBeforeImage
+    private byte[] oldData;
     private boolean dirty;
     private TransactionId dirtyTid;
+    // The LSN of the first logged update not written to disk yet, or
+    // LogFile.NO_LSN if the page on disk holds them all
+    private volatile long recLsn = LogFile.NO_LSN;
+    // Set once the BufferPool has given up this page's frame; changes
+    // must then go to the copy it reads instead
+    private volatile boolean evicted;
 
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
-     * The format of a HeapPage is a set of header bytes indicating
-     * the slots of the page that are in use, some number of tuple slots.
+     * The format of a HeapPage is the LSN of the last logged update
+     * applied to the page (a long integer), a set of header bytes
+     * indicating the slots of the page that are in use, and some number
+     * of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.PAGE_SIZE*8) / (tuple size * 8 + 1))
+     *          floor(((BufferPool.PAGE_SIZE - 8)*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The array is not copied; it is only read until the page is first
+     * modified.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#PAGE_SIZE
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data), false);
+    }
+
+    /**
+     * Create a HeapPage backed by a BufferPool frame of PAGE_SIZE bytes
+     * that already holds the page as read from disk.  The page reads and
+     * writes the frame in place until {@link #detach} is called.
+     *
+     * @see FrameArena
+     */
+    public HeapPage(HeapPageId id, ByteBuffer frame) {
+        this(id, frame, true);
+    }
+
+    /**
+     * Create a HeapPage that reads data in place.  If ownsData is false,
+     * data is never written: the page takes a private copy the first time
+     * it is modified.  Used for pages that are slices of a memory-mapped
+     * HeapFile.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data, boolean ownsData) {
     	dirty = false;
     	dirtyTid = null;
     	
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-
-        try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        } catch(NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
-
+        this.headerSize = getHeaderSize();
+        this.data = data;
+        this.ownsData = ownsData;
 
         setBeforeImage();
     }
 
-
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
     private int getNumTuples() {
-        double bufferSize = BufferPool.PAGE_SIZE * 8;
+        return getNumTuples(td);
+    }
+
+
+    private static int getNumTuples(TupleDesc td) {
+        double bufferSize = (BufferPool.PAGE_SIZE - LSN_SIZE) * 8;
         double tupleSize = (td.getSize() * 8) + 1;
 
 
@@ -92,15 +124,39 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
-        double numTuples = getNumTuples();
+        return getHeaderSize(td);
+    }
+
+
+    /**
+     * @return the number of header bytes of a page of a table whose tuples
+     *   are described by td
+     */
+    static int getHeaderSize(TupleDesc td) {
+        double numTuples = getNumTuples(td);
         return (int) Math.ceil(numTuples / 8);
     }
+
+
+    /**
+     * Tells from the header of a page of a table whose tuples are described
+     * by td whether the page has an empty slot, without decoding the page.
+     *
+     * @param header the getHeaderSize(td) bytes of the page after its LSN
+     */
+    static boolean hasFreeSlots(TupleDesc td, byte[] header) {
+        int numSlots = getNumTuples(td);
+        for (int i = 0; i < numSlots; i++) {
+            if ((header[i / 8] & (1 << (i % 8))) == 0) return true;
+        }
+        return false;
+    }
     
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            return new HeapPage(pid,oldData);
+            return new HeapPage(pid, getBeforeImageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -109,8 +165,72 @@ public class HeapPage implements Page {
         return null;
     }
     
-    public void setBeforeImage() {
-        oldData = getPageData().clone();
+    /**
+     * @return the bytes of the before image.  The array is never written,
+     *   so it can be read while the page keeps changing.
+     */
+    synchronized byte[] getBeforeImageData() {
+        return (oldData != null) ? oldData : getPageData();
+    }
+
+    /**
+     * Copies the tuple in slotId of this page, or its absence, into the
+     * page bytes image.
+     */
+    synchronized void copySlot(int slotId, byte[] image) {
+        ByteBuffer buf = this.data.duplicate();
+        int mask = 1 << (slotId % 8);
+        if (isSlotUsed(buf, slotId)) {
+            image[LSN_SIZE + slotId / 8] |= mask;
+        } else {
+            image[LSN_SIZE + slotId / 8] &= ~mask;
+        }
+        int size = this.td.getSize();
+        buf.position(slotOffset(slotId));
+        buf.get(image, slotOffset(slotId), size);
+    }
+
+    /**
+     * Replaces the contents of the page with the page bytes image, keeping
+     * the current contents as the before image.
+     */
+    synchronized void setPageData(byte[] image) {
+        beginWrite();
+        ByteBuffer dst = this.data.duplicate();
+        dst.clear();
+        dst.put(image, 0, BufferPool.PAGE_SIZE);
+    }
+
+    public synchronized void setBeforeImage() {
+        // The page as it is now is the before image until the next write
+        oldData = null;
+    }
+
+    /**
+     * Makes image the before image of this page, which was read back from
+     * disk after it was evicted with changes not committed yet.
+     */
+    synchronized void setBeforeImageData(byte[] image) {
+        oldData = image;
+    }
+
+    /** @return true if the page changed since the before image was set */
+    synchronized boolean isChanged() {
+        return oldData != null;
+    }
+
+    /**
+     * @return true if the BufferPool has evicted this page, so that it
+     *   must be fetched again before it is changed
+     */
+    boolean isEvicted() {
+        return this.evicted;
+    }
+
+    // Called by the BufferPool, holding the page's monitor if the page
+    // may be being changed
+    void markEvicted() {
+        this.evicted = true;
     }
 
 
@@ -123,120 +243,180 @@ public class HeapPage implements Page {
 
 
     /**
-     * Suck up tuples from the source file.
+     * Copies the page out of its BufferPool frame onto the heap.  Called by
+     * the BufferPool before it reuses the frame; the page stays valid for
+     * anyone still holding it.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    synchronized void detach() {
+        if (this.ownsData && this.data.isDirect()) {
+            this.data = ByteBuffer.wrap(copyData(this.data));
         }
+    }
 
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    private static byte[] copyData(ByteBuffer buf) {
+        byte[] copy = new byte[BufferPool.PAGE_SIZE];
+        ByteBuffer src = buf.duplicate();
+        src.clear();
+        src.get(copy);
+        return copy;
+    }
+
+
+    // Must be called (holding the page monitor) before changing data:
+    // saves the before image and takes a private copy of a caller's buffer
+    private void beginWrite() {
+        if (this.oldData == null) {
+            boolean shared = !this.ownsData && this.data.hasArray();
+            this.oldData = shared ? this.data.array() : copyData(this.data);
         }
+        ownData();
+    }
 
 
-        return t;
+    private void ownData() {
+        if (!this.ownsData) {
+            this.data = ByteBuffer.wrap(copyData(this.data));
+            this.ownsData = true;
+        }
+    }
+
+
+    private int slotOffset(int slotId) {
+        return LSN_SIZE + this.headerSize + slotId * this.td.getSize();
     }
 
 
     /**
-     * Generates a byte array representing the contents of this page.
-     * Used to serialize this page to disk.
-     * <p>
-     * The invariant here is that it should be possible to pass the byte
-     * array generated by getPageData to the HeapPage constructor and
-     * have it produce an identical HeapPage object.
-     *
-     * @see #HeapPage
-     * @return A byte array correspond to the bytes of this page.
+     * @return the LSN of the last logged update applied to this page, or 0
+     *   if none was
      */
-    public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+    public long getLsn() {
+        while (true) {
+            ByteBuffer buf = this.data;
+            long lsn = buf.getLong(0);
+            if (buf == this.data) return lsn;
+        }
+    }
 
 
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+    /**
+     * Records that the update logged at lsn is applied to this page.  The
+     * LSN is not a change of the page's tuples, so the before image is
+     * left alone.
+     */
+    public synchronized void setLsn(long lsn) {
+        ownData();
+        this.data.putLong(0, lsn);
+        if (this.recLsn == LogFile.NO_LSN) {
+            this.recLsn = lsn;
         }
+    }
 
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+    /**
+     * @return the LSN of the first logged update applied to this page
+     *   since it was last written, or LogFile.NO_LSN if there is none
+     */
+    public long getRecLsn() {
+        return this.recLsn;
+    }
 
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+    /**
+     * Decodes the tuple stored in the specified slot.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    Tuple getTuple(int slotId) {
+        while (true) {
+            ByteBuffer buf = this.data;
+            Tuple t = isSlotUsed(buf, slotId) ? readTuple(buf, slotId) : null;
+            // If the page was detached meanwhile the frame may have been
+            // refilled under us; decode again from the copy
+            if (buf == this.data) return t;
+        }
+    }
 
 
-                }
-                continue;
-            }
+    /**
+     * Decodes a single field of the tuple stored in the specified slot,
+     * without materializing the rest of the tuple.
+     *
+     * @return the field, or null if the slot is empty
+     */
+    Field getField(int slotId, int fieldIndex) {
+        int offset = fieldOffset(slotId, fieldIndex);
+        Type type = td.getFieldType(fieldIndex);
+        while (true) {
+            ByteBuffer buf = this.data;
+            Field f = isSlotUsed(buf, slotId) ? type.parse(buf, offset) : null;
+            if (buf == this.data) return f;
+        }
+    }
 
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * Evaluates p against the tuple stored in the specified slot directly
+     * from the page bytes.
+     *
+     * @return true if the slot is used and its tuple satisfies p
+     */
+    boolean matches(int slotId, Predicate p) {
+        int fieldIndex = p.getField();
+        int offset = fieldOffset(slotId, fieldIndex);
+        Type type = td.getFieldType(fieldIndex);
+        while (true) {
+            ByteBuffer buf = this.data;
+            boolean match = isSlotUsed(buf, slotId)
+                && type.compare(buf, offset, p.getOp(), p.getOperand());
+            if (buf == this.data) return match;
         }
+    }
 
 
-        // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private int fieldOffset(int slotId, int fieldIndex) {
+        int offset = slotOffset(slotId);
+        for (int j = 0; j < fieldIndex; j++) {
+            offset += td.getFieldType(j).getLen();
         }
+        return offset;
+    }
 
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private Tuple readTuple(ByteBuffer buf, int slotId) {
+        Tuple t = new Tuple(td);
+        RecordId rid = new RecordId(pid, slotId);
+        t.setRecordId(rid);
+
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(buf, offset));
+            offset += type.getLen();
         }
 
+        return t;
+    }
+
 
-        return baos.toByteArray();
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the HeapPage constructor and
+     * have it produce an identical HeapPage object.
+     *
+     * @see #HeapPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        while (true) {
+            ByteBuffer buf = this.data;
+            byte[] copy = copyData(buf);
+            if (buf == this.data) return copy;
+        }
     }
 
 
@@ -262,12 +442,12 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
     	RecordId rid = t.getRecordId();
     	int slotId = rid.tupleno();
     	PageId pageId = rid.getPageId();
     	
-    	if (pageId != this.pid) {
+    	if (!this.pid.equals(pageId)) {
     		throw new DbException("Tuple t: " + t + " not on page");
     	}
     	
@@ -275,9 +455,39 @@ public class HeapPage implements Page {
     		throw new DbException("Tuple t "  + t + " not on page");
     	}
     	
+    	emptySlot(slotId);
+    }
+
+
+    /**
+     * Empties the slot, if it is in use.  Used to undo an insert.
+     */
+    synchronized void emptySlot(int slotId) {
+    	if (!isSlotUsed(slotId)) return;
+
+    	beginWrite();
     	boolean used = false;
     	markSlotUsed(slotId, used);
-    	this.tuples[slotId] = null;
+    	// empty slots are all zeroes on disk
+    	int offset = slotOffset(slotId);
+    	for (int i = 0; i < td.getSize(); i++) {
+    		this.data.put(offset + i, (byte) 0);
+    	}
+    }
+
+
+    /**
+     * Stores the tuple bytes tupleData in the slot, whether it is in use
+     * or not.  Used by recovery to repeat or undo a logged change.
+     */
+    synchronized void putSlotData(int slotId, byte[] tupleData) {
+    	beginWrite();
+    	int offset = slotOffset(slotId);
+    	for (int i = 0; i < tupleData.length; i++) {
+    		this.data.put(offset + i, tupleData[i]);
+    	}
+    	boolean used = true;
+    	markSlotUsed(slotId, used);
     }
 
 
@@ -288,9 +498,81 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
     	int slotId = getNextFreeSlot();
-    	tuples[slotId] = t;
+    	byte[] tupleData = serialize(t);
+    	
+    	beginWrite();
+    	putTuple(slotId, t, tupleData);
+    }
+
+
+    /**
+     * Adds the specified tuple to the given slot of the page, if the slot
+     * is empty; the tuple is updated to reflect that it is now stored on
+     * this page.
+     * @throws DbException if the tupledesc is mismatch.
+     * @return false if the slot is in use
+     */
+    public synchronized boolean insertTuple(Tuple t, int slotId) throws DbException {
+    	if (isSlotUsed(slotId)) return false;
+    	byte[] tupleData = serialize(t);
+    	
+    	beginWrite();
+    	putTuple(slotId, t, tupleData);
+    	return true;
+    }
+
+
+    /**
+     * Adds tuples from the iterator to the page until either runs out,
+     * filling the empty slots in order; each tuple is updated to reflect
+     * that it is now stored on this page.
+     * @throws DbException if a tuple does not match the page tupledesc.
+     * @return the number of tuples added
+     */
+    public synchronized int insertTuples(Iterator<Tuple> tuples) throws DbException {
+    	int added = 0;
+    	for (int slotId = 0; slotId < numSlots && tuples.hasNext(); slotId++) {
+    		if (isSlotUsed(slotId)) continue;
+    		
+    		Tuple t = tuples.next();
+    		byte[] tupleData = serialize(t);
+    		beginWrite();
+    		putTuple(slotId, t, tupleData);
+    		added++;
+    	}
+    	return added;
+    }
+
+
+    private byte[] serialize(Tuple t) throws DbException {
+    	ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+    	DataOutputStream dos = new DataOutputStream(baos);
+    	try {
+    		for (int j = 0; j < td.numFields(); j++) {
+    			t.getField(j).serialize(dos);
+    		}
+    		dos.flush();
+    	} catch (IOException e) {
+    		throw new DbException("could not serialize tuple " + t);
+    	}
+    	
+    	byte[] tupleData = baos.toByteArray();
+    	if (tupleData.length != td.getSize()) {
+    		throw new DbException("Tuple t " + t + " does not match page tupledesc");
+    	}
+    	return tupleData;
+    }
+
+
+    // Stores the serialized tuple in an empty slot; beginWrite must have
+    // been called
+    private void putTuple(int slotId, Tuple t, byte[] tupleData) {
+    	int offset = slotOffset(slotId);
+    	for (int i = 0; i < tupleData.length; i++) {
+    		this.data.put(offset + i, tupleData[i]);
+    	}
     	    	
     	RecordId newId = new RecordId(this.pid, slotId);
     	t.setRecordId(newId);
@@ -309,6 +591,7 @@ public class HeapPage implements Page {
     		this.dirtyTid = tid;
     	} else {
     		this.dirtyTid = null;
+    		this.recLsn = LogFile.NO_LSN;
     	}
     }
 
@@ -325,14 +608,11 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int tupleCount = getNumTuples();
-        for (int i = 0; i < header.length; i++) {
-            for (int slot = 0; slot < 8; slot++) {
-                int slotNum = (i * 8) + slot;
-                if (isSlotUsed(slotNum)) {
-                    tupleCount--;
-                }
-            } // end inner for
+        int tupleCount = numSlots;
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                tupleCount--;
+            }
         }
 
 
@@ -344,17 +624,28 @@ public class HeapPage implements Page {
     }
     
     private int getNextFreeSlot() throws DbException {
-    	for (int i = 0; i < header.length; i++) {
-    		for (int slot = 0; slot < 8; slot++) {
-    			int slotNum = (i * 8) + slot;
-    			if (!isSlotUsed(slotNum)) return slotNum;
-    		}
+    	int slotId = nextFreeSlot(0);
+    	if (slotId < 0) {
+    		throw new DbException("No free slots");
     	}
-    	
-    	throw new DbException("No free slots");
+    	return slotId;
+    }
+
+
+    /** @return the first empty slot at or after from, or -1 if there is none */
+    int nextFreeSlot(int from) {
+    	for (int i = from; i < numSlots; i++) {
+    		if (!isSlotUsed(i)) return i;
+    	}
+    	return -1;
     }
 
 
+    /** @return the number of tuple slots on this page, used or not */
+    int getNumSlots() {
+        return numSlots;
+    }
+
     public int getNumValidTuples() {
         return getNumTuples() - getNumEmptySlots();
     }
@@ -364,19 +655,28 @@ public class HeapPage implements Page {
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
+        while (true) {
+            ByteBuffer buf = this.data;
+            boolean used = isSlotUsed(buf, i);
+            if (buf == this.data) return used;
+        }
+    }
+
+
+    private boolean isSlotUsed(ByteBuffer buf, int i) {
         // Header is in bytes, slots are in bits
         int headerSlot = i / 8;
         int bit = i % 8;
-        if (headerSlot >= header.length) {
+        if (headerSlot >= headerSize) {
             System.out.println("Header slot: " + headerSlot + " i: " + i);
             System.out.println("Tuple size: " + this.td.getSize());
             System.out.println("Max tuples: " + this.getNumTuples());
             System.out.println("Header size: " + this.getHeaderSize());
             System.out.println("Tuple size / 8: " + getNumTuples() / 8);
-            System.out.println("Getting slot: " + headerSlot + " header length: " + header.length);
-            assert (headerSlot < header.length);
+            System.out.println("Getting slot: " + headerSlot + " header length: " + headerSize);
+            assert (headerSlot < headerSize);
         }
-        byte headerInfo = header[headerSlot];
+        byte headerInfo = buf.get(LSN_SIZE + headerSlot);
         int mask = 1 << bit;
         return (headerInfo & mask) > 0;
     }
@@ -387,7 +687,7 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
     	int headerSlot = i / 8;
     	int bit = i % 8;
-    	byte headerInfo = header[headerSlot];
+    	byte headerInfo = this.data.get(LSN_SIZE + headerSlot);
     	int mask = 0;
     	if (value) {
     		mask = 1 << bit;
@@ -396,7 +696,7 @@ public class HeapPage implements Page {
      		mask = headerInfo & ~(1 << bit);
      	}
     		
-    	header[headerSlot] = (byte)mask;
+    	this.data.put(LSN_SIZE + headerSlot, (byte)mask);
     }
 
 
@@ -407,4 +707,13 @@ public class HeapPage implements Page {
     public Iterator<Tuple> iterator() {
         return new HeapPageIterator(this);
     }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy p.
+     *   Slots are tested against the page bytes, so tuples that do not
+     *   match are never decoded.
+     */
+    public Iterator<Tuple> iterator(Predicate p) {
+        return new HeapPageIterator(this, p);
+    }
 }
@@ -65,7 +65,8 @@ public class HeapPageId implements PageId {
     public boolean equals(Object o) {
         try {
             PageId pid = (PageId) o;
-            return pid.hashCode() == this.hashCode();
+            return pid.getTableId() == this.tableId
+                && pid.pageNumber() == this.pageNumber;
         } catch (Exception e ) {
             return false;
         }
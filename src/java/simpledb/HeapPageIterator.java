@@ -6,23 +6,44 @@ import java.util.*;
 
 public class HeapPageIterator implements Iterator<Tuple> {
     private HeapPage page;
-    private int numTuples;
-    private int currentTuple;
+    private int numSlots;
+    private int currentSlot;
+    private Predicate predicate;
         
     // Assumes pages cannot be modified while iterating over them
-    // Iterates over only valid tuples
+    // Iterates over only valid tuples, decoding each one as it is returned
     public HeapPageIterator(HeapPage page) {
+        this(page, null);
+    }
+
+    // As above, but skips tuples that do not satisfy predicate (if not
+    // null) by testing the slot bytes, without decoding them
+    public HeapPageIterator(HeapPage page, Predicate predicate) {
         this.page = page;
-        this.currentTuple = 0;
-        this.numTuples = this.page.getNumValidTuples();
+        this.predicate = predicate;
+        this.currentSlot = 0;
+        this.numSlots = this.page.getNumSlots();
     }
         
     public boolean hasNext() {
-        return currentTuple < numTuples;
+        while (currentSlot < numSlots && !accept(currentSlot)) {
+            currentSlot++;
+        }
+        return currentSlot < numSlots;
     }
         
     public Tuple next() {
-        return this.page.tuples[currentTuple++];
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return this.page.getTuple(currentSlot++);
+    }
+        
+    private boolean accept(int slot) {
+        if (predicate == null) {
+            return this.page.isSlotUsed(slot);
+        }
+        return this.page.matches(slot, predicate);
     }
         
     public void remove() throws UnsupportedOperationException {
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableid specified in the
@@ -10,6 +11,9 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    // Tuples handed to the buffer pool at a time
+    private static final int BATCH_SIZE = 4096;
+
     private DbIterator child;
 	private int tableId;
 	private TransactionId tid;
@@ -85,7 +89,7 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -94,12 +98,17 @@ if (this.didInsert) return null;
     	BufferPool pool = Database.getBufferPool();
     	
     	int count = 0;
+    	ArrayList<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
     	try {
     		while (this.child.hasNext()) {
-    			Tuple next = this.child.next();
+    			batch.add(this.child.next());
     			count++;
-    			pool.insertTuple(this.tid, this.tableId, next);
+    			if (batch.size() == BATCH_SIZE) {
+    				pool.insertTuples(this.tid, this.tableId, batch.iterator());
+    				batch.clear();
+    			}
     		}
+    		pool.insertTuples(this.tid, this.tableId, batch.iterator());
     	} catch (IOException e) {
     		System.out.println("Error inserting tuple");
     		e.printStackTrace();
@@ -3,6 +3,11 @@ package simpledb;
 /** A class to represent a fixed-width histogram over a single integer-based field.
  */
 public class IntHistogram {
+    private final int min;
+    private final int max;
+    private final int[] counts;
+    private final double width; // values per bucket
+    private int total;
 
     /**
      * Create a new IntHistogram.
@@ -21,7 +26,22 @@ public class IntHistogram {
      * @param max The maximum integer value that will ever be passed to this class for histogramming
      */
     public IntHistogram(int buckets, int min, int max) {
-    	// some code goes here
+    	this.min = min;
+    	this.max = max;
+    	long range = (long) max - min + 1;
+    	this.counts = new int[(int) Math.max(1, Math.min(buckets, range))];
+    	this.width = (double) range / counts.length;
+    	this.total = 0;
+    }
+
+    private int bucket(int v) {
+    	int b = (int) ((v - (long) min) / width);
+    	return Math.max(0, Math.min(counts.length - 1, b));
+    }
+
+    // The lowest value that falls in bucket b
+    private double bucketStart(int b) {
+    	return min + b * width;
     }
 
     /**
@@ -29,7 +49,19 @@ public class IntHistogram {
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
-    	// some code goes here
+    	counts[bucket(v)]++;
+    	total++;
+    }
+
+    /**
+     * Add count occurrences of a value, as for a sampled value that
+     * stands for several.
+     * @param v Value to add to the histogram
+     * @param count Number of times to add it
+     */
+    public void addValue(int v, int count) {
+    	counts[bucket(v)] += count;
+    	total += count;
     }
 
     /**
@@ -43,10 +75,44 @@ public class IntHistogram {
      * @return Predicted selectivity of this particular operator and value
      */
     public double estimateSelectivity(Predicate.Op op, int v) {
-
-    	// some code goes here
+    	switch (op) {
+    	case EQUALS:
+    	case LIKE:
+    		return equalFraction(v);
+    	case NOT_EQUALS:
+    		return 1.0 - equalFraction(v);
+    	case GREATER_THAN:
+    		return greaterFraction(v);
+    	case GREATER_THAN_OR_EQ:
+    		return greaterFraction(v) + equalFraction(v);
+    	case LESS_THAN:
+    		return 1.0 - greaterFraction(v) - equalFraction(v);
+    	case LESS_THAN_OR_EQ:
+    		return 1.0 - greaterFraction(v);
+    	}
         return -1.0;
     }
+
+    // Fraction of values equal to v, assuming values are spread evenly
+    // over the integers of their bucket
+    private double equalFraction(int v) {
+    	if (total == 0 || v < min || v > max) return 0.0;
+    	return counts[bucket(v)] / Math.max(1.0, width) / total;
+    }
+
+    // Fraction of values greater than v
+    private double greaterFraction(int v) {
+    	if (total == 0 || v >= max) return 0.0;
+    	if (v < min) return 1.0;
+
+    	int b = bucket(v);
+    	double bucketEnd = bucketStart(b) + width;
+    	double above = counts[b] * Math.max(0.0, (bucketEnd - (v + 1)) / width);
+    	for (int i = b + 1; i < counts.length; i++) {
+    		above += counts[i];
+    	}
+    	return above / total;
+    }
     
     /**
      * @return
@@ -58,15 +124,26 @@ public class IntHistogram {
      * */
     public double avgSelectivity()
     {
-        // some code goes here
-        return 1.0;
+    	if (total == 0) return 1.0;
+    	// Chance that two values drawn at random are in the same bucket,
+    	// spread over the integers of the bucket
+    	double same = 0.0;
+    	for (int c : counts) {
+    		double f = (double) c / total;
+    		same += f * f;
+    	}
+        return same / Math.max(1.0, width);
     }
     
     /**
      * @return A string describing this histogram, for debugging purposes
      */
     public String toString() {
-        // some code goes here
-        return null;
+    	StringBuffer sb = new StringBuffer();
+    	sb.append("IntHistogram [" + min + ", " + max + "], " + total + " values:");
+    	for (int b = 0; b < counts.length; b++) {
+    		sb.append(" " + (long) Math.ceil(bucketStart(b)) + ":" + counts[b]);
+    	}
+        return sb.toString();
     }
 }
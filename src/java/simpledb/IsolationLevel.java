@@ -0,0 +1,32 @@
+package simpledb;
+
+/**
+ * How long a locking {@link Transaction} keeps the shared locks it takes
+ * while reading, and so how much of the work of concurrent transactions
+ * it may see.  Locks that let a transaction write are always kept until
+ * it completes.
+ */
+public enum IsolationLevel {
+    /**
+     * A scan releases the shared lock on each page once it moves on to the
+     * next one, so it only ever holds one.  The transaction reads only
+     * committed tuples, but reading a page again may show tuples other
+     * transactions committed meanwhile.
+     */
+    READ_COMMITTED,
+
+    /**
+     * Shared locks are kept until the transaction completes, so a page it
+     * read stays as it was.  Tuples inserted into pages it has not read,
+     * such as new pages at the end of a table, may still appear.  The
+     * default.
+     */
+    REPEATABLE_READ,
+
+    /**
+     * Like REPEATABLE_READ, but a scan locks the whole table for reading
+     * first, so no other transaction can add tuples to it until the
+     * transaction completes.
+     */
+    SERIALIZABLE
+}
@@ -0,0 +1,69 @@
+package simpledb;
+
+/**
+ * The modes of the locks the {@link TransactionLockManager} takes on
+ * tables, pages and records.  S and X lock an object, and everything in
+ * it, for reading or for writing.  The intention modes IS and IX are taken
+ * on a table or page before something in it is locked in S or X, so that a
+ * lock on the whole object sees the finer locks inside it; SIX is S
+ * together with IX.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // COMPATIBLE[a][b]: one transaction holding a lets another take b
+    private static final boolean[][] COMPATIBLE = {
+        //           IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    // COVERS[a][b]: holding a gives every right holding b gives
+    private static final boolean[][] COVERS = {
+        //           IS     IX     S      SIX    X
+        /* IS  */ { true,  false, false, false, false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  true,  true,  true,  false },
+        /* X   */ { true,  true,  true,  true,  true  },
+    };
+
+    /** @return the mode of a lock taken with perm: S or X */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+
+    /** @return true if one transaction may hold this mode while another holds other */
+    public boolean isCompatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return true if holding this mode gives every right that other gives */
+    public boolean covers(LockMode other) {
+        return COVERS[ordinal()][other.ordinal()];
+    }
+
+    /** @return the weakest mode that covers both this mode and other */
+    public LockMode join(LockMode other) {
+        if (covers(other)) return this;
+        if (other.covers(this)) return other;
+        // S and IX are the only modes that neither covers
+        return SIX;
+    }
+
+    /**
+     * @return the mode the enclosing table or page must be locked in
+     *   before this mode is taken: IS for reads, IX for writes
+     */
+    public LockMode intention() {
+        return (this == IS || this == S) ? IS : IX;
+    }
+
+    /** @return true if the holder may change the object or something in it */
+    public boolean writes() {
+        return this == IX || this == SIX || this == X;
+    }
+}
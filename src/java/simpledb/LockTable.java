@@ -0,0 +1,353 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LockTable holds the lock of every locked object of one level of the
+ * lock hierarchy, tables or pages: its holders and a FIFO queue of the
+ * requests waiting for it.  The locks of a page's records hang off the
+ * page's entry.  Like {@link PageTable}, it is split into independently
+ * latched buckets, so requests for objects in different buckets never
+ * contend on one monitor.
+ * <p>
+ * All methods that take a key expect the caller to hold the monitor
+ * returned by {@link #bucket} for that key; it also guards the record
+ * entries of the key's page.  Entries are created on first use and
+ * dropped again once nobody holds or waits for them.
+ */
+public class LockTable {
+    private static final int NUM_BUCKETS = 64;
+
+    /**
+     * A transaction's request for a lock it could not get at once.  The
+     * requesting thread parks until the request is granted or aborted;
+     * either happens exactly once, and wakes it.
+     */
+    static class Request {
+        static final int WAITING = 0;
+        static final int GRANTED = 1;
+        static final int ABORTED = 2;
+
+        final TransactionId tid;
+        // the page locked, or whose record is locked; null for a table
+        final PageId pid;
+        // the mode to hold once granted, including any mode already held
+        final LockMode mode;
+        // a stronger lock for a transaction already holding the object
+        final boolean upgrade;
+        private final Thread thread;
+        private final AtomicInteger state;
+
+        Request(TransactionId tid, PageId pid, LockMode mode, boolean upgrade) {
+            this.tid = tid;
+            this.pid = pid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.thread = Thread.currentThread();
+            this.state = new AtomicInteger(WAITING);
+        }
+
+        int state() {
+            return state.get();
+        }
+
+        /** @return true if the request was waiting and is now granted */
+        boolean grant() {
+            return finish(GRANTED);
+        }
+
+        /**
+         * Aborts the request unless it was granted first.  Safe to call
+         * without holding the request's bucket.
+         * @return true if the request was waiting and is now aborted
+         */
+        boolean abort() {
+            return finish(ABORTED);
+        }
+
+        private boolean finish(int newState) {
+            if (!state.compareAndSet(WAITING, newState)) return false;
+            LockSupport.unpark(thread);
+            return true;
+        }
+    }
+
+    /**
+     * The lock of one table, page or record: its holders with the mode
+     * each holds, and the requests waiting for it.  A page's entry also
+     * holds the entries of its locked records.
+     * <p>
+     * Waiting requests are granted strictly in order, so a stream of
+     * readers cannot starve a writer; a run of compatible requests at the
+     * head of the queue is granted together.  Upgrades go ahead of every
+     * other waiting request, since the upgrader already holds the object
+     * and everyone behind it would wait for it anyway.
+     */
+    static class Entry {
+        private final HashMap<TransactionId, LockMode> holders = new HashMap<TransactionId, LockMode>();
+        private final ArrayList<Request> queue = new ArrayList<Request>();
+        // the page entry of a record entry, and the record's slot
+        private final Entry parent;
+        private final int slot;
+        // slot -> record entry; null until a record is locked
+        private HashMap<Integer, Entry> records;
+
+        Entry() {
+            this(null, -1);
+        }
+
+        private Entry(Entry parent, int slot) {
+            this.parent = parent;
+            this.slot = slot;
+        }
+
+        /** @return the mode tid holds, or null if it holds none */
+        LockMode mode(TransactionId tid) {
+            return holders.get(tid);
+        }
+
+        /** @return true if some holder's mode covers mode */
+        boolean isLocked(LockMode mode) {
+            for (LockMode held : holders.values()) {
+                if (held.covers(mode)) return true;
+            }
+            return false;
+        }
+
+        /** @return true if a holder other than tid holds a mode that covers mode */
+        boolean isLockedByOther(TransactionId tid, LockMode mode) {
+            for (Map.Entry<TransactionId, LockMode> e : holders.entrySet()) {
+                if (e.getValue().covers(mode) && !isSame(e.getKey(), tid)) return true;
+            }
+            return false;
+        }
+
+        boolean isHeldBy(TransactionId tid, LockMode mode) {
+            LockMode held = holders.get(tid);
+            return held != null && held.covers(mode);
+        }
+
+        // true if the other holders allow tid to hold mode
+        private boolean compatible(TransactionId tid, LockMode mode) {
+            for (Map.Entry<TransactionId, LockMode> e : holders.entrySet()) {
+                if (!e.getValue().isCompatible(mode) && !isSame(e.getKey(), tid)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isSame(TransactionId a, TransactionId b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        /**
+         * @return true if tid may take the lock in mode now: the holders
+         *   allow it and, unless it is upgrading, nobody is waiting ahead
+         *   of it
+         */
+        boolean canGrant(TransactionId tid, LockMode mode, boolean upgrade) {
+            if (!compatible(tid, mode)) return false;
+            return upgrade || queue.isEmpty();
+        }
+
+        /** Makes tid hold mode, joined with any mode it already holds. */
+        void grant(TransactionId tid, LockMode mode) {
+            LockMode held = holders.get(tid);
+            holders.put(tid, held == null ? mode : held.join(mode));
+        }
+
+        void release(TransactionId tid) {
+            holders.remove(tid);
+        }
+
+        void enqueue(Request request) {
+            if (!request.upgrade) {
+                queue.add(request);
+                return;
+            }
+            // behind earlier upgrades only
+            int i = 0;
+            while (i < queue.size() && queue.get(i).upgrade) i++;
+            queue.add(i, request);
+        }
+
+        void remove(Request request) {
+            queue.remove(request);
+        }
+
+        /**
+         * Grants waiting requests from the head of the queue for as long as
+         * the holders allow, dropping aborted ones on the way.
+         * @return the requests granted
+         */
+        ArrayList<Request> grantWaiters() {
+            ArrayList<Request> granted = new ArrayList<Request>();
+            while (!queue.isEmpty()) {
+                Request head = queue.get(0);
+                if (head.state() == Request.WAITING) {
+                    if (!compatible(head.tid, head.mode)) break;
+                    if (head.grant()) {
+                        grant(head.tid, head.mode);
+                        granted.add(head);
+                    }
+                }
+                queue.remove(0);
+            }
+            return granted;
+        }
+
+        /** @return the requests still waiting in the queue, in order */
+        ArrayList<Request> waiting() {
+            ArrayList<Request> waiting = new ArrayList<Request>();
+            for (Request r : queue) {
+                if (r.state() == Request.WAITING) waiting.add(r);
+            }
+            return waiting;
+        }
+
+        /**
+         * @return the transactions request waits for: the holders it
+         *   conflicts with, and the transactions whose conflicting requests
+         *   are ahead of it in the queue
+         */
+        HashSet<TransactionId> blockers(Request request) {
+            HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+            for (Map.Entry<TransactionId, LockMode> e : holders.entrySet()) {
+                if (!e.getValue().isCompatible(request.mode)) {
+                    blockers.add(e.getKey());
+                }
+            }
+            for (Request r : queue) {
+                if (r == request) break;
+                if (r.state() != Request.WAITING) continue;
+                if (!r.mode.isCompatible(request.mode)) {
+                    blockers.add(r.tid);
+                }
+            }
+            blockers.remove(request.tid);
+            // work done without a transaction (a null id) cannot be
+            // aborted, so it never counts towards a deadlock
+            blockers.remove(null);
+            return blockers;
+        }
+
+        /**
+         * @return the entry of the record in slot of this page, creating it
+         *   if create is set; null if it does not exist
+         */
+        Entry record(int slot, boolean create) {
+            Entry record = (records == null) ? null : records.get(slot);
+            if (record == null && create) {
+                if (records == null) {
+                    records = new HashMap<Integer, Entry>();
+                }
+                record = new Entry(this, slot);
+                records.put(slot, record);
+            }
+            return record;
+        }
+
+        /** @return the entries of the records of this page tid holds */
+        ArrayList<Entry> recordsHeldBy(TransactionId tid) {
+            ArrayList<Entry> held = new ArrayList<Entry>();
+            if (records != null) {
+                for (Entry record : records.values()) {
+                    if (record.holders.containsKey(tid)) held.add(record);
+                }
+            }
+            return held;
+        }
+
+        boolean isIdle() {
+            return holders.isEmpty() && queue.isEmpty()
+                && (records == null || records.isEmpty());
+        }
+    }
+
+    private static class Bucket {
+        final LongIntMap index = new LongIntMap();
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        final ArrayList<Integer> freeSlots = new ArrayList<Integer>();
+    }
+
+    private final Bucket[] buckets;
+
+    public LockTable() {
+        this.buckets = new Bucket[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            this.buckets[i] = new Bucket();
+        }
+    }
+
+    private Bucket bucketFor(long key) {
+        // Mix table and page bits: page numbers live in the low bits
+        int h = (int) (key ^ (key >>> 32));
+        h ^= (h >>> 16);
+        return this.buckets[(h & 0x7fffffff) % NUM_BUCKETS];
+    }
+
+    /** @return the monitor guarding the bucket that key belongs to */
+    public Object bucket(long key) {
+        return bucketFor(key);
+    }
+
+    /** @return the entry for key, or null if nobody holds or waits for it */
+    Entry get(long key) {
+        Bucket b = bucketFor(key);
+        assert (Thread.holdsLock(b));
+        int slot = b.index.get(key);
+        return (slot == LongIntMap.NO_VALUE) ? null : b.entries.get(slot);
+    }
+
+    /** @return the entry for key, creating it if necessary */
+    Entry getOrCreate(long key) {
+        Bucket b = bucketFor(key);
+        assert (Thread.holdsLock(b));
+        int slot = b.index.get(key);
+        if (slot != LongIntMap.NO_VALUE) {
+            return b.entries.get(slot);
+        }
+
+        Entry entry = new Entry();
+        if (b.freeSlots.isEmpty()) {
+            slot = b.entries.size();
+            b.entries.add(entry);
+        } else {
+            slot = b.freeSlots.remove(b.freeSlots.size() - 1);
+            b.entries.set(slot, entry);
+        }
+        b.index.put(key, slot);
+        return entry;
+    }
+
+    /**
+     * Drops entry, the entry for key or for one of its records, if nobody
+     * holds or waits for it any more, and then the entry for key if that
+     * is idle too.
+     */
+    void removeIfIdle(long key, Entry entry) {
+        if (entry.parent != null) {
+            if (!entry.isIdle()) return;
+            entry.parent.records.remove(entry.slot);
+        }
+        removeIfIdle(key);
+    }
+
+    /** Drops the entry for key if nobody holds or waits for it any more. */
+    void removeIfIdle(long key) {
+        Bucket b = bucketFor(key);
+        assert (Thread.holdsLock(b));
+        int slot = b.index.get(key);
+        if (slot == LongIntMap.NO_VALUE || !b.entries.get(slot).isIdle()) return;
+
+        b.index.remove(key);
+        b.entries.set(slot, null);
+        b.freeSlots.add(slot);
+    }
+}
@@ -2,8 +2,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -18,7 +20,7 @@ Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+pages (on recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -32,49 +34,123 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+Checkpoints are the exception: {@link #logCheckpoint} reads the dirty
+pages of the BufferPool holding neither monitor, only briefly that of
+each page, and so must not be called holding ours.
+
+<u> Group commit: </u>
+<p>
+
+A transaction that must wait for its log records to reach the disk
+(see {@link #logCommit} and {@link #force}) does not force the log
+itself.  It waits for a ticket: a single log writer thread forces the
+log for all transactions waiting at that time, so concurrent commits
+share one fsync.  The writer may wait a little (see {@link
+#setGroupCommitDelay}) before forcing, to let more commits join.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> Every byte ever appended to the log has a log sequence number
+(LSN), its position in the log as if nothing had ever been truncated.
+Records are addressed by the LSN of their first byte.
+
+<li> The log is a series of segment files next to the log file, each
+holding {@link #getSegmentSize} bytes of it: the byte at a given LSN is
+in the segment named after the log file and the LSN its segment starts
+at, in hex (e.g. <tt>log.0000000000100000</tt>).  A record may continue
+from one segment into the next.  Truncating the log deletes the segments
+that hold no records anyone needs any more; nothing is copied.
+
+<li> The log file itself only holds a header of three long integers:
+the LSN of the last written checkpoint record, or -1 if there are no
+checkpoints, the LSN of the first byte of the log (earlier records have
+been truncated away), and the size of the segments.
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer holding its length in
+bytes, a byte holding its type and a long integer transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with its length again, so the log can also be
+read backwards, and a record only partly written before a crash can be
+told apart from a complete one.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, COMPENSATION, INSERT and DELETE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
-
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li> INSERT and DELETE records log a single tuple a transaction put
+into or took out of a HeapPage.  They consist of the LSN of the
+previous record of the same transaction, and the tuple: the table id,
+page number and slot it is stored in, and the length and bytes of the
+tuple as stored on the page.  Most changes are logged this way; UPDATE
+records are only written for changes of whole pages.
+
+<li>UPDATE RECORDS consist of the LSN of the previous record of the
+same transaction (its BEGIN record, or an earlier change), and two
+entries, a before image and an
+after image.  These images are serialized Page objects: a byte giving
+the page's type (see {@link #HEAP_PAGE}), the table id and page number,
+and the length and bytes of the page data.  They can be accessed with
+the LogFile.readPageData() and LogFile.writePageData() methods.  See
+LogFile.print() for an example.
+
+<li> COMPENSATION records are written when a change is undone.  They
+consist of the LSN of the previous record of the same transaction, the
+LSN of the next record of the transaction to undo (the previous record
+of the change undone), and the change that undid it: a byte giving its
+type, UPDATE, INSERT or DELETE, followed by the page image the page was
+restored to, or by the tuple put back or taken out.
+
+<li> CHECKPOINT records consist of the LSN redo starts from, the LSN
+the log had when the checkpoint began, the active transactions at the
+time the checkpoint record was written and their first and last log
+records, and the dirty page table of the BufferPool.  The format
+of the record is two long integer LSNs, an integer count of the number of
+transactions, as well
+as a long integer transaction id, a long integer first record LSN and a
+long integer last record LSN for each active transaction, and an
+integer count of dirty pages, as well as an integer table id, an integer
+page number and a long integer LSN of the first change not on disk for
+each dirty page.
 
 </ul>
 
+<p> Changes are logged as they are made, holding the page's monitor,
+and every HeapPage holds the LSN of the last logged change applied to
+it (see {@link HeapPage#getLsn}).  A page is only written once the log
+is forced up to its LSN.  Checkpoints are fuzzy: they flush nothing
+themselves, and pages are written back in the background.  Recovery
+follows ARIES: an analysis pass from the last checkpoint finds the
+transactions that never completed and the pages that may miss changes,
+a redo pass repeats the logged changes the pages on disk do not have
+yet, and an undo pass rolls the incomplete transactions back, newest
+change first, logging a COMPENSATION record for each change undone so
+that a crash during recovery never undoes a change twice.
+
+<p> Records are appended to an in-memory log buffer and written to the
+segments with large sequential writes: when the buffer is full, or when
+someone needs the records to be durable.
+
 */
 
 public class LogFile {
 
     final File logFile;
     private RandomAccessFile raf;
+    private FileChannel channel; // the header
+    // segment start LSN -> the open segment; protected by this
+    private TreeMap<Long,FileChannel> segments = new TreeMap<Long,FileChannel>();
+    private long segmentSize;
+    private final long newSegmentSize; // for when the log is thrown out
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,16 +158,65 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int COMPENSATION_RECORD = 6;
+    static final int INSERT_RECORD = 7;
+    static final int DELETE_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
+    // the previous record of a transaction that has none
+    static final long NO_LSN = -1;
+
+    /** The page type id of {@link HeapPage}s in UPDATE records. */
+    static final int HEAP_PAGE = 1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
-//    int pageSize;
+    // checkpoint LSN, LSN of the first byte of the log, segment size
+    static final int FILE_HEADER_SIZE = 3 * LONG_SIZE;
+    // length, type, tid; and the length again at the end
+    static final int RECORD_HEADER_SIZE = INT_SIZE + 1 + LONG_SIZE;
+    static final int RECORD_TRAILER_SIZE = INT_SIZE;
+
+    /** Size of the in-memory log buffer, in bytes. */
+    public static final int BUFFER_SIZE = 256 * 1024;
+
+    /** Default size of a segment of the log, in bytes. */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // records appended but not yet written to the segments
+    private ByteBuffer buffer; //protected by this
+    long baseLsn = 0;         // LSN of the first byte in the segments //protected by this
+    long writtenLsn = 0;      // LSN up to which the segments hold the log //protected by this
+    long nextLsn = 0;         // LSN of the next record //protected by this
+    long checkpointLsn = NO_CHECKPOINT_ID; //protected by this
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // running transaction -> the LSN of its last record
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+
+    // What the last call to recover() did, for RecoveryTest
+    long recoveryNanos = 0;
+    long recoveredBytes = 0;
+    int redoneUpdates = 0;
+    int skippedUpdates = 0;
+    int undoneUpdates = 0;
+
+    /** How long the log writer waits by default for more commits to join
+        a flush, in microseconds. */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+
+    // how long an idle log writer thread waits for work before exiting
+    private static final long WRITER_IDLE_MILLIS = 1000;
+
+    // The group commit state; all protected by flushLock
+    private final Object flushLock = new Object();
+    private long flushRequested = 0; // LSN someone waits to be durable
+    private long flushedLsn = 0;     // LSN up to which the log is durable
+    int totalForces = 0;             // for LogFileTest
+    private IOException flushError;  // why the last flush failed, if it did
+    private Thread writer;           // the log writer, while it runs
+    private volatile long groupCommitDelayMicros = DEFAULT_GROUP_COMMIT_DELAY;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -105,9 +230,26 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        Like {@link #LogFile(File)}, but a new log is cut into segments of
+        the given size.  An existing log keeps the size it was written
+        with until it is thrown out.
+
+        @param f The log file's name
+        @param segmentSize The size of a new log's segments, in bytes
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
+        this.segmentSize = segmentSize;
+        this.newSegmentSize = segmentSize;
         raf = new RandomAccessFile(f, "rw");
+        channel = raf.getChannel();
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
         recoveryUndecided = true;
+        readFileHeader();
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -120,19 +262,228 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    // Picks up where an existing log ends: after the last byte of its
+    // last segment
+    private void readFileHeader() throws IOException {
+        if (channel.size() < FILE_HEADER_SIZE) return;
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) throw new EOFException();
+        }
+        checkpointLsn = header.getLong(0);
+        baseLsn = header.getLong(LONG_SIZE);
+        segmentSize = header.getLong(2 * LONG_SIZE);
+
+        writtenLsn = baseLsn;
+        for (long start : segmentStarts()) {
+            if (start + segmentSize <= baseLsn) {
+                // truncated away; the crash came before it was deleted
+                segmentFile(start).delete();
+            } else {
+                writtenLsn = Math.max(writtenLsn, start + segmentFile(start).length());
+            }
+        }
+        nextLsn = writtenLsn;
+        flushedLsn = writtenLsn;
+    }
+
+    // Writes and forces the header
+    private synchronized void writeFileHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putLong(checkpointLsn);
+        header.putLong(baseLsn);
+        header.putLong(segmentSize);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+    }
+
+    /** @return the size of the segments of the log, in bytes */
+    public synchronized long getSegmentSize() {
+        return segmentSize;
+    }
+
+    private File segmentFile(long start) {
+        return new File(logFile.getAbsoluteFile().getParentFile(),
+                        logFile.getName() + "." + String.format("%016x", start));
+    }
+
+    // The start LSNs of the segments on disk, including ones not open
+    private TreeSet<Long> segmentStarts() {
+        TreeSet<Long> starts = new TreeSet<Long>();
+        String prefix = logFile.getName() + ".";
+        File[] files = logFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) return starts;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.length() == prefix.length() + 16) {
+                try {
+                    starts.add(Long.parseLong(name.substring(prefix.length()), 16));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        return starts;
+    }
+
+    // The segment holding the byte at lsn, created if it does not exist
+    // yet
+    private FileChannel segment(long lsn) throws IOException {
+        long start = lsn - lsn % segmentSize;
+        FileChannel segment = segments.get(start);
+        if (segment == null) {
+            segment = new RandomAccessFile(segmentFile(start), "rw").getChannel();
+            segments.put(start, segment);
+        }
+        return segment;
+    }
+
+    // Deletes the segments that end at or before lsn
+    private void deleteSegments(long lsn) throws IOException {
+        for (long start : segmentStarts()) {
+            if (start + segmentSize > lsn) break;
+            FileChannel segment = segments.remove(start);
+            if (segment != null) segment.close();
+            segmentFile(start).delete();
+        }
+    }
+
+    // Cuts the log off at lsn
+    private void truncateSegments(long lsn) throws IOException {
+        long start = lsn - lsn % segmentSize;
+        for (long later : segmentStarts().tailSet(start, false)) {
+            FileChannel segment = segments.remove(later);
+            if (segment != null) segment.close();
+            segmentFile(later).delete();
+        }
+        if (segmentFile(start).exists()) {
+            segment(lsn).truncate(lsn - start);
+        }
+    }
+
+    // Reads the log from lsn on into dst, across segments
+    private void readFully(ByteBuffer dst, long lsn) throws IOException {
+        while (dst.hasRemaining()) {
+            long at = lsn + dst.position();
+            long offset = at % segmentSize;
+            if (!segments.containsKey(at - offset) && !segmentFile(at - offset).exists()) {
+                throw new EOFException();
+            }
+            int limit = dst.limit();
+            dst.limit((int) Math.min(limit, dst.position() + (segmentSize - offset)));
+            int n = segment(at).read(dst, offset);
+            dst.limit(limit);
+            if (n < 0) throw new EOFException();
+        }
+        dst.flip();
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
-    // the log.
+    // the log.  LSNs go on from where the old log ended, so that pages
+    // written under it never look newer than records of the new one.
     void preAppend() throws IOException {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            deleteSegments(Long.MAX_VALUE);
+            segmentSize = newSegmentSize;
+            buffer.clear();
+            checkpointLsn = NO_CHECKPOINT_ID;
+            baseLsn = nextLsn;
+            writtenLsn = nextLsn;
+            writeFileHeader();
+            synchronized (flushLock) {
+                flushRequested = nextLsn;
+                flushedLsn = nextLsn;
+            }
+        }
+    }
+
+    // Appends the header of a record with payloadSize bytes of data to
+    // the log buffer; the caller puts the data, then calls endRecord
+    private long beginRecord(int type, long tid, int payloadSize) throws IOException {
+        int size = RECORD_HEADER_SIZE + payloadSize + RECORD_TRAILER_SIZE;
+        if (buffer.remaining() < size) {
+            writeBuffer();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocateDirect(size);
+            }
+        }
+        long lsn = nextLsn;
+        buffer.putInt(size);
+        buffer.put((byte) type);
+        buffer.putLong(tid);
+        nextLsn += size;
+        return lsn;
+    }
+
+    private void endRecord(long lsn) {
+        buffer.putInt((int) (nextLsn - lsn));
+    }
+
+    // Writes the records in the log buffer to the segments, without
+    // forcing them to disk
+    private synchronized void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            // A write stops at the end of a segment
+            long offset = writtenLsn % segmentSize;
+            int limit = buffer.limit();
+            buffer.limit((int) Math.min(limit, buffer.position() + (segmentSize - offset)));
+            writtenLsn += segment(writtenLsn).write(buffer, offset);
+            buffer.limit(limit);
+        }
+        buffer.clear();
+    }
+
+    // The segments written since the log was last forced
+    private synchronized ArrayList<FileChannel> unforcedSegments() {
+        long forced;
+        synchronized (flushLock) {
+            forced = flushedLsn;
         }
+        return new ArrayList<FileChannel>(segments.tailMap(forced - forced % segmentSize).values());
+    }
+
+    /** Reads the record at lsn.
+        @return the record, positioned at its data, or null if the log
+          ends at lsn or the record there was not completely written
+    */
+    synchronized ByteBuffer readRecord(long lsn) throws IOException {
+        if (lsn >= baseLsn && writtenLsn < nextLsn) {
+            writeBuffer();
+        }
+        ByteBuffer length = ByteBuffer.allocate(INT_SIZE);
+        try {
+            readFully(length, lsn);
+            int size = length.getInt(0);
+            if (size < RECORD_HEADER_SIZE + RECORD_TRAILER_SIZE
+                || lsn + size > writtenLsn) return null;
+
+            ByteBuffer record = ByteBuffer.allocate(size);
+            readFully(record, lsn);
+            if (record.getInt(size - INT_SIZE) != size) return null;
+            record.position(RECORD_HEADER_SIZE);
+            return record;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    static int recordType(ByteBuffer record) {
+        return record.get(INT_SIZE);
+    }
+
+    static long recordTid(ByteBuffer record) {
+        return record.getLong(INT_SIZE + 1);
+    }
+
+    static int recordSize(ByteBuffer record) {
+        return record.getInt(0);
     }
 
     public synchronized int getTotalRecords() {
@@ -156,143 +507,236 @@ public class LogFile {
 
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+                HashMap<PageId,Long> compensations = rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                endRecord(beginRecord(ABORT_RECORD, tid.getId(), 0));
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
+                Database.getBufferPool().compensated(tid, compensations);
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The record is forced together with
+        those of the other transactions committing at the same time.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            endRecord(beginRecord(COMMIT_RECORD, tid.getId(), 0));
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            end = nextLsn;
+        }
+        // Not holding the monitor, so others can append while we wait
+        awaitFlush(end);
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
+    /** Write an UPDATE record to the log for the specified tid and page
         (with provided         before and after images.)
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record, which the page should hold once
+          it is written
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, lsn = " + nextLsn);
         preAppend();
         /* update record conists of
 
-           record type
-           transaction id
+           record header
+           LSN of the transaction's previous record
            before page data (see writePageData)
            after page data
-           start offset
+           record trailer
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        long prevLsn = lastLogRecord(tid.getId());
+        long lsn = beginRecord(UPDATE_RECORD, tid.getId(), LONG_SIZE
+                               + pageDataSize(beforeData) + pageDataSize(afterData));
+        buffer.putLong(prevLsn);
+        writePageData(buffer, before, beforeData);
+        writePageData(buffer, after, afterData);
+        endRecord(lsn);
+        setLastLogRecord(tid.getId(), lsn);
+
+        Debug.log("WRITE LSN = " + nextLsn);
+        return lsn;
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Write an INSERT record for a tuple tid put into a HeapPage.  The
+        caller holds the page's monitor, and stamps the page with the LSN.
+        @param t the tuple, with the record id it was stored at
+        @return the LSN of the record
+    */
+    public long logInsert(TransactionId tid, Tuple t) throws IOException {
+        return logTuple(INSERT_RECORD, tid, t);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Write a DELETE record for a tuple tid took out of a HeapPage.  The
+        caller holds the page's monitor, and stamps the page with the LSN.
+        @param t the tuple, with the record id it was stored at
+        @return the LSN of the record
+    */
+    public long logDelete(TransactionId tid, Tuple t) throws IOException {
+        return logTuple(DELETE_RECORD, tid, t);
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    private synchronized long logTuple(int type, TransactionId tid, Tuple t)
+        throws IOException {
+        preAppend();
+        TupleChange change = new TupleChange(t.getRecordId(), serialize(t));
+        long prevLsn = lastLogRecord(tid.getId());
+        long lsn = beginRecord(type, tid.getId(), LONG_SIZE + change.size());
+        buffer.putLong(prevLsn);
+        change.write(buffer);
+        endRecord(lsn);
+        setLastLogRecord(tid.getId(), lsn);
+        return lsn;
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    private static byte[] serialize(Tuple t) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(t.getTupleDesc().getSize());
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            t.getField(i).serialize(out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** A tuple put into or taken out of a slot, as INSERT and DELETE
+        records log it */
+    static class TupleChange {
+        final RecordId rid;
+        final byte[] data;
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        TupleChange(RecordId rid, byte[] data) {
+            this.rid = rid;
+            this.data = data;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+        static TupleChange read(ByteBuffer buf) {
+            int tableId = buf.getInt();
+            int pageNumber = buf.getInt();
+            int slot = buf.getInt();
+            byte[] data = new byte[buf.getInt()];
+            buf.get(data);
+            return new TupleChange(new RecordId(new HeapPageId(tableId, pageNumber), slot), data);
+        }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        int size() {
+            return 4 * INT_SIZE + data.length;
+        }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+        void write(ByteBuffer buf) {
+            buf.putInt(rid.getPageId().getTableId());
+            buf.putInt(rid.getPageId().pageNumber());
+            buf.putInt(rid.tupleno());
+            buf.putInt(data.length);
+            buf.put(data);
+        }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+        // Puts the tuple into its slot (inserted) or empties the slot
+        void apply(HeapPage page, boolean inserted) {
+            if (inserted) {
+                page.putSlotData(rid.tupleno(), data);
+            } else {
+                page.emptySlot(rid.tupleno());
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** Write a COMPENSATION record for undoing a change of tid.  The
+        record is not forced.
+        @param type the type of the change that undid it
+        @param restored the page the change was undone to, for UPDATE
+        @param tuple the tuple put back or taken out, for INSERT and DELETE
+        @param undoNextLsn the record of tid to undo next
+        @return the LSN of the record
+    */
+    private synchronized long logCompensation(long tid, int type, Page restored,
+                                              TupleChange tuple, long undoNextLsn)
+        throws IOException {
+        byte[] pageData = (restored == null) ? null : restored.getPageData();
+        int size = (restored == null) ? tuple.size() : pageDataSize(pageData);
+        long prevLsn = lastLogRecord(tid);
+        long lsn = beginRecord(COMPENSATION_RECORD, tid, 2 * LONG_SIZE + 1 + size);
+        buffer.putLong(prevLsn);
+        buffer.putLong(undoNextLsn);
+        buffer.put((byte) type);
+        if (restored == null) {
+            tuple.write(buffer);
+        } else {
+            writePageData(buffer, restored, pageData);
+        }
+        endRecord(lsn);
+        setLastLogRecord(tid, lsn);
+        return lsn;
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    private long lastLogRecord(long tid) {
+        Long last = tidToLastLogRecord.get(tid);
+        return (last == null) ? NO_LSN : last;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    // Only transactions that began are rolled back, or active at a
+    // checkpoint
+    private void setLastLogRecord(long tid, long lsn) {
+        if (tidToFirstLogRecord.containsKey(tid)) {
+            tidToLastLogRecord.put(tid, lsn);
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    static int pageDataSize(byte[] pageData) {
+        return 1 + 3 * INT_SIZE + pageData.length;
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    static void writePageData(ByteBuffer buf, Page p, byte[] pageData) throws IOException {
+        //page data is:
+        // page type id
+        // table id
+        // page number
+        // page data length
+        // page data
+        if (!(p instanceof HeapPage)) {
+            throw new IOException("cannot log pages of type " + p.getClass().getName());
         }
-        return newPage;
+        PageId pid = p.getId();
+        buf.put((byte) HEAP_PAGE);
+        buf.putInt(pid.getTableId());
+        buf.putInt(pid.pageNumber());
+        buf.putInt(pageData.length);
+        buf.put(pageData);
+    }
 
+    static Page readPageData(ByteBuffer buf) throws IOException {
+        int type = buf.get();
+        int tableId = buf.getInt();
+        int pageNumber = buf.getInt();
+        byte[] pageData = new byte[buf.getInt()];
+        buf.get(pageData);
+
+        switch (type) {
+        case HEAP_PAGE:
+            return new HeapPage(new HeapPageId(tableId, pageNumber), pageData);
+        default:
+            throw new IOException("unknown page type " + type + " in log");
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,149 +751,115 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = beginRecord(BEGIN_RECORD, tid.getId(), 0);
+        endRecord(lsn);
+        tidToFirstLogRecord.put(tid.getId(), lsn);
+        tidToLastLogRecord.put(tid.getId(), lsn);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: no pages are flushed and no transaction is held up
+        while it is taken.  It records the dirty page table of the
+        BufferPool, and asks it to write back in the background the pages
+        that were dirty when the checkpoint began.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+        // Changes are logged holding page monitors, so the dirty page
+        // table is read without holding ours.  Analysis starts where the
+        // log was before it was read: a change logged earlier is either
+        // in the table or on disk.
+        long beginLsn;
+        synchronized (this) {
+            preAppend();
+            beginLsn = nextLsn;
         }
+        HashMap<PageId,Long> dirty = Database.getBufferPool().dirtyPages();
 
-        logTruncate();
-    }
-
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, lsn = " + nextLsn);
+            long redoLsn = beginLsn;
+            for (long recLsn : dirty.values()) {
+                redoLsn = Math.min(redoLsn, recLsn);
             }
 
-            int numOutstanding = raf.readInt();
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            long cpLsn = beginRecord(CHECKPOINT_RECORD, -1, //no tid
+                                     2 * LONG_SIZE + INT_SIZE + keys.size() * 3 * LONG_SIZE
+                                     + INT_SIZE + dirty.size() * (2 * INT_SIZE + LONG_SIZE));
+            buffer.putLong(redoLsn);
+            buffer.putLong(beginLsn);
+
+            //write list of outstanding transactions
+            buffer.putInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                buffer.putLong(key);
+                buffer.putLong(tidToFirstLogRecord.get(key));
+                buffer.putLong(lastLogRecord(key));
+            }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            //write the dirty page table
+            buffer.putInt(dirty.size());
+            for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+                buffer.putInt(e.getKey().getTableId());
+                buffer.putInt(e.getKey().pageNumber());
+                buffer.putLong(e.getValue());
             }
+            endRecord(cpLsn);
+
+            //once the CP is written, make sure the CP location in the
+            // header of the log file is updated
+            force();
+            checkpointLsn = cpLsn;
+            writeFileHeader();
+            //Debug.log("CP LSN = " + cpLsn);
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+        // By the next checkpoint, redo can start after this one began
+        Database.getBufferPool().writeBack(beginLsn);
+        logTruncate();
+    }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    // The LSN redo starts from: that of the last checkpoint, or the start
+    // of the log if there is none
+    private long redoLsn() throws IOException {
+        if (checkpointLsn == NO_CHECKPOINT_ID) return baseLsn;
+        ByteBuffer checkpoint = readRecord(checkpointLsn);
+        if (checkpoint == null) {
+            throw new IOException("checkpoint record " + checkpointLsn + " is missing");
+        }
+        return checkpoint.getLong();
+    }
 
-            } catch (EOFException e) {
-                break;
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  Records keep their LSNs, so this just deletes the
+        segments that hold only records before the oldest one needed. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        if (checkpointLsn == NO_CHECKPOINT_ID) return;
+
+        // we need what redo reads from the last checkpoint, and
+        // everything transactions that are still running wrote
+        long minLogRecord = redoLsn();
+        for (long first : tidToFirstLogRecord.values()) {
+            if (first < minLogRecord) {
+                minLogRecord = first;
             }
         }
+        long start = minLogRecord - minLogRecord % segmentSize;
+        if (start <= baseLsn) return;
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        Debug.log("TRUNCATING LOG;  NEW START : " + start + " NEW LENGTH: " + (writtenLsn - start));
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
+        // The header moves first: a crash before the segments are gone
+        // leaves them to be deleted when the log is opened
+        baseLsn = start;
+        writeFileHeader();
+        deleteSegments(start);
         //print();
     }
 
@@ -460,25 +870,144 @@ public class LogFile {
         be enforced by this method.)
 
         @param tid The transaction to rollback
+        @return the LSN of the last compensation record logged for each
+          page, when the BufferPool undoes the pages (NO-FORCE); empty
+          when they are written here
     */
-    public void rollback(TransactionId tid)
+    public HashMap<PageId,Long> rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                // Only changes that reached the log can have reached the
+                // disk.  The BufferPool undoes the pages it holds in
+                // memory once the abort record is written.  Under
+                // NO-FORCE the disk may lack committed changes the pool
+                // holds, so only the pool's pages are undone, and the
+                // compensation records are merely logged
+                TreeMap<Long,Long> toUndo = new TreeMap<Long,Long>();
+                long last = lastLogRecord(tid.getId());
+                if (last != NO_LSN) {
+                    toUndo.put(last, tid.getId());
+                }
+                HashMap<PageId,Long> compensations = new HashMap<PageId,Long>();
+                if (Database.getBufferPool().getWritePolicy() == WritePolicy.STEAL_NO_FORCE) {
+                    undo(toUndo, null, compensations);
+                } else {
+                    HashMap<PageId,HeapPage> pages = new HashMap<PageId,HeapPage>();
+                    undo(toUndo, pages, null);
+                    writePages(pages);
+                }
+                return compensations;
+            }
+        }
+    }
+
+    // Undoes the changes of transactions, newest first across all of
+    // them, starting from the records in toUndo (LSN -> tid), on the
+    // pages as read from disk into pages; with no pages, only logs the
+    // compensation records.  The LSN of the last compensation record of
+    // each page goes into compensations, if given.
+    private void undo(TreeMap<Long,Long> toUndo, HashMap<PageId,HeapPage> pages,
+                      HashMap<PageId,Long> compensations)
+        throws IOException {
+        while (!toUndo.isEmpty()) {
+            Map.Entry<Long,Long> next = toUndo.pollLastEntry();
+            long lsn = next.getKey();
+            long tid = next.getValue();
+            ByteBuffer record = readRecord(lsn);
+            if (record == null) {
+                throw new IOException("log record " + lsn + " of transaction " + tid + " is missing");
+            }
+
+            long undoNextLsn;
+            int type = recordType(record);
+            switch (type) {
+            case UPDATE_RECORD:
+                undoNextLsn = record.getLong();
+                HeapPage before = (HeapPage) readPageData(record);
+                before.setLsn(logCompensation(tid, UPDATE_RECORD, before, null, undoNextLsn));
+                if (pages != null) {
+                    pages.put(before.getId(), before);
+                }
+                if (compensations != null) {
+                    compensations.put(before.getId(), before.getLsn());
+                }
+                undoneUpdates++;
+                break;
+            case INSERT_RECORD:
+            case DELETE_RECORD:
+                undoNextLsn = record.getLong();
+                TupleChange tuple = TupleChange.read(record);
+                // the opposite change
+                int undoType = (type == INSERT_RECORD) ? DELETE_RECORD : INSERT_RECORD;
+                long clr = logCompensation(tid, undoType, null, tuple, undoNextLsn);
+                if (pages != null) {
+                    HeapPage page = diskPage(pages, tuple.rid.getPageId());
+                    tuple.apply(page, undoType == INSERT_RECORD);
+                    page.setLsn(clr);
+                }
+                if (compensations != null) {
+                    compensations.put(tuple.rid.getPageId(), clr);
+                }
+                undoneUpdates++;
+                break;
+            case COMPENSATION_RECORD:
+                record.getLong(); // previous record
+                undoNextLsn = record.getLong();
+                break;
+            default:
+                // the transaction's BEGIN record
+                undoNextLsn = NO_LSN;
+            }
+            if (undoNextLsn != NO_LSN) {
+                toUndo.put(undoNextLsn, tid);
             }
         }
     }
 
+    // The page as recovery changed it so far, read from disk the first
+    // time; a page past the end of its file is empty
+    private static HeapPage diskPage(HashMap<PageId,HeapPage> pages, PageId pid)
+        throws IOException {
+        HeapPage page = pages.get(pid);
+        if (page == null) {
+            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (pid.pageNumber() < file.numPages()) {
+                page = (HeapPage) file.readPage(pid);
+            } else {
+                page = new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+            }
+            pages.put(pid, page);
+        }
+        return page;
+    }
+
+    // Forces the compensation records, then writes the pages recovery
+    // changed
+    private void writePages(HashMap<PageId,HeapPage> pages) throws IOException {
+        if (pages.isEmpty()) return;
+        force();
+        for (HeapPage page : pages.values()) {
+            DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+            file.writePage(page);
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                for (FileChannel segment : segments.values()) {
+                    segment.close();
+                }
+                segments.clear();
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -493,18 +1022,421 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                long started = System.nanoTime();
+                redoneUpdates = 0;
+                skippedUpdates = 0;
+                undoneUpdates = 0;
+
+                HashMap<PageId,Long> dirty = new HashMap<PageId,Long>();
+                HashMap<Long,Long> losers = analyze(dirty);
+                recoveredBytes = nextLsn - baseLsn;
+                HashMap<PageId,HeapPage> pages = new HashMap<PageId,HeapPage>();
+                long redoLsn = nextLsn;
+                for (long recLsn : dirty.values()) {
+                    redoLsn = Math.min(redoLsn, recLsn);
+                }
+                redo(redoLsn, dirty, pages);
+
+                // Roll back the transactions that never completed; their
+                // compensation records continue their chains
+                TreeMap<Long,Long> toUndo = new TreeMap<Long,Long>();
+                for (Map.Entry<Long,Long> loser : losers.entrySet()) {
+                    tidToFirstLogRecord.put(loser.getKey(), loser.getValue());
+                    tidToLastLogRecord.put(loser.getKey(), loser.getValue());
+                    toUndo.put(loser.getValue(), loser.getKey());
+                }
+                undo(toUndo, pages, null);
+                for (long tid : losers.keySet()) {
+                    endRecord(beginRecord(ABORT_RECORD, tid, 0));
+                }
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                writePages(pages);
+                force();
+
+                // Nobody may read what the pages held before
+                for (PageId pid : pages.keySet()) {
+                    Database.getBufferPool().discardPage(pid);
+                }
+
+                recoveryNanos = System.nanoTime() - started;
+                Debug.log("RECOVERED " + recoveredBytes + " BYTES OF LOG IN "
+                          + (recoveryNanos / 1000000) + " MS: " + redoneUpdates + " REDONE, "
+                          + skippedUpdates + " SKIPPED, " + undoneUpdates + " UNDONE");
+            }
+        }
+
+        // Transaction ids start over, so begin a fresh log.  The
+        // checkpoint reads the dirty page table without our monitor.
+        logCheckpoint();
+    }
+
+    // The analysis pass: reads the log from where the last checkpoint
+    // began (or from its start) to its end, rebuilding the dirty page
+    // table in dirty, and cuts off a record the crash left half written.
+    // @return the transactions that did not complete -> their last record
+    private HashMap<Long,Long> analyze(HashMap<PageId,Long> dirty) throws IOException {
+        HashMap<Long,Long> active = new HashMap<Long,Long>();
+        long lsn = baseLsn;
+        if (checkpointLsn != NO_CHECKPOINT_ID) {
+            ByteBuffer checkpoint = readRecord(checkpointLsn);
+            if (checkpoint == null) {
+                throw new IOException("checkpoint record " + checkpointLsn + " is missing");
             }
-         }
+            checkpoint.getLong(); // where redo starts
+            lsn = checkpoint.getLong();
+            int count = checkpoint.getInt();
+            for (int i = 0; i < count; i++) {
+                long activeTid = checkpoint.getLong();
+                checkpoint.getLong(); // first record
+                active.put(activeTid, checkpoint.getLong());
+            }
+            count = checkpoint.getInt();
+            for (int i = 0; i < count; i++) {
+                HeapPageId pid = new HeapPageId(checkpoint.getInt(), checkpoint.getInt());
+                dirty.put(pid, checkpoint.getLong());
+            }
+        }
+
+        ByteBuffer record;
+        while ((record = readRecord(lsn)) != null) {
+            // A page changed while the checkpoint was taken may be
+            // missing from its table
+            PageId pid = changedPage(record);
+            if (pid != null && !dirty.containsKey(pid)) {
+                dirty.put(pid, lsn);
+            }
+
+            // The checkpoint's table holds the transactions as of its
+            // own record
+            long tid = recordTid(record);
+            if (lsn > checkpointLsn) {
+                switch (recordType(record)) {
+                case BEGIN_RECORD:
+                case UPDATE_RECORD:
+                case INSERT_RECORD:
+                case DELETE_RECORD:
+                case COMPENSATION_RECORD:
+                    active.put(tid, lsn);
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    active.remove(tid);
+                    break;
+                }
+            }
+            lsn += recordSize(record);
+        }
+
+        if (lsn < writtenLsn) {
+            truncateSegments(lsn);
+            writtenLsn = lsn;
+            synchronized (flushLock) {
+                flushRequested = Math.min(flushRequested, lsn);
+                flushedLsn = lsn;
+            }
+        }
+        nextLsn = lsn;
+        return active;
+    }
+
+    // The page the change logged in record applies to, or null if it is
+    // not a change.  Leaves record where it was.
+    private static PageId changedPage(ByteBuffer record) {
+        ByteBuffer buf = record.duplicate();
+        int type = recordType(record);
+        if (type == COMPENSATION_RECORD) {
+            buf.getLong(); // previous record
+            buf.getLong(); // next record to undo
+            type = buf.get();
+        } else if (type == UPDATE_RECORD || type == INSERT_RECORD || type == DELETE_RECORD) {
+            buf.getLong(); // previous record
+        } else {
+            return null;
+        }
+        if (type == UPDATE_RECORD) {
+            buf.get(); // page type
+        }
+        return new HeapPageId(buf.getInt(), buf.getInt());
+    }
+
+    // The redo pass: repeats the changes logged from lsn on that the
+    // pages on disk do not hold yet, whichever transaction made them, on
+    // the pages as read from disk into pages.  Changes to pages the
+    // dirty page table says were written later are skipped unread.
+    private void redo(long lsn, HashMap<PageId,Long> dirty, HashMap<PageId,HeapPage> pages)
+        throws IOException {
+        ByteBuffer record;
+        while ((record = readRecord(lsn)) != null) {
+            PageId pid = changedPage(record);
+            Long recLsn = (pid == null) ? null : dirty.get(pid);
+            if (pid == null) {
+                // nothing to redo
+            } else if (recLsn == null || lsn < recLsn) {
+                skippedUpdates++;
+            } else {
+                int type = recordType(record);
+                record.getLong(); // previous record
+                if (type == UPDATE_RECORD) {
+                    readPageData(record); // before image
+                } else if (type == COMPENSATION_RECORD) {
+                    record.getLong(); // next record to undo
+                    type = record.get();
+                }
+                redoChange(type, record, pages, lsn);
+            }
+            lsn += recordSize(record);
+        }
+    }
+
+    // Applies the change of the given type logged at lsn, unless its
+    // page holds it already
+    private void redoChange(int type, ByteBuffer record, HashMap<PageId,HeapPage> pages,
+                            long lsn) throws IOException {
+        if (type == UPDATE_RECORD) {
+            HeapPage after = (HeapPage) readPageData(record);
+            if (diskPage(pages, after.getId()).getLsn() >= lsn) {
+                skippedUpdates++;
+                return;
+            }
+            after.setLsn(lsn);
+            pages.put(after.getId(), after);
+        } else {
+            TupleChange tuple = TupleChange.read(record);
+            HeapPage page = diskPage(pages, tuple.rid.getPageId());
+            if (page.getLsn() >= lsn) {
+                skippedUpdates++;
+                return;
+            }
+            tuple.apply(page, type == INSERT_RECORD);
+            page.setLsn(lsn);
+        }
+        redoneUpdates++;
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        // some code goes here
+    public synchronized void print() throws IOException {
+        System.out.println("checkpoint: " + checkpointLsn + ", first LSN: " + baseLsn);
+        long lsn = baseLsn;
+        ByteBuffer record;
+        while ((record = readRecord(lsn)) != null) {
+            StringBuilder line = new StringBuilder();
+            line.append(lsn).append(": tid ").append(recordTid(record)).append(' ');
+            switch (recordType(record)) {
+            case ABORT_RECORD:
+                line.append("ABORT");
+                break;
+            case COMMIT_RECORD:
+                line.append("COMMIT");
+                break;
+            case BEGIN_RECORD:
+                line.append("BEGIN");
+                break;
+            case UPDATE_RECORD:
+                line.append("prev ").append(record.getLong()).append(' ');
+                Page before = readPageData(record);
+                Page after = readPageData(record);
+                line.append("UPDATE ").append(before.getId().getTableId())
+                    .append(':').append(after.getId().pageNumber());
+                break;
+            case INSERT_RECORD:
+            case DELETE_RECORD:
+                line.append("prev ").append(record.getLong()).append(' ');
+                line.append(recordType(record) == INSERT_RECORD ? "INSERT " : "DELETE ");
+                line.append(TupleChange.read(record).rid);
+                break;
+            case COMPENSATION_RECORD:
+                line.append("prev ").append(record.getLong()).append(' ');
+                line.append("COMPENSATION undo next ").append(record.getLong());
+                if (record.get() == UPDATE_RECORD) {
+                    Page restored = readPageData(record);
+                    line.append(" page ").append(restored.getId().getTableId())
+                        .append(':').append(restored.getId().pageNumber());
+                } else {
+                    line.append(" tuple ").append(TupleChange.read(record).rid);
+                }
+                break;
+            case CHECKPOINT_RECORD:
+                line.append("CHECKPOINT redo ").append(record.getLong());
+                line.append(" begin ").append(record.getLong());
+                int count = record.getInt();
+                for (int i = 0; i < count; i++) {
+                    line.append(' ').append(record.getLong())
+                        .append('@').append(record.getLong())
+                        .append('-').append(record.getLong());
+                }
+                count = record.getInt();
+                line.append(" dirty");
+                for (int i = 0; i < count; i++) {
+                    line.append(' ').append(record.getInt())
+                        .append(':').append(record.getInt())
+                        .append('@').append(record.getLong());
+                }
+                break;
+            default:
+                line.append("type ").append(recordType(record));
+            }
+            System.out.println(line);
+            lsn += recordSize(record);
+        }
+    }
+
+    /** Force everything appended to the log so far to disk.  Unless the
+        caller holds the log's monitor, the log writer forces it together
+        with the records others are waiting for.
+    */
+    public void force() throws IOException {
+        if (Thread.holdsLock(this)) {
+            // Appenders are held up anyway; the log writer would be too
+            forceNow();
+            return;
+        }
+        long end;
+        synchronized (this) {
+            end = nextLsn;
+        }
+        awaitFlush(end);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force the log to disk up to and including the record at lsn,
+        e.g. before writing a page that holds the change logged there.
+    */
+    public void force(long lsn) throws IOException {
+        if (Thread.holdsLock(this)) {
+            forceNow();
+            return;
+        }
+        // The log is forced up to record boundaries.  A page may hold an
+        // LSN of an earlier log that recovery was not asked to read.
+        long end;
+        synchronized (this) {
+            end = Math.min(lsn + 1, nextLsn);
+        }
+        awaitFlush(end);
+    }
+
+    /** Sets how long the log writer waits for more transactions to
+        join a flush before forcing the log.  Longer delays batch more
+        commits into one fsync, but each commit takes longer.
+
+        @param micros the delay in microseconds; 0 forces at once
+    */
+    public void setGroupCommitDelay(long micros) {
+        groupCommitDelayMicros = Math.max(0, micros);
+    }
+
+    private synchronized void forceNow() throws IOException {
+        writeBuffer();
+        for (FileChannel segment : unforcedSegments()) {
+            segment.force(true);
+        }
+        flushed(writtenLsn, null);
+    }
+
+    // Records that the log up to lsn is durable, or that forcing it
+    // failed, and wakes whoever waits for it
+    private void flushed(long lsn, IOException error) {
+        synchronized (flushLock) {
+            if (error != null) {
+                // the waiters give up; the next one asks again
+                flushError = error;
+                flushRequested = flushedLsn;
+            } else if (lsn > flushedLsn) {
+                totalForces++;
+                flushedLsn = lsn;
+                flushError = null;
+            }
+            flushLock.notifyAll();
+        }
+    }
+
+    // Waits until the log up to lsn is durable, asking the log writer
+    // to force it
+    private void awaitFlush(long lsn) throws IOException {
+        boolean interrupted = false;
+        try {
+            synchronized (flushLock) {
+                if (flushedLsn >= lsn) return;
+                flushRequested = Math.max(flushRequested, lsn);
+                flushError = null;
+                if (writer == null) {
+                    writer = new Thread(new Runnable() {
+                        public void run() {
+                            writeLoop();
+                        }
+                    }, "LogFile writer");
+                    writer.setDaemon(true);
+                    writer.start();
+                }
+                flushLock.notifyAll();
+
+                while (flushedLsn < lsn) {
+                    if (flushError != null) {
+                        throw new IOException("could not force the log: " + flushError);
+                    }
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // The log writer: forces the log whenever someone waits for records
+    // that are not durable yet, for everyone waiting at once.  Exits
+    // once nobody has waited for a while.
+    private void writeLoop() {
+        while (true) {
+            synchronized (flushLock) {
+                long idleSince = System.currentTimeMillis();
+                while (flushRequested <= flushedLsn) {
+                    long idle = System.currentTimeMillis() - idleSince;
+                    if (idle >= WRITER_IDLE_MILLIS) {
+                        writer = null;
+                        return;
+                    }
+                    try {
+                        flushLock.wait(WRITER_IDLE_MILLIS - idle);
+                    } catch (InterruptedException e) {
+                        // only ever stopped by going idle
+                    }
+                }
+            }
+
+            long delay = groupCommitDelayMicros;
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+                } catch (InterruptedException e) {
+                    // force early
+                }
+            }
+
+            long lsn = 0;
+            try {
+                ArrayList<FileChannel> files;
+                synchronized (this) {
+                    writeBuffer();
+                    lsn = writtenLsn;
+                    files = unforcedSegments();
+                }
+                for (FileChannel file : files) {
+                    file.force(true);
+                }
+                flushed(lsn, null);
+            } catch (ClosedChannelException e) {
+                // the log was thrown out or truncated meanwhile; we try
+                // again with the segments left
+            } catch (IOException e) {
+                flushed(lsn, e);
+            }
+        }
     }
 
 }
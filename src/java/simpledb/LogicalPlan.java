@@ -334,7 +334,13 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (subplan instanceof SeqScan && ((SeqScan) subplan).getPredicate() == null) {
+                // The scan tests the predicate on the page bytes and skips
+                // decoding the tuples that fail it
+                subplanMap.put(lf.tableAlias, new SeqScan(t, this.getTableId(lf.tableAlias), lf.tableAlias, p));
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
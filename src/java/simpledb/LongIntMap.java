@@ -0,0 +1,147 @@
+package simpledb;
+
+/**
+ * An open-addressing hash map from primitive long keys to non-negative
+ * int values (typically slots in some array).  Lookups and updates do not
+ * allocate, which keeps them off the garbage collector on hot paths.
+ * <p>
+ * Collisions are resolved by linear probing; removals shift the following
+ * entries back so no tombstones are needed.  Not thread safe: callers
+ * synchronize externally.
+ */
+public class LongIntMap {
+    /** Returned by {@link #get} and {@link #remove} for absent keys. */
+    public static final int NO_VALUE = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+
+    public LongIntMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /** @param expected number of entries to size the table for */
+    public LongIntMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.used = new boolean[capacity];
+        this.size = 0;
+    }
+
+    private int mask() {
+        return keys.length - 1;
+    }
+
+    // Murmur3 finalizer: page keys differ mostly in their low bits
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int indexOf(long key) {
+        int i = hash(key) & mask();
+        while (used[i]) {
+            if (keys[i] == key) return i;
+            i = (i + 1) & mask();
+        }
+        return -1;
+    }
+
+    /** @return the number of entries in the map */
+    public int size() {
+        return size;
+    }
+
+    /** @return the value mapped to key, or NO_VALUE */
+    public int get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? NO_VALUE : values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Maps key to value, replacing any previous mapping.
+     *
+     * @param value a non-negative value
+     */
+    public void put(long key, int value) {
+        assert (value >= 0);
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+
+        int i = hash(key) & mask();
+        while (used[i]) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask();
+        }
+
+        used[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    /** @return the value that was mapped to key, or NO_VALUE */
+    public int remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) return NO_VALUE;
+
+        int value = values[i];
+        used[i] = false;
+        size--;
+
+        // Shift back entries whose probe sequence passed through i
+        int j = (i + 1) & mask();
+        while (used[j]) {
+            int home = hash(keys[j]) & mask();
+            boolean movable = (j > i) ? (home <= i || home > j)
+                                      : (home <= i && home > j);
+            if (movable) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                used[i] = true;
+                used[j] = false;
+                i = j;
+            }
+            j = (j + 1) & mask();
+        }
+
+        return value;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
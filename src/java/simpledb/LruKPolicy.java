@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * LRU-K replacement (O'Neil et al.).  Each frame remembers the times of
+ * its last K references; the victim is the frame whose K-th most recent
+ * reference is oldest.  Frames referenced fewer than K times are treated
+ * as infinitely old and are evicted first, least recently used first.
+ * <p>
+ * A hit only updates the history of its own frame, so hits on different
+ * frames never contend.  Eviction keeps the frames in a heap ordered by
+ * their history as it last saw it.  A hit only makes a frame younger, so
+ * a candidate whose history changed is put back with the new one and the
+ * heap is repaired lazily, at O(log n) per hit.  A newly admitted frame
+ * starts over, so it is queued for the next eviction to add.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+    private final int k;
+    // history[frame][0] is the most recent reference, [k-1] the K-th
+    private final long[][] history;
+    // frames admitted since the last eviction; a frame is queued once
+    private final ConcurrentLinkedQueue<Integer> admitted;
+    private final AtomicIntegerArray queued;
+    // only touched by evict(), which the pool serializes: the candidates,
+    // at most one live one per frame, that of its current generation
+    private final PriorityQueue<Candidate> heap;
+    private final int[] generation;
+
+    // A frame's history as eviction last saw it
+    private static class Candidate {
+        final int frame;
+        final int generation;
+        final long kth;
+        final long last;
+
+        Candidate(int frame, int generation, long kth, long last) {
+            this.frame = frame;
+            this.generation = generation;
+            this.kth = kth;
+            this.last = last;
+        }
+    }
+
+    public LruKPolicy(int numFrames, int k) {
+        assert (k >= 1);
+        this.k = k;
+        this.history = new long[numFrames][k];
+        this.admitted = new ConcurrentLinkedQueue<Integer>();
+        this.queued = new AtomicIntegerArray(numFrames);
+        this.heap = new PriorityQueue<Candidate>(Math.max(1, numFrames), new Comparator<Candidate>() {
+            public int compare(Candidate a, Candidate b) {
+                if (isOlder(a.kth, a.last, b.kth, b.last)) return -1;
+                if (isOlder(b.kth, b.last, a.kth, a.last)) return 1;
+                return 0;
+            }
+        });
+        this.generation = new int[numFrames];
+    }
+
+    public void admit(int frame) {
+        remove(frame);
+        access(frame);
+        if (queued.compareAndSet(frame, 0, 1)) {
+            admitted.add(frame);
+        }
+    }
+
+    public void access(int frame) {
+        long[] refs = history[frame];
+        synchronized (refs) {
+            for (int i = k - 1; i > 0; i--) {
+                refs[i] = refs[i - 1];
+            }
+            refs[0] = System.nanoTime();
+        }
+    }
+
+    public void remove(int frame) {
+        long[] refs = history[frame];
+        synchronized (refs) {
+            for (int i = 0; i < k; i++) {
+                refs[i] = 0;
+            }
+        }
+    }
+
+    public int evict(Evictor evictor) {
+        Integer frame;
+        while ((frame = admitted.poll()) != null) {
+            queued.set(frame, 0);
+            generation[frame]++;
+            Candidate c = current(frame);
+            if (c != null) heap.add(c);
+        }
+
+        ArrayList<Candidate> refused = new ArrayList<Candidate>();
+        try {
+            Candidate c;
+            while ((c = heap.poll()) != null) {
+                if (c.generation != generation[c.frame]) continue;
+                Candidate now = current(c.frame);
+                // No page in the frame any more
+                if (now == null) continue;
+                if (now.kth != c.kth || now.last != c.last) {
+                    heap.add(now);
+                    continue;
+                }
+
+                // Kept until the frame is removed, which the evictor may
+                // do later or not at all
+                refused.add(c);
+                if (evictor.tryEvict(c.frame)) return c.frame;
+            }
+            return -1;
+        } finally {
+            heap.addAll(refused);
+        }
+    }
+
+    // The frame's history now, or null if it holds no page
+    private Candidate current(int frame) {
+        long[] refs = history[frame];
+        synchronized (refs) {
+            if (refs[0] == 0) return null;
+            return new Candidate(frame, generation[frame], refs[k - 1], refs[0]);
+        }
+    }
+
+    // A frame without K references (kth == 0) is older than any frame with
+    // them; ties fall back to plain LRU
+    private static boolean isOlder(long kth, long last, long otherKth, long otherLast) {
+        if (kth != otherKth) {
+            if (kth == 0) return true;
+            if (otherKth == 0) return false;
+            return kth < otherKth;
+        }
+        return last < otherLast;
+    }
+}
@@ -0,0 +1,31 @@
+package simpledb;
+
+/**
+ * Packs a page id into a single long: the table id in the high 32 bits and
+ * the page number in the low 32 bits.  Unlike {@link PageId#hashCode}, two
+ * different pages never share a key, so the key can index the buffer pool
+ * and lock tables directly.
+ */
+public final class PageKey {
+    private PageKey() {}
+
+    /** @return the 64-bit key of the page */
+    public static long of(PageId pid) {
+        return of(pid.getTableId(), pid.pageNumber());
+    }
+
+    /** @return the 64-bit key of the page of table tableId numbered pgNo */
+    public static long of(int tableId, int pgNo) {
+        return ((long) tableId << 32) | (pgNo & 0xFFFFFFFFL);
+    }
+
+    /** @return the table id packed into key */
+    public static int tableId(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /** @return the page number packed into key */
+    public static int pageNumber(long key) {
+        return (int) key;
+    }
+}
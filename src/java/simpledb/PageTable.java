@@ -0,0 +1,66 @@
+package simpledb;
+
+/**
+ * PageTable maps the pages resident in the BufferPool to the frame that
+ * holds them.  The table is split into independently locked stripes so
+ * that lookups of pages in different stripes never contend.
+ * <p>
+ * Pages are keyed by their full (tableId, pageNo) {@link PageKey}, so
+ * pages of different tables never alias, and each stripe is a primitive
+ * {@link LongIntMap} so lookups do not allocate.
+ * <p>
+ * Callers that need several operations to happen atomically (check then
+ * remove, for example) may hold the monitor returned by {@link #stripe};
+ * all methods of this class synchronize on that same monitor.
+ */
+public class PageTable {
+    private static final int NUM_STRIPES = 64;
+
+    private final LongIntMap[] stripes;
+
+    public PageTable() {
+        this.stripes = new LongIntMap[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            this.stripes[i] = new LongIntMap();
+        }
+    }
+
+    private LongIntMap stripeMap(long key) {
+        // Mix table and page bits: page numbers live in the low bits
+        int h = (int) (key ^ (key >>> 32));
+        h ^= (h >>> 16);
+        return this.stripes[(h & 0x7fffffff) % NUM_STRIPES];
+    }
+
+    /** @return the monitor guarding the stripe that pid belongs to */
+    public Object stripe(PageId pid) {
+        return stripeMap(PageKey.of(pid));
+    }
+
+    /** @return the frame holding pid, or -1 if it is not resident */
+    public int get(PageId pid) {
+        long key = PageKey.of(pid);
+        LongIntMap map = stripeMap(key);
+        synchronized (map) {
+            return map.get(key);
+        }
+    }
+
+    /** Record that pid is now held in frame. */
+    public void put(PageId pid, int frame) {
+        long key = PageKey.of(pid);
+        LongIntMap map = stripeMap(key);
+        synchronized (map) {
+            map.put(key, frame);
+        }
+    }
+
+    /** Forget the frame holding pid, if any. */
+    public void remove(PageId pid) {
+        long key = PageKey.of(pid);
+        LongIntMap map = stripeMap(key);
+        synchronized (map) {
+            map.remove(key);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which buffer pool frame is given up when the
+ * BufferPool needs room for a new page.
+ * <p>
+ * Frames are identified by their index in the pool (0 .. numPages-1).
+ * {@link #access} is called on every cache hit, possibly from many threads
+ * at once, so implementations must keep it O(1) and must not take a lock
+ * that is shared by all frames.  {@link #evict} is only ever called by one
+ * thread at a time (the BufferPool serializes evictions).
+ *
+ * @see BufferPool
+ * @see ClockPolicy
+ * @see LruKPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Callback used by a policy to ask the BufferPool to give up a frame.
+     * The BufferPool refuses frames holding dirty or exclusively locked
+     * pages.
+     */
+    public interface Evictor {
+        /** @return true if the frame was emptied, false if it must be kept */
+        public boolean tryEvict(int frame);
+    }
+
+    /** Record that the frame was just filled with a newly read page. */
+    public void admit(int frame);
+
+    /** Record a cache hit on the frame. */
+    public void access(int frame);
+
+    /** Forget any history about the frame; it no longer holds a page. */
+    public void remove(int frame);
+
+    /**
+     * Choose a victim frame and empty it through the evictor.
+     *
+     * @return the emptied frame, or -1 if every candidate was refused
+     */
+    public int evict(Evictor evictor);
+}
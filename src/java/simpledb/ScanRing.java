@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * ScanRing is a small private set of BufferPool frames that a large
+ * sequential scan cycles through, so that reading a table much larger than
+ * the pool does not push every other page out of it.
+ * <p>
+ * When a scan with a ring misses, the BufferPool reuses the frame of the
+ * oldest page the ring loaded, as long as that page is still clean and not
+ * exclusively locked; otherwise the page is left to the shared pool and a
+ * frame is taken from it as usual.  Ring pages are ordinary resident
+ * pages: other transactions may hit them and the shared replacement policy
+ * may evict them, after which the ring simply forgets them.
+ * <p>
+ * A ring belongs to one scan; it is synchronized only because the scan's
+ * read-ahead fills it from another thread.
+ *
+ * @see BufferPool#newScanRing
+ */
+public class ScanRing {
+    private final int capacity;
+    private final ArrayDeque<Integer> frames;
+    private final ArrayDeque<Page> pages;
+
+    ScanRing(int capacity) {
+        assert (capacity > 0);
+        this.capacity = capacity;
+        this.frames = new ArrayDeque<Integer>(capacity);
+        this.pages = new ArrayDeque<Page>(capacity);
+    }
+
+    /** @return the number of frames the ring cycles through */
+    public int capacity() {
+        return capacity;
+    }
+
+    synchronized boolean isFull() {
+        return frames.size() >= capacity;
+    }
+
+    /** Record that the ring loaded page into frame. */
+    synchronized void add(int frame, Page page) {
+        frames.addLast(frame);
+        pages.addLast(page);
+    }
+
+    /** @return the page the ring loaded longest ago */
+    synchronized Page oldestPage() {
+        return pages.peekFirst();
+    }
+
+    /** Forget the oldest page and return the frame it was loaded into. */
+    synchronized int removeOldest() {
+        pages.removeFirst();
+        return frames.removeFirst();
+    }
+}
@@ -13,6 +13,8 @@ public class SeqScan implements DbIterator {
     private String tableAlias;
     private DbFileIterator iterator;
     private DbFile file;
+    private Predicate predicate;
+    private boolean scanResistant = true;
 
 
     /**
@@ -41,11 +43,46 @@ public class SeqScan implements DbIterator {
     }
 
 
+    /**
+     * Creates a sequential scan that returns only the tuples of the table
+     * that satisfy p.  The scan tests p against the raw page bytes, so
+     * rejected tuples are never decoded.  Used by the query planner in
+     * place of a Filter over a plain scan.
+     *
+     * @param p the predicate the returned tuples satisfy
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, Predicate p) {
+        this(tid, tableid, tableAlias);
+        predicate = p;
+    }
+
+
+    /** @return the predicate this scan applies, or null if it has none */
+    public Predicate getPredicate() {
+        return predicate;
+    }
+
+
+    /**
+     * Controls whether a scan of a table larger than the buffer pool reads
+     * its pages through a small {@link ScanRing} instead of the whole pool
+     * (the default), so that it does not evict the pages other queries
+     * are using.  Must be called before open.
+     */
+    public void setScanResistant(boolean scanResistant) {
+        this.scanResistant = scanResistant;
+    }
+
+
     public void open()
         throws DbException, TransactionAbortedException {
          HeapFile heapFile = (HeapFile) file;
          assert (heapFile != null);
-         iterator = new HeapFileIterator(transactionId, heapFile);
+         ScanRing ring = null;
+         if (scanResistant) {
+             ring = Database.getBufferPool().newScanRing(heapFile.numPages());
+         }
+         iterator = new HeapFileIterator(transactionId, heapFile, predicate, ring);
          iterator.open();
     }
 
@@ -7,6 +7,10 @@ public class SimpleDb {
         // convert a file
         if(args[0].equals("convert")) {
         try {
+            // -histograms (last) also prints a histogram of each int column
+            boolean histograms = args[args.length-1].equals("-histograms");
+            if (histograms)
+                args = java.util.Arrays.copyOf(args, args.length-1);
             if (args.length<3 || args.length>5){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
@@ -43,8 +47,13 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+            IntHistogram[] hists = HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
+                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator,
+                        Runtime.getRuntime().availableProcessors(),histograms);
+            if (histograms)
+                for (int i=0;i<hists.length;i++)
+                    if (hists[i]!=null)
+                        System.out.println("column " + i + ": " + hists[i]);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -5,19 +5,42 @@ import java.io.*;
 /**
  * Transaction encapsulates information about the state of
  * a transaction and manages transaction commit / abort.
+ * <p>
+ * A read-only transaction reads a snapshot of the database as of its
+ * start, without taking locks; it cannot change anything.  An optimistic
+ * transaction takes no locks either while it runs, and is validated
+ * against the transactions that committed meanwhile when it commits.
  */
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
+    private boolean optimistic = false;
+    private IsolationLevel isolationLevel = IsolationLevel.REPEATABLE_READ;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            // Nothing to log or undo
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
+        if (optimistic) {
+            Database.getBufferPool().beginOptimistic(tid);
+        } else {
+            Database.getBufferPool().setIsolationLevel(tid, isolationLevel);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,8 +52,51 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Makes the transaction run optimistically, with no locks until it
+     * commits.  Must be called before start.
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * Sets how long the transaction keeps its read locks.  Must be called
+     * before start; read-only and optimistic transactions take no locks.
+     */
+    public void setIsolationLevel(IsolationLevel level) {
+        this.isolationLevel = level;
+    }
+
+    public IsolationLevel getIsolationLevel() {
+        return isolationLevel;
+    }
+
+    /**
+     * Finish the transaction
+     * @throws TransactionAbortedException if the transaction runs
+     *   optimistically and fails validation; it has been aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && optimistic) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(true);
+                throw e;
+            } catch (DbException e) {
+                transactionComplete(true);
+                throw new IOException("could not validate transaction " + tid.getId() + ": " + e);
+            }
+        }
         transactionComplete(false);
     }
 
@@ -44,11 +110,17 @@ public class Transaction {
 
         if (started) {
             //write commit / abort records
-            if (abort) {
+            if (readOnly) {
+                // nothing was written
+            } else if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //write all the dirty pages for this transaction out,
+                //unless the page writer writes them back later
+                BufferPool pool = Database.getBufferPool();
+                if (pool.getWritePolicy() == WritePolicy.FORCE_NO_STEAL) {
+                    pool.flushPages(tid);
+                }
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -2,283 +2,251 @@ package simpledb;
 
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-
-
-/***
- * Represents a graph. Each transaction Graph contains
- * a transaction object with links to the pages it uses.
- * Provides helper methods to detect conflicts etc
- * Currently linked to a HeapFile and HeapPageId
- * @author masonchang
- *
- */
-
-
-class PageNode {
-	PageNode(PageId pid) {
-		assert (pid != null);
-		assert (pid instanceof HeapPageId);
-
-
-		HeapPageId heapPage = (HeapPageId) pid;
-		this.pid = pid;
-		this.pageNumber = heapPage.pageNumber();
-		this.tableId = heapPage.getTableId();
-		this.isWritable = false;
-	}
-
-
-	public PageId toPageId() {
-		return new HeapPageId(this.tableId, this.pageNumber);
-	}
-
-
-	public void setWritable() {
-		this.isWritable = true;
-	}
-
-
-	public boolean isWritable() {
-		return this.isWritable;
-	}
-
-
-	public int getHash() {
-		return this.pid.hashCode();
-	}
-
-
-	private PageId pid;
-	private int pageNumber;
-	private int tableId;
-	private boolean isWritable;
-}
-
-
-class TransactionNode {
-	TransactionId tid;
-	TransactionNode(TransactionId tid) {
-		this.tid = tid;
-	}
-
-
-	TransactionId toId() {
-		return this.tid;
-	}
-}
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /***
  * A Transaction graph is actually a bipartite graph.
  * One set is transactions
  * The other is the pages in use
- * If a page has a write lock, there should only be one edge between a 
- * transaction and a page. 
- * Read locks can have multiple transaction <--> page links
- * Each node has a read/write marker
+ * Each transaction has an edge to every page it holds a lock on, and
+ * each page to every transaction holding it.
+ * <p>
+ * The graph also keeps the waits-for edges between transactions: a
+ * transaction blocked on a lock points at the transactions holding it.
+ * A cycle of waits-for edges is a deadlock.
+ * <p>
+ * There is no graph-wide monitor: the edges of each transaction and of
+ * each page are concurrent sets in concurrent maps, so threads working
+ * on different transactions and pages never contend, and the pages of a
+ * transaction are handed out as a view rather than copied.  A
+ * transaction's own edges are only changed by the transaction itself,
+ * or once it has completed.
  * @author masonchang
  *
  */
 public class TransactionGraph {
-	private HashMap<Long, TransactionNode> transactions;
-	private HashMap<Integer, PageNode> pages;
-
+	// Stands in for work done without a transaction (a null id), since
+	// the concurrent maps cannot hold null
+	private static final TransactionId NO_TRANSACTION = new TransactionId();
 
-	private HashMap<TransactionNode, HashSet<PageNode>> tidToPages;
-	private HashMap<PageNode, HashSet<TransactionNode>> pageToTid;
 
+	private ConcurrentHashMap<TransactionId, Set<PageId>> tidToPages;
+	private ConcurrentHashMap<PageId, Set<TransactionId>> pageToTid;
 
-	public TransactionGraph() {
-		this.transactions = new HashMap<Long, TransactionNode>();
-		this.pages = new HashMap<Integer, PageNode>();
+	// waiting transaction -> the transactions it waits for; each set is
+	// replaced whole, never changed in place
+	private ConcurrentHashMap<TransactionId, Set<TransactionId>> waitsFor;
 
 
-		this.tidToPages = new HashMap<TransactionNode, HashSet<PageNode>>();
-		this.pageToTid = new HashMap<PageNode, HashSet<TransactionNode>>();
+	public TransactionGraph() {
+		this.tidToPages = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+		this.pageToTid = new ConcurrentHashMap<PageId, Set<TransactionId>>();
+		this.waitsFor = new ConcurrentHashMap<TransactionId, Set<TransactionId>>();
 	}
 
 
-	/***
-	 * Need the transaction / page wrappers because
-	 * we can have multiple different VM objects that represent the same
-	 * Transaction and page.
-	 * @param tid
-	 * @return
-	 */
-	private TransactionNode getTransactionNode(TransactionId tid) {
-		long id = 0;
-		if (tid != null) id = tid.getId();
-
-
-		if (!this.transactions.containsKey(id)) {
-			addTransactionNode(tid);
-		}
-		return this.transactions.get(id);
+	private static TransactionId key(TransactionId tid) {
+		return (tid == null) ? NO_TRANSACTION : tid;
 	}
 
 
-	private PageNode getPageNode(PageId pid) {
-		int id = pid.hashCode();
-		if (!this.pages.containsKey(id)) {
-			addPageNode(pid);
-		}
-		return this.pages.get(id);
+	private static TransactionId fromKey(TransactionId key) {
+		return (key == NO_TRANSACTION) ? null : key;
 	}
 
 
-	private void addTransactionNode(TransactionId tid) {
-		long id = 0;
-		if (tid != null) id = tid.getId();
-
-
-		
-		this.transactions.put(id,new TransactionNode(tid));
+	private static <T> Set<T> newConcurrentSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
 	}
 
 
-	private void addPageNode(PageId pid) {
-		int hash = pid.hashCode();
-		assert (!this.pages.containsKey(hash));
-		this.pages.put(hash, new PageNode(pid));
+	private Set<PageId> pagesOf(TransactionId tid) {
+		Set<PageId> pages = this.tidToPages.get(key(tid));
+		if (pages == null) {
+			Set<PageId> created = newConcurrentSet();
+			pages = this.tidToPages.putIfAbsent(key(tid), created);
+			if (pages == null) pages = created;
+		}
+		return pages;
 	}
 
 
-	private HashSet<PageNode> getTransactionToPageEdges(TransactionNode node) {
-		if (!this.tidToPages.containsKey(node)) {
-			this.tidToPages.put(node, new HashSet<PageNode>());
+	// Adds tid to the holders of pid.  A page's set is dropped once it is
+	// empty, so if the set we added to was dropped meanwhile, add again.
+	private void addHolder(PageId pid, TransactionId tid) {
+		while (true) {
+			Set<TransactionId> holders = this.pageToTid.get(pid);
+			if (holders == null) {
+				Set<TransactionId> created = newConcurrentSet();
+				holders = this.pageToTid.putIfAbsent(pid, created);
+				if (holders == null) holders = created;
+			}
+			holders.add(key(tid));
+			if (this.pageToTid.get(pid) == holders) return;
 		}
-
-
-		return this.tidToPages.get(node);
 	}
 
 
-	private HashSet<TransactionNode> getPageToTransactionEdges(PageNode node) {
-		if (!this.pageToTid.containsKey(node)) {
-			this.pageToTid.put(node, new HashSet<TransactionNode>());
+	private void removeHolder(PageId pid, TransactionId tid) {
+		Set<TransactionId> holders = this.pageToTid.get(pid);
+		if (holders == null) return;
+		holders.remove(key(tid));
+		if (holders.isEmpty()) {
+			this.pageToTid.remove(pid, holders);
 		}
-
-
-		return this.pageToTid.get(node);
 	}
 
 
-	private void clearTransactionNode(TransactionId tid) {
-		long id = tid.getId();
-		assert (this.transactions.containsKey(id));
-		this.transactions.remove(id);
+	/***
+	 * Drops every edge of tid.  The transaction must not take locks any
+	 * more.
+	 */
+	public void transactionComplete(TransactionId tid) {
+		Set<PageId> pages = this.tidToPages.remove(key(tid));
+		if (pages == null) return;
+		for (PageId pid : pages) {
+			removeHolder(pid, tid);
+		}
 	}
 
 
-
-
-
-
-	private void removeEdge(TransactionNode transactionNode, PageNode pageNode) {
-		assert (getTransactionToPageEdges(transactionNode).contains(pageNode));
-
-
-		getTransactionToPageEdges(transactionNode).remove(pageNode);
-		getPageToTransactionEdges(pageNode).remove(transactionNode);
+	/***
+	 * @return the pages tid has edges to, as a read-only view that follows
+	 * later changes
+	 */
+	public Set<PageId> pagesInTransaction(TransactionId tid) {
+		Set<PageId> pages = this.tidToPages.get(key(tid));
+		if (pages == null) return Collections.emptySet();
+		return Collections.unmodifiableSet(pages);
 	}
 
 
-	private void clearDeadPages() {
-		for (PageNode node : this.pageToTid.keySet()) {
-			if (getPageToTransactionEdges(node).isEmpty()) {
-				this.pageToTid.remove(node);
+	/***
+	 * @return the transactions with an edge to pid, as a copy; a null
+	 * element stands for work done without a transaction
+	 */
+	public HashSet<TransactionId> transactionsUsingPage(PageId pid) {
+		HashSet<TransactionId> transactions = new HashSet<TransactionId>();
+		Set<TransactionId> holders = this.pageToTid.get(pid);
+		if (holders != null) {
+			for (TransactionId tid : holders) {
+				transactions.add(fromKey(tid));
 			}
 		}
+		return transactions;
 	}
 
 
-	public synchronized void transactionComplete(TransactionId tid) {
-		TransactionNode transactionNode = getTransactionNode(tid);
-		for (PageNode pageNode : getTransactionToPageEdges(transactionNode)) {
-			removeEdge(transactionNode, pageNode);
-		}
-
-
-		clearTransactionNode(tid);
-		clearDeadPages();
+	public int numPages(TransactionId tid) {
+		Set<PageId> pages = this.tidToPages.get(key(tid));
+		return pages == null ? 0 : pages.size();
 	}
 
 
-	public synchronized HashSet<PageId> pagesInTransaction(TransactionId tid) {
-		TransactionNode transactionNode = getTransactionNode(tid);
-		HashSet<PageId> pages = new HashSet<PageId>();
-		for (PageNode pageNode : getTransactionToPageEdges(transactionNode)) {
-			pages.add(pageNode.toPageId());
-		}
-
-
-		return pages;
+	public int numTransactions(PageId pid) {
+		Set<TransactionId> holders = this.pageToTid.get(pid);
+		return holders == null ? 0 : holders.size();
 	}
 
 
-	public synchronized HashSet<TransactionId> transactionsUsingPage(PageId pid) {
-		PageNode node = getPageNode(pid);
-		HashSet<TransactionId> transactions = new HashSet<TransactionId>();
+	public boolean hasWriteLock(PageId pid) {
+		return numTransactions(pid) == 1;
+	}
 
 
-		for (TransactionNode transactionNode : getPageToTransactionEdges(node)) {
-			transactions.add(transactionNode.toId());
+	public void addEdge(TransactionId transaction, PageId pid) {
+		if (pagesOf(transaction).add(pid)) {
+			addHolder(pid, transaction);
 		}
-
-
-		return transactions;
 	}
 
 
-	public synchronized  int numPages(TransactionId tid) {
-		return pagesInTransaction(tid).size();
+	public void removeEdge(TransactionId transaction, PageId pid) {
+		Set<PageId> pages = this.tidToPages.get(key(transaction));
+		if (pages != null && pages.remove(pid)) {
+			removeHolder(pid, transaction);
+		}
 	}
 
 
-	public synchronized int numTransactions(PageId pid) {
-		return transactionsUsingPage(pid).size();
+	public boolean readsPage(TransactionId tid, PageId pid) {
+		Set<PageId> pages = this.tidToPages.get(key(tid));
+		return pages != null && pages.contains(pid);
 	}
 
 
-	public synchronized boolean hasWriteLock(PageId pid) {
-		return numTransactions(pid) == 1;
+	public boolean writesPage(TransactionId tid, PageId pid) {
+		Set<TransactionId> holders = this.pageToTid.get(pid);
+		return holders != null && holders.size() == 1 && holders.contains(key(tid));
 	}
 
 
-	public synchronized void addEdge(TransactionId transaction, PageId pid) {
-		TransactionNode transactionNode = getTransactionNode(transaction);
-		PageNode page = getPageNode(pid);
-
-
-		getTransactionToPageEdges(transactionNode).add(page);
-		getPageToTransactionEdges(page).add(transactionNode);
+	/***
+	 * Records that waiter is blocked until every transaction in holders
+	 * releases its lock, replacing what waiter waited for before.
+	 */
+	public void setWaitsFor(TransactionId waiter, Collection<TransactionId> holders) {
+		HashSet<TransactionId> edges = new HashSet<TransactionId>();
+		for (TransactionId holder : holders) {
+			edges.add(key(holder));
+		}
+		edges.remove(key(waiter));
+		this.waitsFor.put(key(waiter), Collections.unmodifiableSet(edges));
 	}
 
 
-	public synchronized void removeEdge(TransactionId transaction, PageId pid) {
-		TransactionNode transactionNode = getTransactionNode(transaction);
-		PageNode pageNode = getPageNode(pid);
-		removeEdge(transactionNode, pageNode);
+	public void clearWaitsFor(TransactionId waiter) {
+		this.waitsFor.remove(key(waiter));
 	}
 
 
-	public synchronized boolean readsPage(TransactionId tid, PageId pid) {
-		TransactionNode node = getTransactionNode(tid);
-		PageNode page = getPageNode(pid);
-		return getTransactionToPageEdges(node).contains(page);
+	public boolean isWaiting(TransactionId tid) {
+		return this.waitsFor.containsKey(key(tid));
 	}
 
 
-	public synchronized boolean writesPage(TransactionId tid, PageId pid) {
-		TransactionNode transactionNode = getTransactionNode(tid);
-		PageNode pageNode = getPageNode(pid);
+	/***
+	 * Looks for a cycle of waits-for edges through waiter.  Called each
+	 * time a transaction starts to wait: the graph had no cycle before, so
+	 * any cycle now must pass through the new edges of waiter.  Callers
+	 * that need a consistent answer keep the edges from changing while
+	 * it searches.
+	 * @param waiter
+	 * @return the transactions on the cycle, starting with waiter, or null
+	 * if there is none
+	 */
+	public ArrayList<TransactionId> findCycle(TransactionId waiter) {
+		ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+		path.add(key(waiter));
+		HashSet<TransactionId> visited = new HashSet<TransactionId>();
+		if (!findCycle(key(waiter), path, visited)) return null;
+
+		for (int i = 0; i < path.size(); i++) {
+			path.set(i, fromKey(path.get(i)));
+		}
+		return path;
+	}
 
 
-		HashSet<TransactionNode> nodes = getPageToTransactionEdges(pageNode);
-		return (nodes.size() == 1) && (nodes.contains(transactionNode));
+	// Depth-first search for waiter from the last transaction on path
+	private boolean findCycle(TransactionId waiter, ArrayList<TransactionId> path,
+			HashSet<TransactionId> visited) {
+		Set<TransactionId> edges = this.waitsFor.get(path.get(path.size() - 1));
+		if (edges == null) return false;
 
+		for (TransactionId next : edges) {
+			if (next.equals(waiter)) return true;
+			if (!visited.add(next)) continue;
 
+			path.add(next);
+			if (findCycle(waiter, path, visited)) return true;
+			path.remove(path.size() - 1);
+		}
+		return false;
 	}
 }
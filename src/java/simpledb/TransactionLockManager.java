@@ -1,173 +1,730 @@
 package simpledb;
 
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+
+/***
+ * Multi-granularity locks for transactions on tables, pages and records
+ * (see {@link LockMode}).  Locking a page takes the matching intention
+ * lock on its table first, and locking a record takes intention locks on
+ * its table and page, so transactions can change different records of
+ * one page at the same time.  A transaction that locks many records of a
+ * page or table has the lock escalated to the whole page or table, if
+ * nobody else's lock is in the way.  Work done without a transaction (a
+ * null id) only takes page locks.
+ * <p>
+ * The locks live in two {@link LockTable}s, one for tables and one for
+ * pages and their records, which grant waiting requests in FIFO order and
+ * latch each bucket separately.
+ * <p>
+ * By default a transaction that cannot get a lock waits for as long as
+ * it takes; deadlocks are found by looking for cycles in the waits-for
+ * graph each time a transaction starts to wait, and broken by aborting
+ * one transaction on the cycle.  One of the timestamp-based prevention
+ * policies can be chosen instead; see {@link DeadlockPolicy}.
+ */
+public class TransactionLockManager {
+	/** Record locks a transaction takes on one page before it locks the page instead. */
+	public static final int DEFAULT_PAGE_ESCALATION = 32;
 
+	/** Record locks a transaction takes in one table before it locks the table instead. */
+	public static final int DEFAULT_TABLE_ESCALATION = 1024;
+
+	// the slot of a request for a whole page or table
+	private static final int NO_SLOT = -1;
 
-public class TransactionLockManager {
 	private TransactionGraph transactionInfo;
-	private HashMap<Integer, Semaphore> pageLocks;
-	private static final int MAX_AVAILABLE = 50;
+	private LockTable tableLocks;
+	private LockTable pageLocks;
+	// transaction -> its request that is waiting for a lock
+	private ConcurrentHashMap<TransactionId, LockTable.Request> waiting;
+	// Guards the waits-for edges together with the state of the requests
+	// they belong to, so that only waiting requests ever have edges.
+	// Taken after any LockTable bucket.
+	private final Object waitsForLatch = new Object();
+	private volatile DeadlockPolicy policy;
+	// transactions wounded by an older one, which abort at their next
+	// lock request
+	private Set<TransactionId> wounded;
+	// transaction -> its table locks and record locks
+	private ConcurrentHashMap<TransactionId, HeldLocks> held;
+	private volatile int pageEscalation;
+	private volatile int tableEscalation;
+
+
+	/***
+	 * The table locks a transaction holds, and the records it has locked,
+	 * counted by page and by table to decide when to escalate.  Only
+	 * changed by the transaction's own requests; guarded by its monitor.
+	 */
+	private static class HeldLocks {
+		final HashMap<Integer, LockMode> tables = new HashMap<Integer, LockMode>();
+		final HashSet<RecordId> records = new HashSet<RecordId>();
+		final HashMap<PageId, Integer> recordsPerPage = new HashMap<PageId, Integer>();
+		final HashMap<Integer, Integer> recordsPerTable = new HashMap<Integer, Integer>();
+
+
+		int recordsOn(PageId pid) {
+			Integer n = this.recordsPerPage.get(pid);
+			return n == null ? 0 : n;
+		}
+
+
+		int recordsIn(int tableId) {
+			Integer n = this.recordsPerTable.get(tableId);
+			return n == null ? 0 : n;
+		}
+
+
+		void addRecord(RecordId rid) {
+			if (!this.records.add(rid)) return;
+			PageId pid = rid.getPageId();
+			this.recordsPerPage.put(pid, recordsOn(pid) + 1);
+			this.recordsPerTable.put(pid.getTableId(), recordsIn(pid.getTableId()) + 1);
+		}
+
+
+		void removeRecords(PageId pid) {
+			int removed = 0;
+			for (Iterator<RecordId> it = this.records.iterator(); it.hasNext(); ) {
+				if (it.next().getPageId().equals(pid)) {
+					it.remove();
+					removed++;
+				}
+			}
+			this.recordsPerPage.remove(pid);
+			this.recordsPerTable.put(pid.getTableId(), recordsIn(pid.getTableId()) - removed);
+		}
+	}
 
 
 	public TransactionLockManager() {
+		this(DeadlockPolicy.DETECT);
+	}
+
+
+	public TransactionLockManager(DeadlockPolicy policy) {
 		this.transactionInfo = new TransactionGraph();
-		this.pageLocks = new HashMap<Integer, Semaphore>();
+		this.tableLocks = new LockTable();
+		this.pageLocks = new LockTable();
+		this.waiting = new ConcurrentHashMap<TransactionId, LockTable.Request>();
+		this.policy = policy;
+		this.wounded = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+		this.held = new ConcurrentHashMap<TransactionId, HeldLocks>();
+		this.pageEscalation = DEFAULT_PAGE_ESCALATION;
+		this.tableEscalation = DEFAULT_TABLE_ESCALATION;
 	}
 
 
-	// Returns true if the specific transaction has a write lock 
+	/***
+	 * Changes how deadlocks are handled.  Meant to be set while no
+	 * transaction is waiting: waits that began under the old policy are
+	 * not revisited.
+	 */
+	public void setDeadlockPolicy(DeadlockPolicy policy) {
+		this.policy = policy;
+	}
+
+
+	public DeadlockPolicy getDeadlockPolicy() {
+		return this.policy;
+	}
+
+
+	/***
+	 * Sets how many record locks a transaction takes on one page, and in
+	 * one table, before it tries to lock the whole page or table instead.
+	 */
+	public void setLockEscalation(int pageRecords, int tableRecords) {
+		this.pageEscalation = pageRecords;
+		this.tableEscalation = tableRecords;
+	}
+
+
+	// Returns true if the specific transaction has a write lock
 	// on the given page
 	public boolean hasWriteLock(TransactionId tid, PageId pid) {
-		Semaphore pageLock = getPageLock(pid);
-		if (pageLock.availablePermits() > 0) return false;
-		return this.transactionInfo.writesPage(tid, pid);
+		return hasLock(tid, pid, Permissions.READ_WRITE);
 	}
 
 
 	// returns true if the specific page is locked by any transaction
 	public boolean hasWriteLock(PageId pid) {
-		return this.transactionInfo.hasWriteLock(pid);
+		return isWriteLocked(pid);
 	}
 
 
-	private Semaphore getPageLock(PageId pid) {
-		int hashCode = pid.hashCode();
-		if (!this.pageLocks.containsKey(hashCode)) {
-			this.pageLocks.put(hashCode, new Semaphore(MAX_AVAILABLE));
+	// returns true if some transaction may be changing the page: it
+	// holds the page in a writing mode, or its whole table exclusively
+	public boolean isWriteLocked(PageId pid) {
+		long key = PageKey.of(pid);
+		synchronized (this.pageLocks.bucket(key)) {
+			LockTable.Entry entry = this.pageLocks.get(key);
+			if (entry != null && entry.isLocked(LockMode.IX)) return true;
+		}
+		long tableKey = pid.getTableId();
+		synchronized (this.tableLocks.bucket(tableKey)) {
+			LockTable.Entry entry = this.tableLocks.get(tableKey);
+			return entry != null && entry.isLocked(LockMode.X);
 		}
+	}
 
 
-		return this.pageLocks.get(hashCode);
+	// returns true if a transaction other than tid may be changing the
+	// page, as isWriteLocked does for any transaction
+	public boolean isWriteLockedByOther(TransactionId tid, PageId pid) {
+		long key = PageKey.of(pid);
+		synchronized (this.pageLocks.bucket(key)) {
+			LockTable.Entry entry = this.pageLocks.get(key);
+			if (entry != null && entry.isLockedByOther(tid, LockMode.IX)) return true;
+		}
+		long tableKey = pid.getTableId();
+		synchronized (this.tableLocks.bucket(tableKey)) {
+			LockTable.Entry entry = this.tableLocks.get(tableKey);
+			return entry != null && entry.isLockedByOther(tid, LockMode.X);
+		}
 	}
 
 
-	public HashSet<PageId> getPagesInTransaction(TransactionId tid) {
+	// A read-only view of the pages tid has locked, or used under a
+	// table lock
+	public Set<PageId> getPagesInTransaction(TransactionId tid) {
 		return this.transactionInfo.pagesInTransaction(tid);
 	}
 
 
-	private void addTransactionPageLinks(TransactionId tid, PageId pid, Permissions perm) {
+	private void addTransactionPageLinks(TransactionId tid, PageId pid) {
 		this.transactionInfo.addEdge(tid,  pid);
-		if (perm == Permissions.READ_WRITE) {
-			assert (this.transactionInfo.writesPage(tid, pid));
-		} else {
-			assert (this.transactionInfo.readsPage(tid, pid));
+		assert (this.transactionInfo.readsPage(tid, pid));
+	}
+
+
+	public boolean hasLock(TransactionId tid, PageId pid, Permissions permission) {
+		LockMode mode = LockMode.of(permission);
+		if (tableCovers(tid, pid.getTableId(), mode)) return true;
+
+		long key = PageKey.of(pid);
+		synchronized (this.pageLocks.bucket(key)) {
+			LockTable.Entry entry = this.pageLocks.get(key);
+			return entry != null && entry.isHeldBy(tid, mode);
 		}
 	}
 
 
-	private int locksAcquired(Semaphore lock) {
-		return MAX_AVAILABLE - lock.availablePermits();
+	// Returns true if tid holds the record, or its page or table, in a
+	// mode that covers permission
+	public boolean hasLock(TransactionId tid, RecordId rid, Permissions permission) {
+		LockMode mode = LockMode.of(permission);
+		PageId pid = rid.getPageId();
+		if (tableCovers(tid, pid.getTableId(), mode)) return true;
+
+		long key = PageKey.of(pid);
+		synchronized (this.pageLocks.bucket(key)) {
+			LockTable.Entry entry = this.pageLocks.get(key);
+			if (entry == null) return false;
+			if (entry.isHeldBy(tid, mode)) return true;
+			LockTable.Entry record = entry.record(rid.tupleno(), false);
+			return record != null && record.isHeldBy(tid, mode);
+		}
 	}
 
 
-	public boolean hasLock(TransactionId tid, PageId pid, Permissions permission) {
-		if (permission == Permissions.READ_WRITE) {
-			return hasWriteLock(tid, pid);
+	// Returns true if tid holds the table in a mode that covers mode
+	private boolean tableCovers(TransactionId tid, int tableId, LockMode mode) {
+		HeldLocks locks = (tid == null) ? null : this.held.get(tid);
+		if (locks == null) return false;
+		synchronized (locks) {
+			LockMode table = locks.tables.get(tableId);
+			return table != null && table.covers(mode);
+		}
+	}
+
+
+	private HeldLocks heldLocks(TransactionId tid) {
+		HeldLocks locks = this.held.get(tid);
+		if (locks == null) {
+			HeldLocks created = new HeldLocks();
+			locks = this.held.putIfAbsent(tid, created);
+			if (locks == null) locks = created;
 		}
+		return locks;
+	}
 
 
-		return this.transactionInfo.readsPage(tid, pid);
+	public void getLock(TransactionId tid, PageId pid,
+			Permissions perm) throws TransactionAbortedException {
+		getLock(tid, pid, LockMode.of(perm));
 	}
 
 
-	// returns true if ONLY one transaction has a read lock on the page
-	private boolean isUpgradeable(TransactionId tid, PageId pid) {
-		if (!hasLock(tid, pid, Permissions.READ_ONLY)) return false;
+	/***
+	 * Locks page pid for tid in mode, after locking its table in the
+	 * matching intention mode.  If the table lock already covers mode,
+	 * no lock is taken on the page.
+	 */
+	public void getLock(TransactionId tid, PageId pid,
+			LockMode mode) throws TransactionAbortedException {
+		lockPage(tid, pid, mode, true);
+	}
 
 
-		Semaphore lock = getPageLock(pid);
-		if (locksAcquired(lock) != 1) return false;
+	/***
+	 * Like {@link #getLock(TransactionId, PageId, LockMode)}, but returns
+	 * false instead of waiting if the page or its table is locked by
+	 * someone else.
+	 */
+	public boolean tryLock(TransactionId tid, PageId pid,
+			LockMode mode) throws TransactionAbortedException {
+		return lockPage(tid, pid, mode, false);
+	}
+
+
+	private boolean lockPage(TransactionId tid, PageId pid, LockMode mode,
+			boolean wait) throws TransactionAbortedException {
+		if (tid != null) {
+			LockMode table = lockTable(tid, pid.getTableId(), mode.intention(), wait);
+			if (table == null) return false;
+			if (table.covers(mode)) {
+				addTransactionPageLinks(tid, pid);
+				return true;
+			}
+		}
+		return lock(this.pageLocks, PageKey.of(pid), NO_SLOT, tid, pid, mode, wait) != null;
+	}
 
 
-		assert (this.transactionInfo.numTransactions(pid) == 1);
+	/***
+	 * Locks the whole table for tid in mode; S or X lets it use every
+	 * page of the table without locking the pages one by one.
+	 */
+	public void getTableLock(TransactionId tid, int tableId,
+			LockMode mode) throws TransactionAbortedException {
+		if (tid == null) return;
+		lockTable(tid, tableId, mode, true);
+	}
+
+
+	/***
+	 * Locks record rid for tid with perm, after taking intention locks on
+	 * its table and page.
+	 */
+	public void getRecordLock(TransactionId tid, RecordId rid,
+			Permissions perm) throws TransactionAbortedException {
+		lockRecord(tid, rid, LockMode.of(perm), true);
+	}
+
+
+	/***
+	 * Like {@link #getRecordLock}, but returns false instead of waiting
+	 * if the record, or its page or table, is locked by someone else.
+	 */
+	public boolean tryRecordLock(TransactionId tid, RecordId rid,
+			Permissions perm) throws TransactionAbortedException {
+		return lockRecord(tid, rid, LockMode.of(perm), false);
+	}
+
+
+	// Returns the mode tid holds on the table once it holds at least mode,
+	// or null if it would have to wait and wait is not set
+	private LockMode lockTable(TransactionId tid, int tableId, LockMode mode,
+			boolean wait) throws TransactionAbortedException {
+		HeldLocks locks = heldLocks(tid);
+		synchronized (locks) {
+			LockMode table = locks.tables.get(tableId);
+			if (table != null && table.covers(mode)) return table;
+		}
+
+		LockMode table = lock(this.tableLocks, tableId, NO_SLOT, tid, null, mode, wait);
+		if (table != null) {
+			synchronized (locks) {
+				locks.tables.put(tableId, table);
+			}
+		}
+		return table;
+	}
+
+
+	private boolean lockRecord(TransactionId tid, RecordId rid, LockMode mode,
+			boolean wait) throws TransactionAbortedException {
+		PageId pid = rid.getPageId();
+		long key = PageKey.of(pid);
+		if (tid == null) {
+			return lock(this.pageLocks, key, NO_SLOT, tid, pid, mode, wait) != null;
+		}
+
+
+		int tableId = pid.getTableId();
+		LockMode table = lockTable(tid, tableId, mode.intention(), wait);
+		if (table == null) return false;
+		if (table.covers(mode)) {
+			addTransactionPageLinks(tid, pid);
+			return true;
+		}
+		LockMode page = lock(this.pageLocks, key, NO_SLOT, tid, pid, mode.intention(), wait);
+		if (page == null) return false;
+		if (page.covers(mode)) return true;
+
+
+		// Escalation never waits: if other transactions' locks are in the
+		// way, the record is locked on its own as usual
+		HeldLocks locks = heldLocks(tid);
+		int onPage, inTable;
+		synchronized (locks) {
+			onPage = locks.recordsOn(pid);
+			inTable = locks.recordsIn(tableId);
+		}
+		if (inTable >= this.tableEscalation && lockTable(tid, tableId, mode, false) != null) {
+			// the record locks already held are kept until tid completes
+			addTransactionPageLinks(tid, pid);
+			return true;
+		}
+		if (onPage >= this.pageEscalation
+				&& lock(this.pageLocks, key, NO_SLOT, tid, pid, mode, false) != null) {
+			releaseRecords(tid, pid);
+			return true;
+		}
+
+
+		if (lock(this.pageLocks, key, rid.tupleno(), tid, pid, mode, wait) == null) {
+			return false;
+		}
+		synchronized (locks) {
+			locks.addRecord(rid);
+		}
 		return true;
 	}
 
 
-	private void getReadLock(TransactionId tid, PageId pid, Semaphore lock)
-			throws TransactionAbortedException {
-		if (!hasLock(tid, pid, Permissions.READ_ONLY)) {
-			try {
-				//System.out.println("Number of locks: " + lock.availablePermits());
-				boolean acquired = lock.tryAcquire(1, 100,
-						TimeUnit.MILLISECONDS);
-				if (!acquired) {
-					throw new TransactionAbortedException();
+	/***
+	 * Locks the object with the given key in table, or the record in
+	 * slot of that page, for tid in mode.  If it is held in a conflicting
+	 * mode, waits when wait is set and the policy allows it.
+	 * @return the mode tid now holds, or null if it would have had to wait
+	 * and wait is not set
+	 */
+	private LockMode lock(LockTable table, long key, int slot, TransactionId tid,
+			PageId pid, LockMode mode, boolean wait) throws TransactionAbortedException {
+		DeadlockPolicy policy = this.policy;
+		LockTable.Entry entry;
+		LockTable.Request request;
+
+
+		if (isWounded(tid)) {
+			throw new TransactionAbortedException();
+		}
+
+
+		synchronized (table.bucket(key)) {
+			entry = table.getOrCreate(key);
+			if (slot != NO_SLOT) {
+				entry = entry.record(slot, true);
+			}
+			LockMode held = entry.mode(tid);
+			if (held != null && held.covers(mode)) return held;
+
+
+			LockMode target = (held == null) ? mode : held.join(mode);
+			boolean upgrade = held != null;
+			if (entry.canGrant(tid, target, upgrade)) {
+				entry.grant(tid, target);
+				if (pid != null) {
+					addTransactionPageLinks(tid, pid);
 				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				return target;
+			}
+			if (!wait || policy == DeadlockPolicy.NO_WAIT) {
+				table.removeIfIdle(key, entry);
+				if (!wait) return null;
+				throw new TransactionAbortedException();
+			}
+
+
+			request = new LockTable.Request(tid, pid, target, upgrade);
+			entry.enqueue(request);
+			if (tid != null) {
+				this.waiting.put(tid, request);
 			}
 		}
+
+
+		try {
+			// an upgrade goes ahead of earlier requests, which then wait
+			// for it too, so every waiter is looked at again
+			synchronized (table.bucket(key)) {
+				if (policy == DeadlockPolicy.DETECT) {
+					updateWaitsFor(entry);
+				} else {
+					preventDeadlock(entry, policy);
+				}
+			}
+			if (policy == DeadlockPolicy.DETECT) {
+				breakDeadlock(tid);
+			} else if (isWounded(tid)) {
+				// wounded after the check above
+				request.abort();
+			}
+			awaitGrant(request);
+		} finally {
+			if (tid != null) {
+				this.waiting.remove(tid, request);
+			}
+			if (request.state() != LockTable.Request.GRANTED) {
+				cancel(table, key, entry, request);
+			}
+		}
+		return request.mode;
 	}
 
 
-	private synchronized void getWriteLock(TransactionId tid, PageId pid,
-			Semaphore lock) throws TransactionAbortedException {
-		if (isUpgradeable(tid, pid)) {
-			lock.release();
-			assert (lock.availablePermits() == MAX_AVAILABLE);
+	// Parks until the request is granted; throws if it is aborted
+	private void awaitGrant(LockTable.Request request) throws TransactionAbortedException {
+		while (true) {
+			int state = request.state();
+			if (state == LockTable.Request.GRANTED) return;
+			if (state == LockTable.Request.ABORTED) {
+				throw new TransactionAbortedException();
+			}
+
+
+			LockSupport.park(this);
+			if (Thread.interrupted() && request.abort()) {
+				Thread.currentThread().interrupt();
+				throw new TransactionAbortedException();
+			}
 		}
+	}
 
 
-		try {
-			if (!hasLock(tid, pid, Permissions.READ_WRITE)) {
-				boolean aquired = lock.tryAcquire(MAX_AVAILABLE, 100,
-						TimeUnit.MILLISECONDS);
-				if (!aquired) {
-					throw new TransactionAbortedException();
+	// Takes a request that was not granted out of its queue; requests
+	// behind it may now be granted
+	private void cancel(LockTable table, long key, LockTable.Entry entry,
+			LockTable.Request request) {
+		// a thread killed while waiting may leave the request waiting
+		request.abort();
+
+
+		synchronized (table.bucket(key)) {
+			synchronized (this.waitsForLatch) {
+				this.transactionInfo.clearWaitsFor(request.tid);
+			}
+			entry.remove(request);
+			grantWaiters(table, key, entry);
+		}
+	}
+
+
+	/***
+	 * Looks for cycles of waits-for edges through tid, which has just
+	 * started to wait, and aborts a victim on each.  An aborted request
+	 * loses its edges at once, so the next search does not see it; its
+	 * thread throws when it wakes up, which may be this one.
+	 */
+	private void breakDeadlock(TransactionId tid) {
+		synchronized (this.waitsForLatch) {
+			// tid may close several cycles, and the victim of one need
+			// not be on the others
+			ArrayList<TransactionId> cycle;
+			while ((cycle = this.transactionInfo.findCycle(tid)) != null) {
+				TransactionId victim = chooseVictim(cycle);
+				LockTable.Request request = this.waiting.get(victim);
+				if (request != null) {
+					request.abort();
 				}
+				this.transactionInfo.clearWaitsFor(victim);
+				if (victim.equals(tid)) return;
 			}
-		} catch (InterruptedException e) {
-			System.out.println("IOException getting lock");
-			e.printStackTrace();
 		}
 	}
 
 
-	public synchronized void getLock(TransactionId tid, PageId pid,
-			Permissions perm) throws TransactionAbortedException {
-		Semaphore lock = getPageLock(pid);
+	/***
+	 * Applies a prevention policy to the requests waiting for the entry,
+	 * comparing each with the transactions it waits for: under wait-die
+	 * a request that waits for an older transaction is aborted, under
+	 * wound-wait the younger transactions it waits for are wounded.
+	 * Requests without a transaction (a null id) cannot be aborted and
+	 * are left alone.  The caller holds the entry's bucket.
+	 */
+	private void preventDeadlock(LockTable.Entry entry, DeadlockPolicy policy) {
+		for (LockTable.Request request : entry.waiting()) {
+			if (request.tid == null) continue;
+			for (TransactionId blocker : entry.blockers(request)) {
+				boolean older = request.tid.getId() < blocker.getId();
+				if (policy == DeadlockPolicy.WAIT_DIE && !older) {
+					request.abort();
+					break;
+				}
+				if (policy == DeadlockPolicy.WOUND_WAIT && older) {
+					wound(blocker);
+				}
+			}
+		}
+	}
 
 
-		if (perm == Permissions.READ_ONLY) {
-			getReadLock(tid, pid, lock);
-		} else {
-			getWriteLock(tid, pid, lock);
+	// Transactions without an id (null) are never wounded
+	private boolean isWounded(TransactionId tid) {
+		return tid != null && this.wounded.contains(tid);
+	}
+
+
+	// Makes tid abort: at once if it is waiting for a lock, otherwise at
+	// its next lock request.  Its locks are kept until it completes.
+	private void wound(TransactionId tid) {
+		if (tid == null) return;
+		this.wounded.add(tid);
+		LockTable.Request request = this.waiting.get(tid);
+		if (request != null) {
+			request.abort();
+		}
+	}
+
+
+	// Picks the transaction holding the fewest locks, which has the least
+	// work to lose; among those, the youngest.
+	private TransactionId chooseVictim(ArrayList<TransactionId> cycle) {
+		TransactionId victim = null;
+		int victimPages = Integer.MAX_VALUE;
+		for (TransactionId tid : cycle) {
+			int pages = this.transactionInfo.numPages(tid);
+			if (pages < victimPages
+					|| (pages == victimPages && tid.getId() > victim.getId())) {
+				victim = tid;
+				victimPages = pages;
+			}
+		}
+
+
+		return victim;
+	}
+
+
+	// Grants what the entry's holders now allow.  The caller holds the
+	// bucket of key in table.
+	private void grantWaiters(LockTable table, long key, LockTable.Entry entry) {
+		ArrayList<LockTable.Request> granted;
+		synchronized (this.waitsForLatch) {
+			granted = entry.grantWaiters();
+			for (LockTable.Request request : granted) {
+				this.transactionInfo.clearWaitsFor(request.tid);
+			}
+		}
+		for (LockTable.Request request : granted) {
+			if (request.pid != null) {
+				addTransactionPageLinks(request.tid, request.pid);
+			}
+		}
+		if (this.policy == DeadlockPolicy.DETECT) {
+			updateWaitsFor(entry);
+		}
+		table.removeIfIdle(key, entry);
+	}
+
+
+	// Brings the waits-for edges of the requests waiting for the entry up
+	// to date.  Only a new request adds edges; every other change to the
+	// entry removes them.
+	private void updateWaitsFor(LockTable.Entry entry) {
+		synchronized (this.waitsForLatch) {
+			for (LockTable.Request request : entry.waiting()) {
+				this.transactionInfo.setWaitsFor(request.tid, entry.blockers(request));
+			}
+		}
+	}
+
+
+	public void clearAllLocks(TransactionId tid) {
+		// Dropped first: the record counts are not needed any more
+		HeldLocks locks = (tid == null) ? null : this.held.remove(tid);
+
+
+		// clearLock removes each page from the set we iterate, which the
+		// concurrent set allows
+		for (PageId pid : getPagesInTransaction(tid)) {
+			clearLock(tid, pid);
+		}
+		this.transactionInfo.transactionComplete(tid);
+
+
+		if (locks != null) {
+			for (int tableId : locks.tables.keySet()) {
+				long key = tableId;
+				synchronized (this.tableLocks.bucket(key)) {
+					LockTable.Entry entry = this.tableLocks.get(key);
+					entry.release(tid);
+					grantWaiters(this.tableLocks, key, entry);
+				}
+			}
 		}
+		if (tid != null) {
+			this.wounded.remove(tid);
+		}
+	}
 
 
-		addTransactionPageLinks(tid, pid, perm);
+	// Releases tid's lock on the page and on its records.  Table locks
+	// are kept until the transaction completes.
+	public void clearLock(TransactionId tid, PageId pid) {
+		long key = PageKey.of(pid);
+		synchronized (this.pageLocks.bucket(key)) {
+			LockTable.Entry entry = this.pageLocks.get(key);
+			clearTransactionPageLinks(tid, pid);
+			if (entry != null) {
+				releaseRecords(tid, pid);
+				entry.release(tid);
+				grantWaiters(this.pageLocks, key, entry);
+			}
+		}
 	}
 
 
-	public synchronized void clearAllLocks(TransactionId tid) {
-		// Have to make a copy of the transaction -> page list
-		// Because we modify it in clearLock
-		HashSet<PageId> pagesInTransaction = getPagesInTransaction(tid);
-		for (PageId pid : pagesInTransaction) {
+	/***
+	 * Releases tid's lock on the page, and on its records, if all they
+	 * let tid do is read; a lock that lets it write is kept.  Used to
+	 * release read locks before the transaction completes.
+	 * @return true if the page was unlocked
+	 */
+	public boolean releaseReadLock(TransactionId tid, PageId pid) {
+		long key = PageKey.of(pid);
+		synchronized (this.pageLocks.bucket(key)) {
+			LockTable.Entry entry = this.pageLocks.get(key);
+			LockMode mode = (entry == null) ? null : entry.mode(tid);
+			// records are only locked for writing under IX or SIX
+			if (mode == null || mode.writes()) return false;
 			clearLock(tid, pid);
+			return true;
 		}
 	}
 
 
-	public synchronized void clearLock(TransactionId tid, PageId pid) {
-		Semaphore lock = getPageLock(pid);
-		if (hasWriteLock(tid, pid)) {
-			lock.release(MAX_AVAILABLE);
-		} else {
-			lock.release();
+	// Releases tid's locks on the records of the page, which its page
+	// lock covers or which it is giving up with the page
+	private void releaseRecords(TransactionId tid, PageId pid) {
+		long key = PageKey.of(pid);
+		synchronized (this.pageLocks.bucket(key)) {
+			LockTable.Entry entry = this.pageLocks.get(key);
+			if (entry == null) return;
+			for (LockTable.Entry record : entry.recordsHeldBy(tid)) {
+				record.release(tid);
+				grantWaiters(this.pageLocks, key, record);
+			}
 		}
 
 
-		clearTransactionPageLinks(tid, pid);
+		HeldLocks locks = (tid == null) ? null : this.held.get(tid);
+		if (locks != null) {
+			synchronized (locks) {
+				locks.removeRecords(pid);
+			}
+		}
 	}
 
 
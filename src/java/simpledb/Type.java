@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,16 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
+        @Override
+        public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+            return IntField.compare(buf.getInt(offset), op, ((IntField) operand).getValue());
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +53,22 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            // clamp so that a torn read of a reused frame cannot throw
+            int strLen = Math.max(0, Math.min(STRING_LEN, buf.getInt(offset)));
+            byte bs[] = new byte[strLen];
+            for (int i = 0; i < strLen; i++) {
+                bs[i] = buf.get(offset + 4 + i);
+            }
+            return new StringField(new String(bs), STRING_LEN);
+        }
+
+        @Override
+        public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+            return parse(buf, offset).compare(op, operand);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +87,18 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object with contents
+   *   read from buf at the absolute position offset.  Does not change the
+   *   position of buf.
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
+  /**
+   * Compares the field stored in buf at the absolute position offset to
+   * operand, with the semantics of {@link Field#compare}.  Types that can
+   * compare their encoded form directly do so without building a Field.
+   */
+    public abstract boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand);
+
 }
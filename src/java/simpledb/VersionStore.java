@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the committed versions of pages that read-only
+ * transactions need to read a consistent snapshot without taking locks.
+ * <p>
+ * Every commit that changes pages gets a timestamp from a commit clock,
+ * and a snapshot transaction reads the database as of the last commit
+ * before it began.  Writers change pages in place in the BufferPool, so
+ * while snapshots are running the committed image of every page a commit
+ * changes is kept here, for as long as some snapshot may still need an
+ * older one.  A page without versions reads as the before image of its
+ * resident copy (see {@link HeapPage#getBeforeImageData}), which then
+ * holds only committed tuples.
+ * <p>
+ * A page changed by several transactions at once under record locks
+ * also keeps its committed image here, since its before image mixes the
+ * changes of all of them.
+ * <p>
+ * The store also validates optimistic transactions: while any is
+ * running, it remembers the last commit that changed each page, so that
+ * one can tell whether a page it used was changed by a commit after it
+ * began.
+ * <p>
+ * Commits and snapshot starts are serialized on the store's monitor;
+ * reads are not, since the versions of a page are replaced whole.
+ */
+public class VersionStore {
+    // A committed image of a page, visible to snapshots taken at ts or
+    // later
+    private static class Version {
+        final long ts;
+        final byte[] data;
+
+        Version(long ts, byte[] data) {
+            this.ts = ts;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A page changed by a committing transaction: either the whole page,
+     * held exclusively, or only the given slots, changed under record
+     * locks.
+     */
+    static class Change {
+        final HeapPage page;
+        // null for the whole page
+        final Set<Integer> slots;
+
+        Change(HeapPage page, Set<Integer> slots) {
+            this.page = page;
+            this.slots = slots;
+        }
+    }
+
+    private final TransactionLockManager lockManager;
+    // page -> its versions, oldest first; each array is replaced whole
+    private final ConcurrentHashMap<PageId, Version[]> versions;
+    // snapshot transaction -> the last commit it sees
+    private final ConcurrentHashMap<TransactionId, Long> snapshots;
+    // optimistic transaction -> the last commit before it began
+    private final ConcurrentHashMap<TransactionId, Long> optimistic;
+    // page -> the last commit that changed it, while it may be later than
+    // the start of a running optimistic transaction
+    private final ConcurrentHashMap<PageId, Long> changedAt;
+    private long lastCommit;
+
+    public VersionStore(TransactionLockManager lockManager) {
+        this.lockManager = lockManager;
+        this.versions = new ConcurrentHashMap<PageId, Version[]>();
+        this.snapshots = new ConcurrentHashMap<TransactionId, Long>();
+        this.optimistic = new ConcurrentHashMap<TransactionId, Long>();
+        this.changedAt = new ConcurrentHashMap<PageId, Long>();
+        this.lastCommit = 0;
+    }
+
+    /**
+     * Makes tid read the database as of the last completed commit.
+     * @return the snapshot's timestamp
+     */
+    public synchronized long beginSnapshot(TransactionId tid) {
+        this.snapshots.put(tid, this.lastCommit);
+        return this.lastCommit;
+    }
+
+    /**
+     * Ends tid's snapshot and drops the versions no snapshot needs any
+     * more.
+     */
+    public synchronized void endSnapshot(TransactionId tid) {
+        if (this.snapshots.remove(tid) == null) return;
+        long horizon = horizon();
+        for (Map.Entry<PageId, Version[]> e : this.versions.entrySet()) {
+            Version[] chain = prune(e.getValue(), horizon);
+            // Nobody changes the page, so its resident copy is this version
+            if (chain.length == 1 && !this.lockManager.isWriteLocked(e.getKey())) {
+                this.versions.remove(e.getKey());
+            } else {
+                e.setValue(chain);
+            }
+        }
+    }
+
+    /**
+     * Starts validating tid optimistically: from now on, the store notes
+     * which pages each commit changes.
+     * @return the timestamp of the last commit before tid began
+     */
+    public synchronized long beginOptimistic(TransactionId tid) {
+        this.optimistic.put(tid, this.lastCommit);
+        return this.lastCommit;
+    }
+
+    /** Stops validating tid, forgetting the changes no one checks any more. */
+    public synchronized void endOptimistic(TransactionId tid) {
+        if (this.optimistic.remove(tid) == null) return;
+        long oldest = Long.MAX_VALUE;
+        for (long ts : this.optimistic.values()) {
+            oldest = Math.min(oldest, ts);
+        }
+        for (Map.Entry<PageId, Long> e : this.changedAt.entrySet()) {
+            if (e.getValue() <= oldest) {
+                this.changedAt.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return true if a commit after ts changed pid.  Only answers for ts
+     *   no older than the start of a running optimistic transaction.
+     */
+    public boolean changedSince(PageId pid, long ts) {
+        Long changed = this.changedAt.get(pid);
+        return changed != null && changed > ts;
+    }
+
+    /** @return the timestamp of tid's snapshot, or null if it has none */
+    public Long snapshotOf(TransactionId tid) {
+        return (tid == null) ? null : this.snapshots.get(tid);
+    }
+
+    /** @return the number of pages with versions */
+    public int numPages() {
+        return this.versions.size();
+    }
+
+    /**
+     * @return the bytes of the newest version of pid committed at or
+     *   before ts, or null if the page has no versions
+     */
+    public byte[] read(PageId pid, long ts) {
+        Version[] chain = this.versions.get(pid);
+        if (chain == null) return null;
+        for (int i = chain.length - 1; i >= 0; i--) {
+            if (chain[i].ts <= ts) return chain[i].data;
+        }
+        assert false : "no version of " + pid + " for snapshot " + ts;
+        return null;
+    }
+
+    /**
+     * Installs the committed images of the pages tid changed and resets
+     * their before images.  Must be called before tid releases its locks.
+     */
+    public synchronized void commit(TransactionId tid, ArrayList<Change> changes) {
+        long ts = this.lastCommit + 1;
+        long horizon = horizon();
+        for (Change change : changes) {
+            HeapPage page = change.page;
+            PageId pid = page.getId();
+            if (!this.optimistic.isEmpty()) {
+                this.changedAt.put(pid, ts);
+            }
+            synchronized (page) {
+                Version[] chain = this.versions.get(pid);
+                boolean shared = this.lockManager.isWriteLockedByOther(tid, pid);
+                if (!shared && this.snapshots.isEmpty()) {
+                    // Nobody reads an older version, and the before image
+                    // is about to hold only committed tuples again
+                    if (chain != null) this.versions.remove(pid);
+                    page.setBeforeImage();
+                    continue;
+                }
+
+                byte[] base = (chain == null) ? page.getBeforeImageData()
+                                              : chain[chain.length - 1].data;
+                byte[] image;
+                if (change.slots == null) {
+                    image = page.getPageData();
+                } else {
+                    image = base.clone();
+                    for (int slot : change.slots) {
+                        page.copySlot(slot, image);
+                    }
+                }
+
+                if (chain == null) {
+                    // Every running snapshot began before this commit
+                    chain = new Version[] { new Version(0, base) };
+                }
+                chain = Arrays.copyOf(chain, chain.length + 1);
+                chain[chain.length - 1] = new Version(ts, image);
+                chain = prune(chain, horizon);
+                if (chain.length == 1 && !shared) {
+                    this.versions.remove(pid);
+                } else {
+                    this.versions.put(pid, chain);
+                }
+                page.setBeforeImage();
+            }
+        }
+        this.lastCommit = ts;
+    }
+
+    /**
+     * Resets the before image of a page whose changes by tid were undone.
+     * If other transactions are changing the page too, its committed
+     * image is kept first, since the page is not committed as a whole.
+     */
+    public synchronized void abort(TransactionId tid, HeapPage page) {
+        PageId pid = page.getId();
+        synchronized (page) {
+            if (!this.versions.containsKey(pid)
+                && this.lockManager.isWriteLockedByOther(tid, pid)) {
+                Version base = new Version(0, page.getBeforeImageData());
+                this.versions.put(pid, new Version[] { base });
+            }
+            page.setBeforeImage();
+        }
+    }
+
+    // The oldest running snapshot's timestamp, or the newest possible if
+    // none is running
+    private long horizon() {
+        long horizon = Long.MAX_VALUE;
+        for (long ts : this.snapshots.values()) {
+            horizon = Math.min(horizon, ts);
+        }
+        return horizon;
+    }
+
+    // Drops the versions older than the one a snapshot at horizon reads
+    private static Version[] prune(Version[] chain, long horizon) {
+        int first = chain.length - 1;
+        while (first > 0 && chain[first].ts > horizon) first--;
+        return (first == 0) ? chain : Arrays.copyOfRange(chain, first, chain.length);
+    }
+}
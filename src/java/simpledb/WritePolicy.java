@@ -0,0 +1,27 @@
+package simpledb;
+
+/**
+ * When the {@link BufferPool} writes the pages transactions change back
+ * to disk, and so how much the {@link LogFile} has to repair after a
+ * crash.
+ */
+public enum WritePolicy {
+    /**
+     * A committing transaction writes every page it changed (FORCE), and
+     * a page a running transaction changed is never evicted (NO-STEAL), so
+     * a transaction that changes more pages than the pool holds fails.
+     * The default.
+     */
+    FORCE_NO_STEAL,
+
+    /**
+     * A committing transaction only forces the log (NO-FORCE); the pages
+     * it changed are written back later by a background writer.  When
+     * every page is dirty or in use, one is written and evicted even if a
+     * running transaction changed it (STEAL), so large transactions spill
+     * to disk.  An abort undoes the pool's pages in memory and leaves them
+     * for the writer, and a crash relies on {@link LogFile#recover} to
+     * redo committed changes and undo the others.
+     */
+    STEAL_NO_FORCE
+}
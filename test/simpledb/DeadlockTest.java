@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -30,7 +33,7 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 
     // create a new empty HeapFile and populate it with three pages.
-    // we should be able to add 504 tuples on an empty page.
+    // we should be able to add 503 tuples on an empty page.
     TransactionId tid = new TransactionId();
     for (int i = 0; i < 1025; ++i) {
       empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
@@ -211,6 +214,152 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A transaction that waits behind a lock for a long time without being
+   * deadlocked is not aborted, and gets the lock once it is released.
+   */
+  @Test public void testLongWaitIsNotAborted() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2Read = startGrabber(tid2, p0, Permissions.READ_ONLY);
+
+    Thread.sleep(5 * POLL_INTERVAL);
+    assertFalse(lg2Read.acquired());
+    assertNull(lg2Read.getError());
+
+    bp.transactionComplete(tid1);
+    lg2Read.join(10 * POLL_INTERVAL);
+    assertTrue(lg2Read.acquired());
+    assertNull(lg2Read.getError());
+  }
+
+  /**
+   * Of two deadlocked transactions holding as many locks, the younger one
+   * is aborted, and the other one goes on without waiting for a timeout.
+   */
+  @Test public void testYoungestIsVictim() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+
+    // the grabber aborts tid2 as soon as it gets the exception
+    lg2Write.join(10 * POLL_INTERVAL);
+    assertTrue(lg2Write.getError() instanceof TransactionAbortedException);
+    lg1Write.join(10 * POLL_INTERVAL);
+    assertTrue(lg1Write.acquired());
+    assertNull(lg1Write.getError());
+  }
+
+  /**
+   * Under NO_WAIT a lock that cannot be granted at once aborts the
+   * requester.
+   */
+  @Test public void testNoWait() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.NO_WAIT);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+
+    LockGrabber lg2Read = startGrabber(tid2, p0, Permissions.READ_ONLY);
+    lg2Read.join(10 * POLL_INTERVAL);
+    assertTrue(lg2Read.getError() instanceof TransactionAbortedException);
+  }
+
+  /**
+   * Under WAIT_DIE an older transaction waits for a younger one, and a
+   * younger transaction that needs an older one's lock aborts at once.
+   */
+  @Test public void testWaitDie() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1Write.acquired());
+    assertNull(lg1Write.getError());
+
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2Write.join(10 * POLL_INTERVAL);
+    assertTrue(lg2Write.getError() instanceof TransactionAbortedException);
+
+    // the grabber aborted tid2, which released p1
+    lg1Write.join(10 * POLL_INTERVAL);
+    assertTrue(lg1Write.acquired());
+  }
+
+  /**
+   * Under WOUND_WAIT a younger transaction waits for an older one, and an
+   * older transaction that needs a younger one's lock wounds it: the
+   * younger one aborts at its next lock request.
+   */
+  @Test public void testWoundWait() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+
+    // younger waits for older
+    LockGrabber lg2Write = startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write.acquired());
+    assertNull(lg2Write.getError());
+
+    // older wounds the waiting younger transaction, which aborts and
+    // releases p0
+    LockGrabber lg1Write = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    lg2Write.join(10 * POLL_INTERVAL);
+    assertTrue(lg2Write.getError() instanceof TransactionAbortedException);
+    lg1Write.join(10 * POLL_INTERVAL);
+    assertTrue(lg1Write.acquired());
+  }
+
+  /**
+   * Under WOUND_WAIT a wounded transaction that is not waiting aborts at
+   * its next lock request.
+   */
+  @Test public void testWoundedAbortsLater() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+
+    LockGrabber lg1Write = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1Write.acquired());
+
+    try {
+      bp.getPage(tid2, p1, Permissions.READ_ONLY);
+      fail("expected the wounded transaction to abort");
+    } catch (TransactionAbortedException e) {
+    }
+    bp.transactionComplete(tid2, false);
+    lg1Write.join(10 * POLL_INTERVAL);
+    assertTrue(lg1Write.acquired());
+  }
+
+  /**
+   * Under WOUND_WAIT work without a transaction (a null id) waits like
+   * any other request, and the requests behind it are granted once it
+   * is.
+   */
+  @Test public void testNullTidWaits() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+
+    LockGrabber lgNullRead = startGrabber(null, p0, Permissions.READ_ONLY);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lgNullRead.acquired());
+    assertNull(lgNullRead.getError());
+
+    LockGrabber lg2Read = startGrabber(tid2, p0, Permissions.READ_ONLY);
+    Thread.sleep(POLL_INTERVAL);
+    assertNull(lg2Read.getError());
+
+    bp.transactionComplete(tid1);
+    lgNullRead.join(10 * POLL_INTERVAL);
+    assertTrue(lgNullRead.acquired());
+    lg2Read.join(10 * POLL_INTERVAL);
+    assertTrue(lg2Read.acquired());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,109 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+    private File dataFile;
+
+    /** Scanner that reports every page in a fixed range as free. */
+    private static class RangeScanner implements FreeSpaceMap.PageScanner {
+        private final int from, to;
+        int scanned = 0;
+
+        RangeScanner(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public boolean hasFreeSlots(int pageNumber) {
+            scanned++;
+            return pageNumber >= from && pageNumber < to;
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        dataFile = File.createTempFile("fsm", ".dat");
+        dataFile.deleteOnExit();
+        dataFile.setLastModified(System.currentTimeMillis() - 10000);
+    }
+
+    @After public void tearDown() {
+        FreeSpaceMap.mapFileFor(dataFile).delete();
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.findFree() and mark()
+     */
+    @Test public void findFree() throws IOException {
+        FreeSpaceMap map = FreeSpaceMap.open(dataFile, 200, new RangeScanner(150, 151));
+        assertEquals(150, map.findFree());
+
+        map.mark(150, false);
+        assertEquals(-1, map.findFree());
+
+        map.mark(70, true);
+        map.mark(130, true);
+        assertEquals(70, map.findFree());
+        map.mark(70, false);
+        assertEquals(130, map.findFree());
+
+        // Marking past the end extends the map
+        map.mark(130, false);
+        map.mark(300, true);
+        assertEquals(301, map.numPages());
+        assertEquals(300, map.findFree());
+    }
+
+    /**
+     * Unit test for FreeSpaceMap: updates survive reopening, and only
+     * pages the map does not cover are scanned.
+     */
+    @Test public void persistence() throws IOException {
+        FreeSpaceMap map = FreeSpaceMap.open(dataFile, 100, new RangeScanner(0, 0));
+        map.update(42, true);
+        map.update(100, true);
+
+        RangeScanner scanner = new RangeScanner(0, 0);
+        FreeSpaceMap reopened = FreeSpaceMap.open(dataFile, 103, scanner);
+        assertEquals(2, scanner.scanned);
+        assertTrue(reopened.isFree(42));
+        assertTrue(reopened.isFree(100));
+        assertFalse(reopened.isFree(43));
+        assertEquals(42, reopened.findFree());
+    }
+
+    /**
+     * Unit test for FreeSpaceMap: a map older than its table is rebuilt.
+     */
+    @Test public void staleMapIsRebuilt() throws IOException {
+        FreeSpaceMap map = FreeSpaceMap.open(dataFile, 10, new RangeScanner(0, 0));
+        map.update(3, true);
+        FreeSpaceMap.mapFileFor(dataFile).setLastModified(System.currentTimeMillis() - 60000);
+
+        RangeScanner scanner = new RangeScanner(5, 6);
+        FreeSpaceMap reopened = FreeSpaceMap.open(dataFile, 10, scanner);
+        assertEquals(10, scanner.scanned);
+        assertFalse(reopened.isFree(3));
+        assertEquals(5, reopened.findFree());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
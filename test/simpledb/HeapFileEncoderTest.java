@@ -0,0 +1,189 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.UUID;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private File input;
+
+    /** Writes ROWS lines of "i,i%100" with some stray blank and CRLF lines. */
+    @Before public void setUp() throws Exception {
+        input = File.createTempFile("encoder", ".txt");
+        input.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(input));
+        for (int i = 0; i < ROWS; i++) {
+            out.print(i + "," + (i % 100) + (i % 7 == 0 ? "\r\n" : "\n"));
+            if (i % 500 == 0) out.print("\n");
+        }
+        out.close();
+    }
+
+    private File tempFile() throws IOException {
+        File f = File.createTempFile("encoder", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private ArrayList<String> readTuples(File f, int numFields) throws Exception {
+        HeapFile hf = Utility.openHeapFile(numFields, f);
+        ArrayList<String> tuples = new ArrayList<String>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next().toString());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(tuples);
+        return tuples;
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.convert() on a single chunk: checks the
+     * page layout byte by byte, including a last line without a newline.
+     */
+    @Test public void singleChunk() throws Exception {
+        File text = tempFile();
+        FileWriter out = new FileWriter(text);
+        out.write("1,2\n\n3, 4\r\n-5,6");
+        out.close();
+
+        File encoded = tempFile();
+        HeapFileEncoder.convert(text, encoded, BufferPool.getPageSize(), 2);
+        byte[] page = TestUtil.readFileBytes(encoded.getAbsolutePath());
+        assertEquals(BufferPool.getPageSize(), page.length);
+
+        int numTuples = ((BufferPool.getPageSize() - 8) * 8) / (8 * 8 + 1);
+        int headerBytes = 8 + (numTuples + 7) / 8;
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        assertEquals(0, buf.getLong(0));
+        assertEquals(0x07, page[8]);
+        int[] values = { 1, 2, 3, 4, -5, 6 };
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], buf.getInt(headerBytes + 4 * i));
+        }
+        for (int i = headerBytes + 4 * values.length; i < page.length; i++) {
+            assertEquals(0, page[i]);
+        }
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.convert() split into many chunks
+     * encoded by several threads.
+     */
+    @Test public void parallelChunks() throws Exception {
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+        File serial = tempFile();
+        HeapFileEncoder.convert(input, serial, BufferPool.getPageSize(), 2, types, ',',
+                                1, false, Integer.MAX_VALUE);
+        File parallel = tempFile();
+        HeapFileEncoder.convert(input, parallel, BufferPool.getPageSize(), 2, types, ',',
+                                4, false, 1000);
+
+        ArrayList<String> expected = readTuples(serial, 2);
+        assertEquals(ROWS, expected.size());
+        assertEquals(expected, readTuples(parallel, 2));
+        // Every chunk of about 100 lines starts a page of its own
+        assertTrue(parallel.length() > serial.length());
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.convert() on a string column.
+     */
+    @Test public void stringColumn() throws Exception {
+        File text = tempFile();
+        PrintWriter out = new PrintWriter(new FileWriter(text));
+        for (int i = 0; i < 100; i++) {
+            out.println(i + ", name" + i + " ");
+        }
+        out.close();
+
+        Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+        File encoded = tempFile();
+        IntHistogram[] histograms = HeapFileEncoder.convert(text, encoded, BufferPool.getPageSize(),
+                2, types, ',', 2, true, 300);
+        assertNull(histograms[1]);
+
+        HeapFile hf = new HeapFile(encoded, new TupleDesc(types));
+        Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertEquals(new StringField("name" + i, Type.STRING_LEN), t.getField(1));
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(100, count);
+    }
+
+    /**
+     * Unit test for the histograms HeapFileEncoder.convert() builds.
+     */
+    @Test public void histograms() throws Exception {
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+        IntHistogram[] histograms = HeapFileEncoder.convert(input, tempFile(),
+                BufferPool.getPageSize(), 2, types, ',', 4, true, 1000);
+        assertEquals(2, histograms.length);
+
+        // column 0 is uniform over [0, ROWS)
+        double half = histograms[0].estimateSelectivity(Predicate.Op.LESS_THAN, ROWS / 2);
+        assertEquals(0.5, half, 0.1);
+        assertEquals(0.0, histograms[0].estimateSelectivity(Predicate.Op.LESS_THAN, -1), 0.001);
+        assertEquals(1.0, histograms[0].estimateSelectivity(Predicate.Op.GREATER_THAN, -1), 0.001);
+
+        // column 1 is uniform over [0, 100)
+        assertEquals(0.01, histograms[1].estimateSelectivity(Predicate.Op.EQUALS, 42), 0.01);
+        assertEquals(0.9, histograms[1].estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 10), 0.1);
+    }
+
+    /**
+     * Unit test for the histograms HeapFileEncoder.convert() builds from
+     * chunks with different numbers of records: a chunk of short lines has
+     * more records than its sample holds, and counts for all of them.
+     */
+    @Test public void weightedHistograms() throws Exception {
+        File text = tempFile();
+        PrintWriter out = new PrintWriter(new FileWriter(text));
+        for (int i = 0; i < 3000; i++) {
+            out.print("0\n");
+        }
+        for (int i = 0; i < 3000; i++) {
+            out.print("1000000\n");
+        }
+        out.close();
+
+        Type[] types = new Type[] { Type.INT_TYPE };
+        IntHistogram[] histograms = HeapFileEncoder.convert(text, tempFile(),
+                BufferPool.getPageSize(), 1, types, ',', 4, true, 6000);
+        assertEquals(0.5, histograms[0].estimateSelectivity(Predicate.Op.LESS_THAN, 500000), 0.01);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
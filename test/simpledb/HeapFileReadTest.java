@@ -3,6 +3,8 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -72,11 +74,60 @@ public class HeapFileReadTest extends SimpleDbTestBase {
 
         // NOTE(ghuo): we try not to dig too deeply into the Page API here; we
         // rely on HeapPageTest for that. perform some basic checks.
-        assertEquals(484, page.getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
         assertTrue(page.isSlotUsed(1));
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPages()
+     */
+    @Test
+    public void readPages() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 1100, null, null);
+        assertEquals(3, threePageFile.numPages());
+
+        ByteBuffer[] frames = new ByteBuffer[4];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = ByteBuffer.allocate(BufferPool.PAGE_SIZE);
+        }
+
+        // The file ends before the last frame is filled
+        HeapPage[] pages = threePageFile.readPages(1, frames);
+        assertEquals(2, pages.length);
+        for (int i = 0; i < pages.length; i++) {
+            HeapPageId pid = new HeapPageId(threePageFile.getId(), i + 1);
+            assertEquals(pid, pages[i].getId());
+            assertTrue(Arrays.equals(threePageFile.readPage(pid).getPageData(),
+                                     pages[i].getPageData()));
+        }
+    }
+
+    /**
+     * Unit test for BufferPool.prefetchPages(): prefetched pages are served
+     * without reading them again.
+     */
+    @Test
+    public void prefetchPages() throws Exception {
+        final int[] reads = new int[1];
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 2000, 1000, null, null);
+        HeapFile counted = new HeapFile(f, td) {
+            @Override
+            public Page readPage(PageId pid) {
+                reads[0]++;
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(counted, SystemTestUtil.getUUID());
+
+        Database.getBufferPool().prefetchPages(counted, 0, counted.numPages(), null);
+        for (int i = 0; i < counted.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(counted.getId(), i);
+            Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        }
+        assertEquals(0, reads[0]);
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -4,6 +4,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -26,14 +31,14 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
      * Unit test for HeapFile.addTuple()
      */
     @Test public void addTuple() throws Exception {
-        // we should be able to add 504 tuples on an empty page.
-        for (int i = 0; i < 504; ++i) {
+        // we should be able to add 503 tuples on an empty page.
+        for (int i = 0; i < 503; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
             assertEquals(1, empty.numPages());
         }
 
         // the next 512 additions should live on a new page
-        for (int i = 0; i < 504; ++i) {
+        for (int i = 0; i < 503; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
             assertEquals(2, empty.numPages());
         }
@@ -43,6 +48,100 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuples()
+     */
+    @Test public void insertTuples() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 1007; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+
+        ArrayList<Page> modified = empty.insertTuples(tid, tuples.iterator());
+        assertEquals(3, modified.size());
+        assertEquals(3, empty.numPages());
+        assertEquals(0, ((HeapPage) modified.get(0)).getNumEmptySlots());
+        assertEquals(0, ((HeapPage) modified.get(1)).getNumEmptySlots());
+        assertEquals(502, ((HeapPage) modified.get(2)).getNumEmptySlots());
+
+        for (Tuple t : tuples) {
+            assertNotNull(t.getRecordId());
+        }
+        assertEquals(new RecordId(new HeapPageId(empty.getId(), 2), 0),
+                     tuples.get(1006).getRecordId());
+    }
+
+    /**
+     * Unit test for HeapFile.addTuple() after reopening the file: pages
+     * with room are found through the free-space map instead of the file
+     * growing.
+     */
+    @Test public void addTupleAfterReopen() throws Exception {
+        for (int i = 0; i < 10; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = new HeapFile(empty.getFile(), Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+        reopened.insertTuple(tid, Utility.getHeapTuple(10, 2));
+        assertEquals(1, reopened.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuples() with a stale free-space map:
+     * the full page it offers is not kept locked.
+     */
+    @Test public void insertTuplesStaleHint() throws Exception {
+        for (int i = 0; i < 503; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        HeapPageId full = new HeapPageId(empty.getId(), 0);
+        empty.getFreeSpaceMap().mark(0, true);
+        tid = new TransactionId();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        tuples.add(Utility.getHeapTuple(503, 2));
+        empty.insertTuples(tid, tuples.iterator());
+        assertEquals(2, empty.numPages());
+        assertFalse(Database.getBufferPool().holdsLock(tid, full, Permissions.READ_ONLY));
+    }
+
+    /**
+     * Unit test for HeapFile.addTuple() on a memory-mapped file: pages
+     * allocated while inserting are mapped once they are on disk.
+     */
+    @Test public void addTupleMemoryMapped() throws Exception {
+        File f = File.createTempFile("mapped", ".dat");
+        f.deleteOnExit();
+        Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        HeapFile mapped = new HeapFile(f, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        assertTrue(mapped.isMemoryMapped());
+
+        for (int i = 0; i < 1009; ++i) {
+            mapped.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertTrue(mapped.numPages() >= 3);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // Read everything back through the mapping
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        DbFileIterator it = mapped.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(1009, count);
+    }
+
     /**
      * JUnit suite target
      */
@@ -74,6 +74,11 @@ public class HeapPageIdTest extends SimpleDbTestBase {
         assertFalse(pid1Copy.equals(pid2));
         assertFalse(pid2.equals(pid1));
         assertFalse(pid2.equals(pid1Copy));
+
+        // pages whose ids only differ above the 16 bits used by hashCode()
+        HeapPageId pidHigh = new HeapPageId(1 + (1 << 16), 1);
+        assertEquals(pid1.hashCode(), pidHigh.hashCode());
+        assertFalse(pid1.equals(pidHigh));
     }
 
     /**
@@ -99,12 +99,41 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(Predicate)
+     */
+    @Test public void testPredicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate p = new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(50000));
+        Iterator<Tuple> it = page.iterator(p);
+
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[1] <= 50000) continue;
+            assertTrue(it.hasNext());
+            Tuple tup = it.next();
+            assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(values[1], ((IntField) tup.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for HeapPage.getField()
+     */
+    @Test public void getField() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int i = 0; i < EXAMPLE_VALUES.length; i++) {
+            assertEquals(new IntField(EXAMPLE_VALUES[i][1]), page.getField(i, 1));
+        }
+        assertEquals(null, page.getField(20, 0));
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
     @Test public void getNumEmptySlots() throws Exception {
         HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
-        assertEquals(484, page.getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
     }
 
     /**
@@ -116,7 +145,7 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         for (int i = 0; i < 20; ++i)
             assertTrue(page.isSlotUsed(i));
 
-        for (int i = 20; i < 504; ++i)
+        for (int i = 20; i < 503; ++i)
             assertFalse(page.isSlotUsed(i));
     }
 
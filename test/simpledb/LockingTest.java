@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -26,7 +28,7 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 
     // create a new empty HeapFile and populate it with three pages.
-    // we should be able to add 504 tuples on an empty page.
+    // we should be able to add 503 tuples on an empty page.
     TransactionId tid = new TransactionId();
     for (int i = 0; i < 1025; ++i) {
       empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
@@ -186,6 +188,126 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A read lock requested after a waiting write lock waits behind it, so
+   * readers cannot starve the writer.
+   */
+  @Test public void readerWaitsBehindWriter() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join(10 * TIMEOUT);
+    assertTrue(writer.acquired());
+    Thread.sleep(TIMEOUT);
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    reader.join(10 * TIMEOUT);
+    assertTrue(reader.acquired());
+    assertNull(writer.getError());
+    assertNull(reader.getError());
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A lock upgrade goes ahead of write locks that were requested earlier.
+   */
+  @Test public void upgradeHasPriority() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber upgrade = new TestUtil.LockGrabber(tid1, p0, Permissions.READ_WRITE);
+    upgrade.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(upgrade.acquired());
+
+    bp.transactionComplete(tid2);
+    upgrade.join(10 * TIMEOUT);
+    assertTrue(upgrade.acquired());
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertNull(writer.getError());
+
+    bp.transactionComplete(tid1);
+    writer.join(10 * TIMEOUT);
+    assertTrue(writer.acquired());
+  }
+
+  /**
+   * Unit test for BufferPool.getRecordPage() assuming locking.
+   * Write locks on different records of one page do not conflict.
+   */
+  @Test public void recordLocksOnSamePage() throws Exception {
+    RecordId r0 = new RecordId(p0, 0);
+    RecordId r1 = new RecordId(p0, 1);
+    bp.getRecordPage(tid1, r0, Permissions.READ_WRITE);
+    bp.getRecordPage(tid2, r1, Permissions.READ_WRITE);
+
+    assertTrue(bp.holdsLock(tid1, r0, Permissions.READ_WRITE));
+    assertFalse(bp.holdsLock(tid1, r1, Permissions.READ_ONLY));
+    assertFalse(bp.tryLockRecord(tid2, r0, Permissions.READ_ONLY));
+    // the intention locks on the page keep out whole-page locks
+    grabLock(tid2, p0, Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * Unit test for BufferPool.getTableLock() assuming locking.
+   * A shared table lock lets others read pages but not write records.
+   */
+  @Test public void tableLockCoversPages() throws Exception {
+    bp.getTableLock(tid1, empty.getId(), LockMode.S);
+    assertTrue(bp.holdsLock(tid1, p2, Permissions.READ_ONLY));
+    assertFalse(bp.holdsLock(tid1, p2, Permissions.READ_WRITE));
+
+    assertFalse(bp.tryLockRecord(tid2, new RecordId(p1, 0), Permissions.READ_WRITE));
+    grabLock(tid2, p1, Permissions.READ_ONLY, true);
+  }
+
+  /**
+   * Unit test for BufferPool.getRecordPage() assuming locking.
+   * Locking many records of a page locks the page instead.
+   */
+  @Test public void recordLocksEscalateToPage() throws Exception {
+    bp.setLockEscalation(4, 1000);
+    for (int i = 0; i < 5; i++) {
+      bp.getRecordPage(tid1, new RecordId(p0, i), Permissions.READ_ONLY);
+    }
+    assertTrue(bp.holdsLock(tid1, p0, Permissions.READ_ONLY));
+    assertTrue(bp.holdsLock(tid1, new RecordId(p0, 100), Permissions.READ_ONLY));
+    grabLock(tid2, p0, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for BufferPool.getRecordPage() assuming locking.
+   * Locking many records of a table locks the table instead.
+   */
+  @Test public void recordLocksEscalateToTable() throws Exception {
+    bp.setLockEscalation(1000, 3);
+    bp.getRecordPage(tid1, new RecordId(p0, 0), Permissions.READ_WRITE);
+    bp.getRecordPage(tid1, new RecordId(p0, 1), Permissions.READ_WRITE);
+    bp.getRecordPage(tid1, new RecordId(p1, 0), Permissions.READ_WRITE);
+    assertFalse(bp.holdsLock(tid1, p2, Permissions.READ_WRITE));
+
+    bp.getRecordPage(tid1, new RecordId(p1, 1), Permissions.READ_WRITE);
+    assertTrue(bp.holdsLock(tid1, p2, Permissions.READ_WRITE));
+    grabLock(tid2, p2, Permissions.READ_ONLY, false);
+  }
+
   /**
    * JUnit suite target
    */
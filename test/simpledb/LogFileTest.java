@@ -0,0 +1,189 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.ByteBuffer;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private File file;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("logfiletest", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    @After public void tearDown() {
+        for (File segment : segmentFiles()) {
+            segment.delete();
+        }
+        file.delete();
+    }
+
+    private File[] segmentFiles() {
+        final String prefix = file.getName() + ".";
+        return file.getAbsoluteFile().getParentFile().listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.getName().startsWith(prefix);
+            }
+        });
+    }
+
+    /**
+     * Unit test for group commit: transactions committing at once share
+     * forces of the log.
+     */
+    @Test public void groupCommit() throws Exception {
+        final int threads = 8;
+        final int commits = 50;
+        log.setGroupCommitDelay(1000);
+        final Exception[] failed = new Exception[1];
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < commits; j++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (Exception e) {
+                        failed[0] = e;
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread t : committers) {
+            t.join();
+        }
+
+        if (failed[0] != null) throw failed[0];
+        assertEquals(2 * threads * commits, log.getTotalRecords());
+        assertTrue(log.totalForces > 0);
+        assertTrue(log.totalForces < threads * commits);
+    }
+
+    /**
+     * Unit test for the record format: records are addressed by LSN, an
+     * update costs little more than its two page images, and a reopened
+     * log reads what was forced.
+     */
+    @Test public void records() throws Exception {
+        TransactionId tid = new TransactionId();
+        File table = File.createTempFile("logfiletest", ".dat");
+        table.deleteOnExit();
+        HeapFile hf = Utility.openHeapFile(2, table);
+        HeapPageId pid = new HeapPageId(hf.getId(), 3);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+
+        log.logXactionBegin(tid);
+        long update = log.nextLsn;
+        log.logWrite(tid, before, after);
+        long commit = log.nextLsn;
+        log.logCommit(tid);
+
+        int pageSize = before.getPageData().length;
+        assertTrue(commit - update < 2 * pageSize + 64);
+
+        LogFile reopened = new LogFile(file);
+        ByteBuffer record = reopened.readRecord(update);
+        assertEquals(LogFile.UPDATE_RECORD, LogFile.recordType(record));
+        assertEquals(tid.getId(), LogFile.recordTid(record));
+        record.getLong(); // previous record
+        Page logged = LogFile.readPageData(record);
+        assertEquals(pid, logged.getId());
+        record = reopened.readRecord(commit);
+        assertEquals(LogFile.COMMIT_RECORD, LogFile.recordType(record));
+        assertNull(reopened.readRecord(commit + LogFile.recordSize(record)));
+    }
+
+    /**
+     * Unit test for LogFile.logInsert(): an insert is logged as the tuple
+     * alone, not as an image of its page.
+     */
+    @Test public void tupleRecords() throws Exception {
+        TransactionId tid = new TransactionId();
+        File table = File.createTempFile("logfiletest", ".dat");
+        table.deleteOnExit();
+        HeapFile hf = Utility.openHeapFile(2, table);
+        Tuple t = Utility.getHeapTuple(7, 2);
+        t.setRecordId(new RecordId(new HeapPageId(hf.getId(), 1), 9));
+
+        log.logXactionBegin(tid);
+        long insert = log.nextLsn;
+        log.logInsert(tid, t);
+        long commit = log.nextLsn;
+        log.logCommit(tid);
+        assertTrue(commit - insert < 100);
+
+        ByteBuffer record = new LogFile(file).readRecord(insert);
+        assertEquals(LogFile.INSERT_RECORD, LogFile.recordType(record));
+        record.getLong(); // previous record
+        LogFile.TupleChange change = LogFile.TupleChange.read(record);
+        assertEquals(t.getRecordId(), change.rid);
+    }
+
+    /**
+     * Unit test for the segments of the log: records span segments, a
+     * reopened log finds them, and truncation deletes whole segments.
+     */
+    @Test public void segments() throws Exception {
+        log = new LogFile(file, 1024);
+        TransactionId tid = new TransactionId();
+        File table = File.createTempFile("logfiletest", ".dat");
+        table.deleteOnExit();
+        HeapFile hf = Utility.openHeapFile(2, table);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+
+        log.logXactionBegin(tid);
+        long update = log.nextLsn;
+        log.logWrite(tid, page, page);
+        log.logCommit(tid);
+        assertTrue(segmentFiles().length > 2 * BufferPool.PAGE_SIZE / 1024);
+
+        LogFile reopened = new LogFile(file);
+        assertEquals(1024, reopened.getSegmentSize());
+        ByteBuffer record = reopened.readRecord(update);
+        assertEquals(LogFile.UPDATE_RECORD, LogFile.recordType(record));
+        record.getLong(); // previous record
+        assertEquals(pid, LogFile.readPageData(record).getId());
+
+        for (int i = 0; i < 100; i++) {
+            TransactionId other = new TransactionId();
+            log.logXactionBegin(other);
+            log.logCommit(other);
+        }
+        log.logCheckpoint();
+        assertTrue(log.baseLsn > update);
+        assertEquals(0, log.baseLsn % 1024);
+        assertNull(log.readRecord(update));
+        assertTrue(segmentFiles().length <= 2);
+        assertNotNull(new LogFile(file).readRecord(log.checkpointLsn));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LongIntMapTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for LongIntMap.put() and get()
+     */
+    @Test public void putGet() {
+        LongIntMap map = new LongIntMap();
+        assertEquals(LongIntMap.NO_VALUE, map.get(7));
+
+        map.put(7, 1);
+        map.put(PageKey.of(-1, 3), 2);
+        assertEquals(1, map.get(7));
+        assertEquals(2, map.get(PageKey.of(-1, 3)));
+        assertEquals(LongIntMap.NO_VALUE, map.get(PageKey.of(3, -1)));
+
+        map.put(7, 5);
+        assertEquals(5, map.get(7));
+        assertEquals(2, map.size());
+    }
+
+    /**
+     * Unit test for LongIntMap.remove(), checked against a HashMap through
+     * enough entries to force growth and long probe chains.
+     */
+    @Test public void randomized() {
+        LongIntMap map = new LongIntMap();
+        HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+        Random rand = new Random(42);
+
+        for (int i = 0; i < 20000; i++) {
+            long key = PageKey.of(rand.nextInt(8), rand.nextInt(512));
+            if (rand.nextInt(3) == 0) {
+                Integer old = expected.remove(key);
+                assertEquals(old == null ? LongIntMap.NO_VALUE : old, map.remove(key));
+            } else {
+                expected.put(key, i);
+                map.put(key, i);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Long key : expected.keySet()) {
+            assertTrue(map.containsKey(key));
+            assertEquals((int) expected.get(key), map.get(key));
+        }
+        assertFalse(map.containsKey(PageKey.of(9, 0)));
+    }
+
+    /**
+     * Unit test for PageKey round trips
+     */
+    @Test public void pageKey() {
+        long key = PageKey.of(new HeapPageId(-123456789, 42));
+        assertEquals(-123456789, PageKey.tableId(key));
+        assertEquals(42, PageKey.pageNumber(key));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LongIntMapTest.class);
+    }
+}
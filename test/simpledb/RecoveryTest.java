@@ -0,0 +1,291 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private static void insert(HeapFile f, Transaction t, int value)
+        throws DbException, TransactionAbortedException {
+        Tuple tuple = Utility.getHeapTuple(value, 2);
+        TupleIterator rows = new TupleIterator(Utility.getTupleDesc(2), Arrays.asList(tuple));
+        Insert insert = new Insert(t.getId(), rows, f.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+
+    private static int count(HeapFile f, int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        int found = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            if (((IntField) scan.next().getField(0)).getValue() == value) found++;
+        }
+        scan.close();
+        t.commit();
+        return found;
+    }
+
+    // Throws away everything in memory, as a crash would, and recovers
+    private static HeapFile crash(HeapFile f) throws IOException {
+        Database.reset();
+        HeapFile reopened = Utility.openHeapFile(2, f.getFile());
+        Database.getLogFile().recover();
+        return reopened;
+    }
+
+    /**
+     * Unit test for LogFile.recover(): the updates of a committed
+     * transaction stay, those of one running at the crash are undone,
+     * although they were written to disk.
+     */
+    @Test public void undoLoser() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(f, t1, 1);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(f, t2, 2);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+
+        f = crash(f);
+        LogFile log = Database.getLogFile();
+        assertEquals(1, log.undoneUpdates);
+        assertEquals(1, count(f, 1));
+        assertEquals(0, count(f, 2));
+
+        // Recovering again finds nothing left to do
+        f = crash(f);
+        assertEquals(0, Database.getLogFile().undoneUpdates);
+        assertEquals(0, count(f, 2));
+    }
+
+    /**
+     * Unit test for LogFile.recover(): a committed update whose page never
+     * reached the disk is redone.
+     */
+    @Test public void redoCommitted() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        insert(f, t, 3);
+        // Commit in the log only, as if the crash came before the pages
+        // were written
+        Database.getLogFile().logCommit(t.getId());
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+
+        f = crash(f);
+        assertEquals(1, Database.getLogFile().redoneUpdates);
+        assertEquals(1, count(f, 3));
+        assertTrue(((HeapPage) f.readPage(pid)).getLsn() > 0);
+    }
+
+    /**
+     * Unit test for LogFile.rollback(): aborting a transaction whose page
+     * was written restores the page on disk.
+     */
+    @Test public void rollbackWrittenPage() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        insert(f, t, 4);
+        Database.getBufferPool().flushAllPages();
+        t.transactionComplete(true);
+
+        HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), 0));
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            assertFalse(((IntField) it.next().getField(0)).getValue() == 4);
+        }
+        assertEquals(0, count(f, 4));
+    }
+
+    /**
+     * Unit test for LogFile.recover(): a page holding the rows of two
+     * transactions is written when one commits; the other's row is undone
+     * on its own after a crash.
+     */
+    @Test public void undoSharedPage() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().insertTuple(t1.getId(), f.getId(), Utility.getHeapTuple(5, 2));
+        Database.getBufferPool().insertTuple(t2.getId(), f.getId(), Utility.getHeapTuple(6, 2));
+        t1.commit();
+
+        f = crash(f);
+        assertEquals(1, Database.getLogFile().undoneUpdates);
+        assertEquals(1, count(f, 5));
+        assertEquals(0, count(f, 6));
+    }
+
+    /**
+     * Unit test for LogFile.logCheckpoint(): the checkpoint writes no
+     * pages, and its dirty page table lets redo repeat a change logged
+     * before it.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        Transaction t = new Transaction();
+        t.start();
+        insert(f, t, 7);
+        BufferPool pool = Database.getBufferPool();
+        assertTrue(pool.dirtyPages().containsKey(pid));
+
+        LogFile log = Database.getLogFile();
+        log.logCheckpoint();
+        assertEquals(0, ((HeapPage) f.readPage(pid)).getLsn());
+        // The transaction is still changing the page
+        assertEquals(0, pool.writeDirtyPages(Long.MAX_VALUE));
+
+        // Commit in the log only, as if the crash came before the pages
+        // were written
+        log.logCommit(t.getId());
+        f = crash(f);
+        assertEquals(1, Database.getLogFile().redoneUpdates);
+        assertEquals(1, count(f, 7));
+    }
+
+    // Inserts values first .. first+count-1 in one transaction
+    private static void insertMany(HeapFile f, Transaction t, int first, int count)
+        throws Exception {
+        for (int i = 0; i < count; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), f.getId(),
+                                                 Utility.getHeapTuple(first + i, 2));
+        }
+    }
+
+    /**
+     * Unit test for STEAL/NO-FORCE: a transaction inserting more pages
+     * than the pool holds spills them, its commit writes none, and
+     * recovery redoes them.
+     */
+    @Test public void stealNoForce() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        BufferPool pool = Database.resetBufferPool(4);
+        pool.setWritePolicy(WritePolicy.STEAL_NO_FORCE);
+        int rows = 6 * (BufferPool.PAGE_SIZE * 8 / (8 * 8 + 1));
+        Transaction t = new Transaction();
+        t.start();
+        insertMany(f, t, 0, rows);
+        assertTrue(f.numPages() > 4);
+        t.commit();
+        assertEquals(1, count(f, rows - 1));
+
+        // The last page inserted into is still dirty in the pool
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(f, t2, -1);
+        Database.getLogFile().logCommit(t2.getId());
+        f = crash(f);
+        assertTrue(Database.getLogFile().redoneUpdates > 0);
+        assertEquals(1, count(f, 0));
+        assertEquals(1, count(f, rows - 1));
+        assertEquals(1, count(f, -1));
+    }
+
+    /**
+     * Unit test for STEAL/NO-FORCE: aborting a transaction whose pages
+     * were stolen undoes them, also after a crash, but keeps a committed
+     * change no page write holds yet.
+     */
+    @Test public void abortStolenPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        BufferPool pool = Database.resetBufferPool(4);
+        pool.setWritePolicy(WritePolicy.STEAL_NO_FORCE);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(f, t1, -1);
+        t1.commit();
+
+        int rows = 6 * (BufferPool.PAGE_SIZE * 8 / (8 * 8 + 1));
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertMany(f, t2, 0, rows);
+        t2.transactionComplete(true);
+        assertEquals(0, count(f, 0));
+        assertEquals(0, count(f, rows - 1));
+        assertEquals(1, count(f, -1));
+
+        f = crash(f);
+        assertEquals(0, count(f, 0));
+        assertEquals(0, count(f, rows - 1));
+        assertEquals(1, count(f, -1));
+    }
+
+    /**
+     * Unit test for STEAL/NO-FORCE: a page written since the change an
+     * abort undoes in memory is dirty again, from the compensation record
+     * on, and carries its LSN.
+     */
+    @Test public void abortStampsCompensation() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        pool.setWritePolicy(WritePolicy.STEAL_NO_FORCE);
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        Transaction t = new Transaction();
+        t.start();
+        insert(f, t, 8);
+        pool.flushAllPages();
+        long changed = ((HeapPage) f.readPage(pid)).getLsn();
+        assertFalse(pool.dirtyPages().containsKey(pid));
+
+        t.transactionComplete(true);
+        long compensation = pool.dirtyPages().get(pid);
+        assertTrue(compensation > changed);
+        pool.flushAllPages();
+        assertEquals(compensation, ((HeapPage) f.readPage(pid)).getLsn());
+        assertEquals(0, count(f, 8));
+    }
+
+    /**
+     * Unit test for LogFile.recover(): every commit wrote its pages, so
+     * the page LSNs let redo skip every update.  recover() logs the
+     * restart time through Debug.
+     */
+    @Test public void skipWrittenUpdates() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        int commits = 20;
+        for (int i = 0; i < commits; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insert(f, t, i);
+            t.commit();
+        }
+
+        f = crash(f);
+        LogFile log = Database.getLogFile();
+        assertEquals(commits, log.skippedUpdates);
+        assertEquals(0, log.redoneUpdates);
+        assertEquals(0, log.undoneUpdates);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    /**
+     * Evictor that refuses a fixed set of frames, like the BufferPool does
+     * for dirty pages.
+     */
+    private static class Refuser implements ReplacementPolicy.Evictor {
+        private final HashSet<Integer> refused = new HashSet<Integer>();
+
+        Refuser(int... frames) {
+            for (int f : frames) refused.add(f);
+        }
+
+        public boolean tryEvict(int frame) {
+            return !refused.contains(frame);
+        }
+    }
+
+    /**
+     * Unit test for ClockPolicy: referenced frames get a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ClockPolicy clock = new ClockPolicy(3);
+        for (int i = 0; i < 3; i++) clock.admit(i);
+
+        // First sweep clears every bit, so frame 0 is the victim
+        assertEquals(0, clock.evict(new Refuser()));
+        clock.admit(0);
+
+        // Frame 1 and 2 are unreferenced now; touching 1 saves it
+        clock.access(1);
+        assertEquals(2, clock.evict(new Refuser()));
+    }
+
+    /**
+     * Unit test for ClockPolicy: refused frames are skipped.
+     */
+    @Test public void clockSkipsRefused() {
+        ClockPolicy clock = new ClockPolicy(3);
+        for (int i = 0; i < 3; i++) clock.admit(i);
+
+        assertEquals(2, clock.evict(new Refuser(0, 1)));
+        assertEquals(-1, clock.evict(new Refuser(0, 1, 2)));
+    }
+
+    /**
+     * Unit test for LruKPolicy: pages seen once are evicted before pages
+     * seen K times, even if the single reference is more recent.
+     */
+    @Test public void lruKPrefersCorrelatedPages() throws Exception {
+        LruKPolicy lru = new LruKPolicy(3, 2);
+        lru.admit(0);
+        lru.access(0);
+        lru.admit(1);
+        lru.access(1);
+        Thread.sleep(1);
+        lru.admit(2);
+
+        assertEquals(2, lru.evict(new Refuser()));
+        lru.admit(2);
+        lru.access(2);
+
+        // All frames have two references now; frame 0 has the oldest
+        assertEquals(0, lru.evict(new Refuser()));
+        assertEquals(1, lru.evict(new Refuser(0)));
+    }
+
+    /**
+     * Unit test for LruKPolicy: a frame referenced since the last eviction
+     * looked at it moves behind the others, and refused frames are kept.
+     */
+    @Test public void lruKSeesLaterReferences() throws Exception {
+        LruKPolicy lru = new LruKPolicy(3, 2);
+        lru.admit(0);
+        Thread.sleep(1);
+        lru.admit(1);
+        Thread.sleep(1);
+        lru.admit(2);
+
+        assertEquals(0, lru.evict(new Refuser()));
+        lru.access(0);
+        assertEquals(1, lru.evict(new Refuser()));
+        assertEquals(2, lru.evict(new Refuser(1)));
+        assertEquals(-1, lru.evict(new Refuser(0, 1, 2)));
+        assertEquals(1, lru.evict(new Refuser()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
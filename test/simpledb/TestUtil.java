@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -206,6 +207,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public Page readPage(PageId id, ByteBuffer frame) {
+            throw new RuntimeException("not implemented");
+        }
+
         public int numPages() {
             throw new RuntimeException("not implemented");
         }
@@ -219,6 +224,11 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+            throw new RuntimeException("not implemented");
+        }
+
         public Page deleteTuple(TransactionId tid, Tuple t)
             throws DbException, TransactionAbortedException {
             throw new RuntimeException("not implemented");
@@ -0,0 +1,77 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class TransactionGraphTest {
+    private final PageId p0 = new HeapPageId(1, 0);
+    private final PageId p1 = new HeapPageId(1, 1);
+
+    /**
+     * Unit test for TransactionGraph edges: the pages of a transaction are
+     * a live view, and completing it drops its edges from every page.
+     */
+    @Test public void edges() {
+        TransactionGraph graph = new TransactionGraph();
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+
+        graph.addEdge(tid1, p0);
+        graph.addEdge(tid1, p1);
+        Set<PageId> pages = graph.pagesInTransaction(tid1);
+        graph.addEdge(tid2, p0);
+        graph.addEdge(null, p1);
+        assertEquals(2, graph.numPages(tid1));
+        assertTrue(graph.pagesInTransaction(tid1).contains(p1));
+        assertTrue(graph.transactionsUsingPage(p1).contains(null));
+        assertFalse(graph.writesPage(tid1, p0));
+
+        graph.removeEdge(tid1, p1);
+        assertFalse(graph.readsPage(tid1, p1));
+        assertEquals(1, pages.size());
+        assertEquals(1, graph.numTransactions(p1));
+
+        graph.transactionComplete(tid2);
+        assertTrue(graph.writesPage(tid1, p0));
+        assertEquals(0, graph.numPages(tid2));
+    }
+
+    /**
+     * Unit test for TransactionGraph.findCycle()
+     */
+    @Test public void findCycle() {
+        TransactionGraph graph = new TransactionGraph();
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId tid3 = new TransactionId();
+
+        graph.setWaitsFor(tid1, Arrays.asList(tid2));
+        graph.setWaitsFor(tid2, Arrays.asList(tid3, null));
+        assertNull(graph.findCycle(tid1));
+
+        graph.setWaitsFor(tid3, Arrays.asList(tid1));
+        ArrayList<TransactionId> cycle = graph.findCycle(tid1);
+        assertEquals(Arrays.asList(tid1, tid2, tid3), cycle);
+
+        graph.clearWaitsFor(tid2);
+        assertFalse(graph.isWaiting(tid2));
+        assertNull(graph.findCycle(tid3));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TransactionGraphTest.class);
+    }
+}
@@ -4,6 +4,9 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -23,7 +26,7 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 
     // create a new empty HeapFile and populate it with three pages.
-    // we should be able to add 504 tuples on an empty page.
+    // we should be able to add 503 tuples on an empty page.
     TransactionId tid = new TransactionId();
     for (int i = 0; i < 1025; ++i) {
       empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
@@ -112,6 +115,185 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete() with record locks.
+   * Two transactions delete tuples of the same page; aborting one puts
+   * back only its own tuple.
+   */
+  @Test public void abortUndoesOnlyOwnTuples() throws Exception {
+    HeapPage page = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    Iterator<Tuple> it = page.iterator();
+    Tuple first = it.next();
+    Tuple second = it.next();
+    bp.transactionComplete(tid1);
+
+    TransactionId tid3 = new TransactionId();
+    TransactionId tid4 = new TransactionId();
+    bp.deleteTuple(tid3, first);
+    bp.deleteTuple(tid4, second);
+    bp.transactionComplete(tid4, true);
+    bp.transactionComplete(tid3, false);
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    page = (HeapPage) bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    assertTrue(page.isSlotUsed(first.getRecordId().tupleno()));
+    assertFalse(page.isSlotUsed(second.getRecordId().tupleno()));
+  }
+
+  /**
+   * Unit test for BufferPool.beginSnapshot().  A read-only transaction
+   * reads a page another transaction holds exclusively without waiting,
+   * and sees neither its uncommitted nor its later committed changes.
+   */
+  @Test public void snapshotReadsWithoutLocks() throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    int before = p.getNumEmptySlots();
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid1);
+
+    TransactionId reader = new TransactionId();
+    bp.beginSnapshot(reader);
+    assertEquals(before, ((HeapPage) bp.getPage(reader, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    assertFalse(bp.holdsLock(reader, p2, Permissions.READ_ONLY));
+
+    bp.transactionComplete(tid1, true);
+    assertEquals(before, ((HeapPage) bp.getPage(reader, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    try {
+      bp.getPage(reader, p2, Permissions.READ_WRITE);
+      fail("a snapshot transaction must not write");
+    } catch (DbException expected) {
+    }
+    bp.transactionComplete(reader, true);
+
+    TransactionId later = new TransactionId();
+    bp.beginSnapshot(later);
+    assertEquals(before - 1, ((HeapPage) bp.getPage(later, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    bp.transactionComplete(later, true);
+  }
+
+  /**
+   * Unit test for snapshots of pages changed under record locks: a
+   * snapshot sees only the tuple changes committed before it began.
+   */
+  @Test public void snapshotSeesCommittedRowChanges() throws Exception {
+    HeapPage page = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    Iterator<Tuple> it = page.iterator();
+    Tuple first = it.next();
+    Tuple second = it.next();
+    bp.transactionComplete(tid1);
+    int firstSlot = first.getRecordId().tupleno();
+    int secondSlot = second.getRecordId().tupleno();
+
+    TransactionId tid3 = new TransactionId();
+    TransactionId tid4 = new TransactionId();
+    bp.deleteTuple(tid3, first);
+    bp.deleteTuple(tid4, second);
+
+    TransactionId reader = new TransactionId();
+    bp.beginSnapshot(reader);
+    bp.transactionComplete(tid4, true);
+    page = (HeapPage) bp.getPage(reader, p0, Permissions.READ_ONLY);
+    assertTrue(page.isSlotUsed(firstSlot));
+    assertTrue(page.isSlotUsed(secondSlot));
+
+    TransactionId later = new TransactionId();
+    bp.beginSnapshot(later);
+    page = (HeapPage) bp.getPage(later, p0, Permissions.READ_ONLY);
+    assertTrue(page.isSlotUsed(firstSlot));
+    assertFalse(page.isSlotUsed(secondSlot));
+
+    bp.transactionComplete(tid3, false);
+    bp.transactionComplete(reader, true);
+    bp.transactionComplete(later, true);
+  }
+
+  /**
+   * Unit test for BufferPool.validate().  An optimistic transaction
+   * changes a private copy of a page without locking it, and its change
+   * shows up once it is validated and commits.
+   */
+  @Test public void optimisticWritesArePrivate() throws Exception {
+    TransactionId occ = new TransactionId();
+    bp.beginOptimistic(occ);
+    HeapPage p = (HeapPage) bp.getPage(occ, p2, Permissions.READ_WRITE);
+    int before = p.getNumEmptySlots();
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    assertFalse(bp.holdsLock(occ, p2, Permissions.READ_ONLY));
+
+    p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(before, p.getNumEmptySlots());
+    bp.transactionComplete(tid1, true);
+
+    bp.validate(occ);
+    assertTrue(bp.holdsLock(occ, p2, Permissions.READ_WRITE));
+    bp.transactionComplete(occ, true);
+    p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_ONLY);
+    assertEquals(before - 1, p.getNumEmptySlots());
+  }
+
+  /**
+   * Unit test for BufferPool.validate(): an optimistic transaction fails
+   * validation if a page it read was changed by a later commit.
+   */
+  @Test public void optimisticValidationFails() throws Exception {
+    TransactionId occ = new TransactionId();
+    bp.beginOptimistic(occ);
+    bp.getPage(occ, p2, Permissions.READ_ONLY);
+    bp.getPage(occ, p1, Permissions.READ_WRITE);
+
+    HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid1);
+    bp.transactionComplete(tid1, true);
+
+    try {
+      bp.validate(occ);
+      fail("expected validation to fail");
+    } catch (TransactionAbortedException expected) {
+    }
+    bp.transactionComplete(occ, false);
+    // nothing is left locked
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+  }
+
+  /**
+   * Unit test for HeapFileIterator at READ_COMMITTED: a scan only holds
+   * the read lock of the page it is on.
+   */
+  @Test public void readCommittedReleasesReadLocks() throws Exception {
+    bp.setIsolationLevel(tid1, IsolationLevel.READ_COMMITTED);
+    DbFileIterator it = empty.iterator(tid1);
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    assertEquals(1025, count);
+    assertFalse(bp.holdsLock(tid1, p0, Permissions.READ_ONLY));
+    assertFalse(bp.holdsLock(tid1, p1, Permissions.READ_ONLY));
+    assertTrue(bp.holdsLock(tid1, p2, Permissions.READ_ONLY));
+
+    it.close();
+    assertFalse(bp.holdsLock(tid1, p2, Permissions.READ_ONLY));
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    bp.transactionComplete(tid1, true);
+  }
+
+  /**
+   * Unit test for HeapFileIterator at SERIALIZABLE: a scan locks the
+   * whole table, including pages it has not read yet.
+   */
+  @Test public void serializableLocksTable() throws Exception {
+    bp.setIsolationLevel(tid1, IsolationLevel.SERIALIZABLE);
+    DbFileIterator it = empty.iterator(tid1);
+    it.open();
+    assertTrue(bp.holdsLock(tid1, p2, Permissions.READ_ONLY));
+    assertFalse(bp.holdsLock(tid1, p2, Permissions.READ_WRITE));
+    it.close();
+    bp.transactionComplete(tid1, true);
+  }
+
   /**
    * JUnit suite target
    */
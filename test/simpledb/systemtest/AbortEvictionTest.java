@@ -38,6 +38,26 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    /** Same as testDoNotEvictDirtyPages, with page contents held in
+     * off-heap frames that are reused on every eviction.
+     */
+    @Test public void testDoNotEvictDirtyPagesOffHeap()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(new BufferPool(2, new ClockPolicy(2), true));
+
+        Transaction t = new Transaction();
+        t.start();
+        EvictionTest.insertRow(f, t);
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertFalse(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
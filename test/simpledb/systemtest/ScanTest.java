@@ -43,6 +43,30 @@ public class ScanTest extends SimpleDbTestBase {
         validateScan(columnSizes, rowSizes);
     }
 
+    /** Scan tables larger than the pool with pages held in off-heap frames. */
+    @Test public void testOffHeapFrames() throws IOException, DbException, TransactionAbortedException {
+        for (int columns : new int[]{1, 4}) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(columns, 4096, null, tuples);
+            Database.resetBufferPool(new BufferPool(3, new LruKPolicy(3, 2), true));
+            SystemTestUtil.matchTuples(f, tuples);
+            SystemTestUtil.matchTuples(f, tuples);
+        }
+    }
+
+    /** Scan tables read through a memory mapping. */
+    @Test public void testMemoryMapped() throws IOException, DbException, TransactionAbortedException {
+        for (int columns : new int[]{1, 4}) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            File f = SystemTestUtil.createRandomHeapFileUnopened(columns, 4096, 1000, null, tuples);
+            HeapFile table = new HeapFile(f, Utility.getTupleDesc(columns), true);
+            Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+            Database.resetBufferPool(3);
+            SystemTestUtil.matchTuples(table, tuples);
+            SystemTestUtil.matchTuples(table, tuples);
+        }
+    }
+
     /** Test that rewinding a SeqScan iterator works. */
     @Test public void testRewind() throws IOException, DbException, TransactionAbortedException {
         ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
@@ -67,32 +91,34 @@ public class ScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHeapFile extends HeapFile {
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+
+        public int readCount = 0;
+    }
+
     /** Verifies that the buffer pool is actually caching data.
      * @throws TransactionAbortedException
      * @throws DbException */
     @Test public void testCache() throws IOException, DbException, TransactionAbortedException {
-        /** Counts the number of readPage operations. */
-        class InstrumentedHeapFile extends HeapFile {
-            public InstrumentedHeapFile(File f, TupleDesc td) {
-                super(f, td);
-            }
-
-            @Override
-            public Page readPage(PageId pid) throws NoSuchElementException {
-                readCount += 1;
-                return super.readPage(pid);
-            }
-
-            public int readCount = 0;
-        }
-
         // Create the table
         final int PAGES = 30;
         ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
-        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992*PAGES, 1000, null, tuples);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 991*PAGES, 1000, null, tuples);
         TupleDesc td = Utility.getTupleDesc(1);
         InstrumentedHeapFile table = new InstrumentedHeapFile(f, td);
         Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        // Pages read ahead do not go through readPage
+        Database.getBufferPool().setReadAheadWindow(0);
 
         // Scan the table once
         SystemTestUtil.matchTuples(table, tuples);
@@ -104,6 +130,27 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that scanning a table larger than the pool does not evict
+     * the pages of a smaller table. */
+    @Test public void testScanResistance() throws IOException, DbException, TransactionAbortedException {
+        final int HOT_PAGES = 4;
+        ArrayList<ArrayList<Integer>> hotTuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 991*HOT_PAGES, 1000, null, hotTuples);
+        InstrumentedHeapFile hot = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(hot, SystemTestUtil.getUUID());
+
+        ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(1, 991*100, null, bigTuples);
+
+        Database.resetBufferPool(40);
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        hot.readCount = 0;
+
+        SystemTestUtil.matchTuples(big, bigTuples);
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        assertEquals(0, hot.readCount);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);
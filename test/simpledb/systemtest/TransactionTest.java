@@ -24,6 +24,11 @@ public class TransactionTest extends SimpleDbTestBase {
     private static final int TIMEOUT_MILLIS = 10 * 60 * 1000;
     private void validateTransactions(int threads)
             throws DbException, TransactionAbortedException, IOException {
+        validateTransactions(threads, false);
+    }
+
+    private void validateTransactions(int threads, boolean optimistic)
+            throws DbException, TransactionAbortedException, IOException {
         // Create a table with a single integer value = 0
         HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
         columnSpecification.put(0, 0);
@@ -32,7 +37,7 @@ public class TransactionTest extends SimpleDbTestBase {
         ModifiableCyclicBarrier latch = new ModifiableCyclicBarrier(threads);
         XactionTester[] list = new XactionTester[threads];
         for(int i = 0; i < list.length; i++) {
-            list[i] = new XactionTester(table.getId(), latch);
+            list[i] = new XactionTester(table.getId(), latch, optimistic);
             list[i].start();
         }
 
@@ -73,12 +78,14 @@ public class TransactionTest extends SimpleDbTestBase {
     private static class XactionTester extends Thread {
         private final int tableId;
         private final ModifiableCyclicBarrier latch;
+        private final boolean optimistic;
         public Exception exception = null;
         public boolean completed = false;
 
-        public XactionTester(int tableId, ModifiableCyclicBarrier latch) {
+        public XactionTester(int tableId, ModifiableCyclicBarrier latch, boolean optimistic) {
             this.tableId = tableId;
             this.latch = latch;
+            this.optimistic = optimistic;
         }
 
         public void run() {
@@ -88,6 +95,7 @@ public class TransactionTest extends SimpleDbTestBase {
                     // Wait for all threads to be ready
                     latch.await();
                     Transaction tr = new Transaction();
+                    tr.setOptimistic(optimistic);
                     try {
                         tr.start();
                         SeqScan ss1 = new SeqScan(tr.getId(), tableId, "");
@@ -226,6 +234,29 @@ public class TransactionTest extends SimpleDbTestBase {
         validateTransactions(10);
     }
 
+    @Test public void testTenThreadsWoundWait()
+    throws IOException, DbException, TransactionAbortedException {
+        Database.getBufferPool().setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+        validateTransactions(10);
+    }
+
+    @Test public void testTenThreadsWaitDie()
+    throws IOException, DbException, TransactionAbortedException {
+        Database.getBufferPool().setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+        validateTransactions(10);
+    }
+
+    @Test public void testTenThreadsNoWait()
+    throws IOException, DbException, TransactionAbortedException {
+        Database.getBufferPool().setDeadlockPolicy(DeadlockPolicy.NO_WAIT);
+        validateTransactions(10);
+    }
+
+    @Test public void testTenThreadsOptimistic()
+    throws IOException, DbException, TransactionAbortedException {
+        validateTransactions(10, true);
+    }
+
     @Test public void testAllDirtyFails()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data